@@ -0,0 +1,315 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.Ostermiller.util.CSVPrinter;
+
+/**
+ * Runs the replicates of each configuration in rounds and stops once the
+ * mean response is known well enough.  Rows are grouped by every column
+ * except the ID and seed; the first minReplicates rows of each group are
+ * run, then roundSize more at a time until the confidence interval on
+ * the group's mean raw fitness is no wider than the target width.  The
+ * rows of a group that are never run are written to the result file as
+ * skipped, with NaN responses, so the result file still has a line for
+ * every row of the batch.
+ *
+ * Results are written as each round finishes, so the result file is in
+ * input order within each round but not overall.  When resuming, the
+ * responses already in the result file count towards their groups.
+ * @author drw
+ *
+ */
+public class AdaptiveReplication {
+
+	/** Column appended to each row of the result file **/
+	public static final String[] RESULTS_SKIPPED_PART = {"Skipped"};
+
+	/** Fewest rows of a group run before its interval is checked **/
+	public static final int MIN_REPLICATES = 6;
+
+	/** Values of the skipped column **/
+	public static final String RUN = "0";
+	public static final String SKIPPED = "1";
+
+	/** Target width of the confidence interval on the mean response **/
+	private final double width;
+
+	/** Confidence level of the interval **/
+	private final double confidence;
+
+	/** Rows of each group run before the interval is first checked **/
+	private final int minReplicates;
+
+	/** Rows of each group run in each later round **/
+	private final int roundSize;
+
+	/**
+	 * @param width target width of the confidence interval
+	 * @param confidence confidence level, between 0 and 1
+	 * @param minReplicates rows of each group to run before stopping
+	 * 			any group, at least MIN_REPLICATES since tQuantile() is
+	 * 			too small below 5 degrees of freedom
+	 * @param roundSize rows of each group to run in each round after that
+	 */
+	public AdaptiveReplication(double width, double confidence, int minReplicates, int roundSize) throws BatchException {
+		if (width <= 0 || confidence <= 0 || confidence >= 1 || minReplicates < MIN_REPLICATES || roundSize < 1) {
+			throw new BatchException("Invalid adaptive replication settings: width " + width
+					+ ", confidence " + confidence + ", minimum replicates " + minReplicates
+					+ ", round size " + roundSize);
+		}
+		this.width = width;
+		this.confidence = confidence;
+		this.minReplicates = minReplicates;
+		this.roundSize = roundSize;
+	}
+
+	/**
+	 * The replicates of one configuration, and the responses of those run.
+	 */
+	private static class Group {
+		final List<BatchRow> rows = new ArrayList<BatchRow>();
+		int next = 0;
+		int count = 0;
+		double sum = 0;
+		double sumSquares = 0;
+		boolean stopped = false;
+
+		void add(double response) {
+			count++;
+			sum += response;
+			sumSquares += response * response;
+		}
+	}
+
+	/**
+	 * Run the rows of a batch, stopping each group early once its
+	 * interval is narrow enough.
+	 * @param window rows selected from the batch file, in input order
+	 * @param journal result file, which may already hold some of the rows
+	 * @param pool
+	 * @param args Commandline arguments
+	 * @param allocator decides each row's ECJ threads, or null
+	 * @param timingLog timing file, or null
+	 * @param traceLog trace file, or null
+	 * @param allocationStats allocation totals, or null
+	 */
+	public void run(List<BatchRow> window, ResultJournal journal, ExecutorService pool,
+					final String[] args, final ThreadAllocator allocator, CSVPrinter timingLog,
+					CSVPrinter traceLog, AllocationStats allocationStats) throws BatchException {
+
+		Map<List<String>,Group> groups = group(window);
+
+		// Count the results of an earlier run towards their groups
+		for (Group group : groups.values()) {
+			for (BatchRow row : group.rows) {
+				String[] response = journal.getResponse(row.getValueByLabel(BatchEvolve.L_ID));
+				if (response == null) {
+					continue;
+				}
+				if (response[response.length - 1].equals(SKIPPED)) {
+					group.stopped = true;
+				} else {
+					group.add(Double.parseDouble(response[0]));
+				}
+			}
+		}
+
+		int round = 0;
+		int run = 0;
+		int skipped = 0;
+		while (true) {
+
+			// Take the next rows of every group still going
+			List<BatchRow> batch = new ArrayList<BatchRow>();
+			for (Group group : groups.values()) {
+				if (group.stopped) {
+					continue;
+				}
+				int wanted = Math.max(roundSize, minReplicates - group.count);
+				while (wanted > 0 && group.next < group.rows.size()) {
+					BatchRow row = group.rows.get(group.next++);
+					if (!journal.isComplete(row.getValueByLabel(BatchEvolve.L_ID))) {
+						batch.add(row);
+						wanted--;
+					} else if (allocator != null) {
+						allocator.skip();
+					}
+				}
+			}
+			if (batch.isEmpty()) {
+				break;
+			}
+			round++;
+			System.out.println("Round " + round + ": running " + batch.size() + " rows");
+
+			// Run them all, in input order
+			Map<Integer,BatchRow> byLine = new LinkedHashMap<Integer,BatchRow>();
+			LinkedList<Future<RowResult>> pending = new LinkedList<Future<RowResult>>();
+			for (final BatchRow row : sortByLine(batch)) {
+				byLine.put(Integer.valueOf(row.getLineNumber()), row);
+				pending.addLast(pool.submit(new Callable<RowResult>() {
+					public RowResult call() throws BatchException {
+						return BatchEvolve.runRow(row, args, allocator);
+					}
+				}));
+			}
+			while (!pending.isEmpty()) {
+				RowResult result = BatchEvolve.nextResult(pending);
+				BatchRow row = byLine.get(Integer.valueOf(result.lineNumber));
+				groups.get(key(row)).add(Double.parseDouble(result.response[0]));
+				RowResult marked = new RowResult(result.lineNumber, result.params,
+						BatchEvolve.append(result.response, new String[] {RUN}));
+				marked.elapsedMillis = result.elapsedMillis;
+				marked.trace = result.trace;
+				marked.allocatedBytes = result.allocatedBytes;
+				BatchEvolve.writeResult(marked, journal, timingLog, traceLog, allocationStats);
+				run++;
+			}
+
+			// Stop the groups that are now precise enough, and write out
+			// their remaining rows as skipped
+			for (Group group : groups.values()) {
+				if (!group.stopped && group.count >= minReplicates
+						&& intervalWidth(group) <= width) {
+					group.stopped = true;
+					skipped += skipRest(group, journal, allocator, args);
+				}
+			}
+		}
+
+		// Groups stopped by an earlier run may still have rows to mark
+		for (Group group : groups.values()) {
+			if (group.stopped) {
+				skipped += skipRest(group, journal, allocator, args);
+			}
+		}
+
+		System.out.println("Adaptive replication ran " + run + " rows in " + round
+							+ " rounds and skipped " + skipped + " of " + window.size());
+	}
+
+	/**
+	 * Write the rows of a stopped group that have not been run as skipped,
+	 * with their parameters read back as for a row that is run.
+	 * @return number of rows written
+	 */
+	private static int skipRest(Group group, ResultJournal journal, ThreadAllocator allocator,
+											String[] args) throws BatchException {
+
+		int responseColumns = BatchEvolve.getResultsHeader(args).length - RESULTS_SKIPPED_PART.length;
+		String[] response = new String[responseColumns + RESULTS_SKIPPED_PART.length];
+		Arrays.fill(response, BatchEvolve.NULL_SYMBOL);
+		response[responseColumns] = SKIPPED;
+
+		int written = 0;
+		for (; group.next < group.rows.size(); group.next++) {
+			BatchRow row = group.rows.get(group.next);
+			if (allocator != null) {
+				allocator.skip();
+			}
+			if (!journal.isComplete(row.getValueByLabel(BatchEvolve.L_ID))) {
+				String[] params = BatchEvolve.usedParameters(row, BatchEvolve.buildParameters(row, args));
+				journal.write(new RowResult(row.getLineNumber(), params, response));
+				written++;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * @param group
+	 * @return width of the confidence interval on the group's mean response
+	 */
+	private double intervalWidth(Group group) {
+		int n = group.count;
+		double mean = group.sum / n;
+		double variance = Math.max(0, (group.sumSquares - n * mean * mean) / (n - 1));
+		return 2 * tQuantile(1 - (1 - confidence) / 2, n - 1) * Math.sqrt(variance / n);
+	}
+
+	/**
+	 * Group rows by every column except the ID and seed, keeping the groups
+	 * and the rows within them in input order.
+	 * @param window
+	 * @return
+	 */
+	private static Map<List<String>,Group> group(List<BatchRow> window) {
+		Map<List<String>,Group> groups = new LinkedHashMap<List<String>,Group>();
+		for (BatchRow row : window) {
+			List<String> key = key(row);
+			Group group = groups.get(key);
+			if (group == null) {
+				group = new Group();
+				groups.put(key, group);
+			}
+			group.rows.add(row);
+		}
+		return groups;
+	}
+
+	private static List<String> key(BatchRow row) {
+		String[] values = row.getValues().clone();
+		int id = row.getColumn(BatchEvolve.L_ID);
+		int seed = row.getColumn(BatchEvolve.L_SEED);
+		if (id >= 0 && id < values.length) {
+			values[id] = null;
+		}
+		if (seed >= 0 && seed < values.length) {
+			values[seed] = null;
+		}
+		return Arrays.asList(values);
+	}
+
+	private static List<BatchRow> sortByLine(List<BatchRow> rows) {
+		BatchRow[] sorted = rows.toArray(new BatchRow[rows.size()]);
+		Arrays.sort(sorted, new Comparator<BatchRow>() {
+			public int compare(BatchRow a, BatchRow b) {
+				return a.getLineNumber() - b.getLineNumber();
+			}
+		});
+		return Arrays.asList(sorted);
+	}
+
+	/**
+	 * Quantile of Student's t distribution, from the normal quantile by
+	 * the Cornish-Fisher expansion (Abramowitz and Stegun 26.7.5).  For a
+	 * 95% interval this is within 0.1% from 5 degrees of freedom up, but
+	 * it is too small with fewer, so minReplicates must be MIN_REPLICATES
+	 * or more.
+	 * @param p probability, above 0.5
+	 * @param df degrees of freedom
+	 * @return
+	 */
+	static double tQuantile(double p, int df) {
+		double z = normalQuantile(p);
+		double z2 = z * z;
+		double n = df;
+		return z + (z2 + 1) * z / (4 * n)
+				+ ((5 * z2 + 16) * z2 + 3) * z / (96 * n * n)
+				+ (((3 * z2 + 19) * z2 + 17) * z2 - 15) * z / (384 * n * n * n)
+				+ ((((79 * z2 + 776) * z2 + 1482) * z2 - 1920) * z2 - 945) * z / (92160 * n * n * n * n);
+	}
+
+	/**
+	 * Quantile of the standard normal distribution (Abramowitz and Stegun
+	 * 26.2.23, absolute error below 4.5e-4).
+	 * @param p probability, above 0.5
+	 * @return
+	 */
+	static double normalQuantile(double p) {
+		double t = Math.sqrt(-2 * Math.log(1 - p));
+		return t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+					/ (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+	}
+
+}
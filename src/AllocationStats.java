@@ -0,0 +1,87 @@
+package test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Heap allocation and garbage collection totals for a batch, reported at
+ * the end of the batch with "-allocationstats".  Each row's allocation is
+ * measured on the thread that runs it, so rows running side by side are
+ * told apart, but the work of any extra ECJ evaluation or breeding
+ * threads is missed.  Collections are counted for the whole JVM over the
+ * batch.  EvolveBenchmark reports allocation per iteration in the same
+ * way, which is the place to compare evaluators or settings.
+ * @author drw
+ *
+ */
+public class AllocationStats {
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final long startGcCount = gcCount();
+	private final long startGcMillis = gcMillis();
+	private final long startTime = System.currentTimeMillis();
+
+	private long rows = 0;
+	private long allocated = 0;
+	private long largest = 0;
+
+	/**
+	 * Add a finished row to the totals.
+	 * @param result
+	 */
+	public synchronized void add(RowResult result) {
+		rows++;
+		allocated += result.allocatedBytes;
+		largest = Math.max(largest, result.allocatedBytes);
+	}
+
+	/**
+	 * Print the totals since this was created.
+	 */
+	public synchronized void report() {
+		double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+		long gcMillis = gcMillis() - startGcMillis;
+		System.out.println(String.format("Allocated %.1f MB over %d rows (%.1f MB per row, largest %.1f MB)",
+				allocated / 1e6, rows, rows > 0 ? allocated / 1e6 / rows : 0.0, largest / 1e6));
+		System.out.println(String.format("%d garbage collections took %.2fs (%.1f%% of %.1fs)",
+				gcCount() - startGcCount, gcMillis / 1000.0,
+				seconds > 0 ? gcMillis / 10.0 / seconds : 0.0, seconds));
+	}
+
+	/**
+	 * @return bytes allocated so far by the current thread, or 0 if the
+	 * 			JVM cannot tell
+	 */
+	public static long threadAllocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			return Math.max(0, ((com.sun.management.ThreadMXBean)THREADS)
+									.getThreadAllocatedBytes(Thread.currentThread().getId()));
+		}
+		return 0;
+	}
+
+	/**
+	 * @return collections so far, over all collectors
+	 */
+	public static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * @return milliseconds spent collecting so far, over all collectors
+	 */
+	public static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+}
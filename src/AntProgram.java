@@ -0,0 +1,250 @@
+package test;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.app.ant.Ant;
+import ec.app.ant.func.IfFoodAhead;
+import ec.app.ant.func.Left;
+import ec.app.ant.func.Move;
+import ec.app.ant.func.Progn2;
+import ec.app.ant.func.Progn3;
+import ec.app.ant.func.Progn4;
+import ec.app.ant.func.Right;
+import ec.gp.GPIndividual;
+import ec.gp.GPNode;
+
+/**
+ * An artificial ant tree flattened into a list of actions and jumps, run
+ * against a bitmap of the food left on the trail.  The prognN nodes
+ * disappear (their children are simply laid out in order), and
+ * IfFoodAhead becomes a conditional jump.  The bitmap is reset by copying
+ * the starting trail, and the squares reached by moving from each square
+ * in each direction are worked out once, so running the ant allocates
+ * nothing.
+ *
+ * Every action counts as a move, exactly as in ec.app.ant.func, and food
+ * is only eaten by a move made before the move limit.  Once the limit is
+ * reached, or all the food is eaten, nothing the ant does can change its
+ * score, so the run stops there rather than finishing the tree.
+ * @author drw
+ *
+ */
+public class AntProgram {
+
+	/** Opcodes **/
+	public static final int OP_MOVE = 0;
+	public static final int OP_LEFT = 1;
+	public static final int OP_RIGHT = 2;
+	/** Followed by the position of the else branch **/
+	public static final int OP_IF_FOOD_AHEAD = 3;
+	/** Followed by the position to jump to **/
+	public static final int OP_JUMP = 4;
+
+	/** Orientation after turning left or right from each orientation **/
+	private static final int[] LEFT_OF = new int[4];
+	private static final int[] RIGHT_OF = new int[4];
+	static {
+		LEFT_OF[Ant.O_UP] = Ant.O_LEFT;
+		LEFT_OF[Ant.O_LEFT] = Ant.O_DOWN;
+		LEFT_OF[Ant.O_DOWN] = Ant.O_RIGHT;
+		LEFT_OF[Ant.O_RIGHT] = Ant.O_UP;
+		RIGHT_OF[Ant.O_UP] = Ant.O_RIGHT;
+		RIGHT_OF[Ant.O_RIGHT] = Ant.O_DOWN;
+		RIGHT_OF[Ant.O_DOWN] = Ant.O_LEFT;
+		RIGHT_OF[Ant.O_LEFT] = Ant.O_UP;
+	}
+
+	/** Square reached by moving from each square (x * maxy + y) in each orientation **/
+	private final int[][] ahead;
+
+	/** Food on the trail before the ant starts, one bit per square **/
+	private final long[] startFood;
+
+	/** Food still on the trail while the ant runs **/
+	private final long[] food;
+
+	/** Total food on the trail **/
+	private final int totalFood;
+
+	/** Move limit **/
+	private final int maxMoves;
+
+	/** Actions and jumps **/
+	private int[] code = new int[64];
+
+	/** Number of ints of code in the current program **/
+	private int length;
+
+	/**
+	 * Pack the trail of an Ant problem that has been set up and not yet
+	 * run (so its map holds only the starting food).
+	 * @param problem
+	 */
+	public AntProgram(Ant problem) {
+
+		int maxx = problem.maxx;
+		int maxy = problem.maxy;
+		int squares = maxx * maxy;
+		ahead = new int[4][squares];
+		startFood = new long[(squares + 63) / 64];
+		food = new long[startFood.length];
+		totalFood = problem.food;
+		maxMoves = problem.maxMoves;
+
+		for (int x = 0; x < maxx; x++) {
+			for (int y = 0; y < maxy; y++) {
+				int square = x * maxy + y;
+				ahead[Ant.O_UP][square] = x * maxy + (y - 1 + maxy) % maxy;
+				ahead[Ant.O_LEFT][square] = ((x - 1 + maxx) % maxx) * maxy + y;
+				ahead[Ant.O_DOWN][square] = x * maxy + (y + 1) % maxy;
+				ahead[Ant.O_RIGHT][square] = ((x + 1) % maxx) * maxy + y;
+				if (problem.map[x][y] == Ant.FOOD) {
+					startFood[square >>> 6] |= 1L << square;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flatten a tree into this program.
+	 * @param root
+	 * @return false if the tree holds a node this class does not know,
+	 * 			in which case the tree must be interpreted instead
+	 */
+	public boolean compile(GPNode root) {
+		length = 0;
+		return append(root);
+	}
+
+	private boolean append(GPNode node) {
+		if (node instanceof Move) {
+			emit(OP_MOVE);
+		} else if (node instanceof Left) {
+			emit(OP_LEFT);
+		} else if (node instanceof Right) {
+			emit(OP_RIGHT);
+		} else if (node instanceof Progn2 || node instanceof Progn3
+						|| node instanceof Progn4) {
+			for (int i=0; i<node.children.length; i++) {
+				if (!append(node.children[i])) {
+					return false;
+				}
+			}
+		} else if (node instanceof IfFoodAhead) {
+			emit(OP_IF_FOOD_AHEAD);
+			int elsePosition = length;
+			emit(0);
+			if (!append(node.children[0])) {
+				return false;
+			}
+			emit(OP_JUMP);
+			int endPosition = length;
+			emit(0);
+			code[elsePosition] = length;
+			if (!append(node.children[1])) {
+				return false;
+			}
+			code[endPosition] = length;
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private void emit(int value) {
+		if (length == code.length) {
+			int[] biggerCode = new int[length * 2];
+			System.arraycopy(code, 0, biggerCode, 0, length);
+			code = biggerCode;
+		}
+		code[length++] = value;
+	}
+
+	/**
+	 * Run the ant from the top left corner, facing right, repeating the
+	 * program until the move limit is reached or all the food is eaten.
+	 * @return the amount of food eaten
+	 */
+	public int run() {
+
+		final int[] code = this.code;
+		final long[] food = this.food;
+		System.arraycopy(startFood, 0, food, 0, food.length);
+
+		int square = 0;
+		int orientation = Ant.O_RIGHT;
+		int moves = 0;
+		int eaten = 0;
+		if (maxMoves <= 0 || totalFood == 0) {
+			return eaten;
+		}
+
+		run:
+		while (true) {
+			int pc = 0;
+			while (pc < length) {
+				switch (code[pc]) {
+				case OP_MOVE:
+					square = ahead[orientation][square];
+					if (++moves >= maxMoves) {
+						break run;
+					}
+					long bit = 1L << square;
+					if ((food[square >>> 6] & bit) != 0) {
+						food[square >>> 6] &= ~bit;
+						if (++eaten == totalFood) {
+							break run;
+						}
+					}
+					pc++;
+					break;
+				case OP_LEFT:
+					orientation = LEFT_OF[orientation];
+					if (++moves >= maxMoves) {
+						break run;
+					}
+					pc++;
+					break;
+				case OP_RIGHT:
+					orientation = RIGHT_OF[orientation];
+					if (++moves >= maxMoves) {
+						break run;
+					}
+					pc++;
+					break;
+				case OP_IF_FOOD_AHEAD:
+					int next = ahead[orientation][square];
+					if ((food[next >>> 6] & (1L << next)) != 0) {
+						pc += 2;
+					} else {
+						pc = code[pc+1];
+					}
+					break;
+				case OP_JUMP:
+					pc = code[pc+1];
+					break;
+				}
+			}
+		}
+		return eaten;
+	}
+
+	/**
+	 * Evaluate an individual and set its fitness, in the same way as
+	 * Ant.evaluate().
+	 * @param state
+	 * @param ind
+	 * @return false if the tree could not be compiled and was not evaluated
+	 */
+	public boolean evaluate(EvolutionState state, Individual ind) {
+
+		if (!compile(((GPIndividual)ind).trees[0].child)) {
+			return false;
+		}
+
+		int eaten = run();
+		FastEvaluation.setFitness(state, ind, (float)(totalFood - eaten), eaten);
+		return true;
+	}
+
+}
@@ -0,0 +1,427 @@
+package test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.Ostermiller.util.CSVParse;
+import com.Ostermiller.util.CSVParser;
+import com.Ostermiller.util.CSVPrinter;
+
+/**
+ * Serves the rows of a batch file to BatchWorker processes over a socket
+ * and merges their results into a single result file.  Workers ask for a
+ * row whenever they are free, so long rows no longer hold up a fixed
+ * window of the file.  Results are written in input order, and a row
+ * whose worker disconnects before returning a result is handed out again.
+ *
+ * Messages are single CSV lines whose first field is the message type:
+ * the coordinator sends HEADER (number of batch file labels, the labels,
+ * and the labels of the response columns) on connection, then answers
+ * each GET with ROW (line number and values), WAIT (rows are still out
+ * with other workers) or DONE.  Workers return RESULT (line number,
+ * number of parameter fields, parameters, response).  The response
+ * columns depend on commandline flags such as "-ecjthreads", so a worker
+ * whose flags give different ones refuses to run, and a result of the
+ * wrong width is never written to the result file.  A worker that cannot
+ * run a row, for example because the row is invalid, returns FAILED (line
+ * number and error) instead; the row is not handed out again, and the
+ * batch ends in an error once every other row has been written.  While
+ * running a row a worker sends ALIVE every few seconds; a worker silent
+ * for WORKER_TIMEOUT_MILLIS is treated as lost, as if it had disconnected.
+ * @author drw
+ *
+ */
+public class BatchCoordinator {
+
+	/** Message types **/
+	public static final String M_HEADER = "HEADER";
+	public static final String M_GET = "GET";
+	public static final String M_ROW = "ROW";
+	public static final String M_WAIT = "WAIT";
+	public static final String M_DONE = "DONE";
+	public static final String M_RESULT = "RESULT";
+	public static final String M_FAILED = "FAILED";
+	public static final String M_ALIVE = "ALIVE";
+
+	/**
+	 * Time a worker may stay silent before its row is handed out again,
+	 * several of its heartbeats (see BatchWorker.HEARTBEAT_MILLIS)
+	 */
+	public static final int WORKER_TIMEOUT_MILLIS = 60000;
+
+	/** Source of rows not yet handed out **/
+	private final CSVParse lineReader;
+
+	/** Next row to hand out from lineReader, or null once past the end **/
+	private String[] nextLine;
+	private int nextLineNumber;
+
+	/** Last line to process, inclusive **/
+	private final int end;
+
+	private final String[] header;
+	private final String[] resultsHeader;
+	private final Map<String,Integer> labelIndex;
+	private final ResultJournal journal;
+
+	/** Rows whose worker went away, to be handed out again first **/
+	private final LinkedList<BatchRow> retry = new LinkedList<BatchRow>();
+
+	/** Lines handed out whose results have not yet been written **/
+	private final TreeSet<Integer> outstanding = new TreeSet<Integer>();
+
+	/** Results received ahead of an earlier outstanding line **/
+	private final TreeMap<Integer,RowResult> finished = new TreeMap<Integer,RowResult>();
+
+	/** Errors of the rows workers could not run, by line **/
+	private final TreeMap<Integer,String> failed = new TreeMap<Integer,String>();
+
+	/** Error that stops the batch, such as a result file that cannot be written **/
+	private BatchException error;
+
+	/** Connections to workers still open **/
+	private final Set<Socket> sockets = new HashSet<Socket>();
+
+	/**
+	 * @param lineReader reader positioned after the start line
+	 * @param startLine values of the start line
+	 * @param start start line number
+	 * @param end last line number, inclusive
+	 * @param header labels of the batch file
+	 * @param resultsHeader labels of the response columns, from
+	 * 			BatchEvolve.getResultsHeader()
+	 * @param journal result file
+	 */
+	public BatchCoordinator(CSVParse lineReader, String[] startLine, int start, int end,
+							String[] header, String[] resultsHeader, ResultJournal journal) {
+		this.lineReader = lineReader;
+		this.nextLine = startLine;
+		this.nextLineNumber = start;
+		this.end = end;
+		this.header = header;
+		this.resultsHeader = resultsHeader;
+		this.labelIndex = BatchRow.indexLabels(header);
+		this.journal = journal;
+	}
+
+	/**
+	 * Accept workers on the given port until every row has a result
+	 * written to the journal, or has failed.  The caller closes the
+	 * journal.
+	 * @param port
+	 * @throws BatchException if any row failed, or the batch cannot be
+	 * 			read or its results written
+	 */
+	public void serve(int port) throws BatchException {
+
+		ServerSocket server = null;
+		try {
+			server = new ServerSocket(port);
+		} catch (Exception e) {
+			throw new BatchException("Unable to listen on port " + port, e);
+		}
+		System.err.println("Coordinator listening on port " + port);
+
+		Thread acceptor = new Thread(new Acceptor(server), "coordinator-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		synchronized (this) {
+			while (!isFinished() && error == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// keep waiting
+				}
+			}
+		}
+
+		try {
+			server.close();
+		} catch (Exception e) {
+			// nothing more to serve
+		}
+		synchronized (this) {
+			for (Socket socket : sockets) {
+				try {
+					socket.close();
+				} catch (Exception e) {
+					// already gone
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		if (!failed.isEmpty()) {
+			throw new BatchException(failed.size() + " rows failed on workers, first line "
+								+ failed.firstKey() + ": " + failed.get(failed.firstKey()));
+		}
+	}
+
+	/**
+	 * @return whether every row has been handed out and written back
+	 */
+	private synchronized boolean isFinished() {
+		return nextLine == null && retry.isEmpty() && outstanding.isEmpty();
+	}
+
+	/**
+	 * Return the next row to hand to a worker, or null if none are left
+	 * to hand out.  Rows already in the result file are skipped.
+	 * @return
+	 */
+	private synchronized BatchRow takeRow() {
+
+		if (error != null) {
+			return null;
+		}
+
+		if (!retry.isEmpty()) {
+			return retry.removeFirst();
+		}
+
+		while (nextLine != null) {
+			BatchRow row = new BatchRow(labelIndex, nextLine, nextLineNumber);
+			advance();
+			if (journal.isComplete(row.getValueByLabel(BatchEvolve.L_ID))) {
+				System.out.println("Skipping Line " + row.getLineNumber() + " with ID: "
+						+ row.getValueByLabel(BatchEvolve.L_ID) + ", already in result file");
+				continue;
+			}
+			outstanding.add(Integer.valueOf(row.getLineNumber()));
+			return row;
+		}
+		return null;
+	}
+
+	/**
+	 * Read the line after the one just handed out.  If it cannot be read,
+	 * nothing more is handed out and the batch stops.
+	 */
+	private void advance() {
+		if (nextLineNumber == end) {
+			nextLine = null;
+			return;
+		}
+		try {
+			nextLine = lineReader.getLine();
+			nextLineNumber++;
+			if (nextLine == null) {
+				stop(new BatchException("Reached end of file without processing to end line " + end));
+			}
+		} catch (Exception e) {
+			nextLine = null;
+			stop(new BatchException("Exception reading input file", e));
+		}
+	}
+
+	/**
+	 * Stop the batch with an error, which serve() throws once it has
+	 * closed the connections.
+	 * @param e
+	 */
+	private synchronized void stop(BatchException e) {
+		if (error == null) {
+			error = e;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Record a result from a worker and write out every result that is
+	 * now next in input order.
+	 * @param result
+	 */
+	private synchronized void complete(RowResult result) throws BatchException {
+		finished.put(Integer.valueOf(result.lineNumber), result);
+		writeFinished();
+	}
+
+	/**
+	 * Record a row a worker could not run, which is not handed out again,
+	 * and write out every result that is now next in input order.
+	 * @param row
+	 * @param error
+	 */
+	private synchronized void fail(BatchRow row, String error) throws BatchException {
+		System.err.println("Line " + row.getLineNumber() + " failed, not handing it out again: "
+								+ error);
+		failed.put(Integer.valueOf(row.getLineNumber()), error);
+		outstanding.remove(Integer.valueOf(row.getLineNumber()));
+		writeFinished();
+	}
+
+	/**
+	 * Write out the results that are next in input order.
+	 */
+	private synchronized void writeFinished() throws BatchException {
+		while (!outstanding.isEmpty() && finished.containsKey(outstanding.first())) {
+			journal.write(finished.remove(outstanding.first()));
+			outstanding.remove(outstanding.first());
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Hand a row out again after its worker went away.
+	 * @param row
+	 */
+	private synchronized void requeue(BatchRow row) {
+		System.err.println("Worker lost, requeueing line " + row.getLineNumber());
+		retry.addFirst(row);
+	}
+
+	/**
+	 * Accepts worker connections and starts a handler for each.
+	 */
+	private class Acceptor implements Runnable {
+
+		private final ServerSocket server;
+
+		Acceptor(ServerSocket server) {
+			this.server = server;
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					Socket socket = server.accept();
+					Thread handler = new Thread(new Handler(socket),
+								"coordinator-" + socket.getRemoteSocketAddress());
+					handler.setDaemon(true);
+					handler.start();
+				} catch (Exception e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Conversation with a single worker connection.
+	 */
+	private class Handler implements Runnable {
+
+		private final Socket socket;
+
+		Handler(Socket socket) {
+			this.socket = socket;
+		}
+
+		public void run() {
+			BatchRow current = null;
+			synchronized (BatchCoordinator.this) {
+				sockets.add(socket);
+			}
+			try {
+				socket.setSoTimeout(WORKER_TIMEOUT_MILLIS);
+				BufferedReader in = new BufferedReader(
+										new InputStreamReader(socket.getInputStream()));
+				CSVPrinter out = new CSVPrinter(new OutputStreamWriter(socket.getOutputStream()));
+				out.write(M_HEADER);
+				out.write(Integer.toString(header.length));
+				out.write(header);
+				out.writeln(resultsHeader);
+
+				String message;
+				while ((message = in.readLine()) != null) {
+					String[] fields = CSVParser.parse(message)[0];
+					if (fields[0].equals(M_RESULT)) {
+						RowResult result = decodeResult(fields);
+						if (result.response.length != resultsHeader.length) {
+							System.err.println("Rejecting result for line " + result.lineNumber
+									+ " with " + result.response.length + " response columns, expected "
+									+ resultsHeader.length);
+							break;
+						}
+						complete(result);
+						current = null;
+					} else if (fields[0].equals(M_FAILED) && current != null
+								&& Integer.parseInt(fields[1]) == current.getLineNumber()) {
+						fail(current, fields[2]);
+						current = null;
+					} else if (fields[0].equals(M_ALIVE)) {
+						// still running its row
+					} else if (fields[0].equals(M_GET)) {
+						current = takeRow();
+						if (current != null) {
+							out.write(M_ROW);
+							out.write(Integer.toString(current.getLineNumber()));
+							out.writeln(current.getValues());
+						} else if (isFinished()) {
+							out.writeln(M_DONE);
+						} else {
+							out.writeln(M_WAIT);
+						}
+					} else {
+						System.err.println("Unexpected message from worker: " + fields[0]);
+						break;
+					}
+				}
+			} catch (BatchException e) {
+				// the result file cannot be written
+				stop(e);
+			} catch (SocketTimeoutException e) {
+				System.err.println("No word from worker " + socket.getRemoteSocketAddress() + " for "
+						+ (WORKER_TIMEOUT_MILLIS / 1000) + "s");
+			} catch (Exception e) {
+				// treat as a lost worker
+			} finally {
+				if (current != null) {
+					requeue(current);
+				}
+				synchronized (BatchCoordinator.this) {
+					sockets.remove(socket);
+				}
+				try {
+					socket.close();
+				} catch (Exception e) {
+					// already gone
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encode a result as the fields of a RESULT message.
+	 * @param result
+	 * @return
+	 */
+	public static String[] encodeResult(RowResult result) {
+		String[] fields = new String[3 + result.params.length + result.response.length];
+		fields[0] = M_RESULT;
+		fields[1] = Integer.toString(result.lineNumber);
+		fields[2] = Integer.toString(result.params.length);
+		System.arraycopy(result.params, 0, fields, 3, result.params.length);
+		System.arraycopy(result.response, 0, fields, 3 + result.params.length,
+												result.response.length);
+		return fields;
+	}
+
+	/**
+	 * Decode the fields of a RESULT message.
+	 * @param fields
+	 * @return
+	 */
+	public static RowResult decodeResult(String[] fields) {
+		int lineNumber = Integer.parseInt(fields[1]);
+		int paramCount = Integer.parseInt(fields[2]);
+		String[] params = new String[paramCount];
+		String[] response = new String[fields.length - 3 - paramCount];
+		System.arraycopy(fields, 3, params, 0, paramCount);
+		System.arraycopy(fields, 3 + paramCount, response, 0, response.length);
+		return new RowResult(lineNumber, params, response);
+	}
+
+}
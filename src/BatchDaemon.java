@@ -0,0 +1,323 @@
+package test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.Ostermiller.util.CSVParser;
+import com.Ostermiller.util.CSVPrinter;
+
+/**
+ * Keeps a JVM running and runs batches submitted to it, so that short
+ * shards do not each pay for JVM startup, loading the ECJ classes and JIT
+ * compilation.  The daemon listens on a port of the local machine only,
+ * and only takes batches from clients that present the random token it
+ * writes to a file only its user can read (see tokenFile()), so other
+ * users of the machine cannot have it write their files or shut it down.
+ * A batch is submitted with the same arguments as a normal BatchEvolve
+ * run plus "-submit port"; the submitting process waits until the
+ * batch's results are written and exits with its status.  Batches run one
+ * at a time, in the order they arrive, and each still runs its rows on
+ * "-threads" threads.  Rows print their progress to the daemon's output.
+ *
+ * An error in a batch, such as a bad argument or row or a file that
+ * cannot be read, ends that batch only: the daemon answers ERROR and goes
+ * on to the next.  Errors ECJ itself reports while running a row still
+ * exit the JVM, so check batches with "-preflight" first.  The parameter
+ * files are read once, so restart the daemon if they change.
+ *
+ * Messages are single CSV lines whose first field is the message type.
+ * The client sends JOB (the token, then the arguments) or SHUTDOWN (the
+ * token); the daemon answers
+ * RUNNING when the batch starts, then DONE (seconds taken) or ERROR
+ * (reason).
+ * @author drw
+ *
+ */
+public class BatchDaemon {
+
+	/** Message types **/
+	public static final String M_JOB = "JOB";
+	public static final String M_SHUTDOWN = "SHUTDOWN";
+	public static final String M_RUNNING = "RUNNING";
+	public static final String M_DONE = "DONE";
+	public static final String M_ERROR = "ERROR";
+
+	/** Arguments naming files, made absolute before a batch is submitted **/
+	public static final String[] FILE_ARGUMENTS = {
+		BatchEvolve.A_BATCHFILE, BatchEvolve.A_OUTPUT_FILE, BatchEvolve.A_TIMING_FILE,
+		BatchEvolve.A_COST_MODEL, BatchEvolve.A_COLUMN_FILE, BatchEvolve.A_TRACE_FILE,
+		BatchEvolve.A_DESIGN };
+
+	/** Arguments for other modes, which cannot be run by the daemon **/
+	public static final String[] REJECTED_ARGUMENTS = {
+		BatchEvolve.A_SERVE, BatchEvolve.A_WORKER, BatchEvolve.A_VERIFY,
+		BatchEvolve.A_DAEMON, BatchEvolve.A_SUBMIT };
+
+	/** Random bytes in the token a client must present **/
+	public static final int TOKEN_BYTES = 32;
+
+	/** Token a client must present, written to tokenFile() **/
+	private String token;
+
+	/** Held while a batch runs, so batches run one at a time **/
+	private final Object running = new Object();
+
+	/** Batches finished since the daemon started **/
+	private int batches = 0;
+
+	/**
+	 * Accept batches on the given port of the local machine until told to
+	 * shut down.
+	 * @param port
+	 */
+	public void serve(int port) throws BatchException {
+
+		ServerSocket server = null;
+		try {
+			server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		} catch (Exception e) {
+			throw new BatchException("Unable to listen on port " + port, e);
+		}
+		token = writeToken(port);
+		System.err.println("Daemon listening on local port " + port);
+
+		while (true) {
+			try {
+				Socket socket = server.accept();
+				Thread handler = new Thread(new Handler(socket), "daemon-" + socket.getPort());
+				handler.setDaemon(true);
+				handler.start();
+			} catch (Exception e) {
+				System.err.println("Error accepting connection: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Conversation with a single client, which submits one batch or asks
+	 * the daemon to shut down.
+	 */
+	private class Handler implements Runnable {
+
+		private final Socket socket;
+
+		Handler(Socket socket) {
+			this.socket = socket;
+		}
+
+		public void run() {
+			try {
+				BufferedReader in = new BufferedReader(
+										new InputStreamReader(socket.getInputStream()));
+				CSVPrinter out = new CSVPrinter(new OutputStreamWriter(socket.getOutputStream()));
+				String message = in.readLine();
+				if (message == null) {
+					return;
+				}
+				String[] fields = CSVParser.parse(message)[0];
+
+				if (fields.length < 2 || !MessageDigest.isEqual(fields[1].getBytes(StandardCharsets.US_ASCII),
+											token.getBytes(StandardCharsets.US_ASCII))) {
+					System.err.println("Refused a client without the daemon's token");
+					out.write(M_ERROR);
+					out.writeln("Not authorised; only the daemon's user can submit to it");
+					return;
+				}
+
+				if (fields[0].equals(M_SHUTDOWN)) {
+					// Let the batch running now, if any, finish first
+					synchronized (running) {
+						System.err.println("Shutting down after " + batches + " batches");
+						out.write(M_DONE);
+						out.writeln("0");
+						System.exit(0);
+					}
+				} else if (!fields[0].equals(M_JOB)) {
+					out.write(M_ERROR);
+					out.writeln("Unexpected message " + fields[0]);
+					return;
+				}
+
+				String[] args = new String[fields.length - 2];
+				System.arraycopy(fields, 2, args, 0, args.length);
+				for (String rejected : REJECTED_ARGUMENTS) {
+					if (Arrays.asList(args).contains(rejected)) {
+						out.write(M_ERROR);
+						out.writeln(rejected + " cannot be used with a daemon");
+						return;
+					}
+				}
+
+				synchronized (running) {
+					System.err.println("Starting batch: " + Arrays.toString(args));
+					out.writeln(M_RUNNING);
+					long startTime = System.currentTimeMillis();
+					try {
+						BatchEvolve.runBatch(args);
+					} catch (BatchException e) {
+						System.err.println("Batch failed: " + e.getMessage());
+						out.write(M_ERROR);
+						out.writeln(e.getMessage());
+						return;
+					}
+					batches++;
+					out.write(M_DONE);
+					out.writeln(Double.toString((System.currentTimeMillis() - startTime) / 1000.0));
+				}
+			} catch (Exception e) {
+				System.err.println("Lost connection to client: " + e);
+			} finally {
+				try {
+					socket.close();
+				} catch (Exception e) {
+					// already gone
+				}
+			}
+		}
+	}
+
+	/**
+	 * Submit a batch to a daemon on the local machine and wait for it to
+	 * finish.  The "-submit" argument is removed and file names are made
+	 * absolute, since the daemon may run in another directory.  The
+	 * daemon's token is read from tokenFile(), which only the user who
+	 * started the daemon can read.
+	 * @param port
+	 * @param args commandline arguments
+	 * @return exit status for this process
+	 */
+	public static int submit(int port, String[] args) {
+
+		String token = null;
+		try {
+			token = new String(Files.readAllBytes(tokenFile(port).toPath()), StandardCharsets.US_ASCII).trim();
+		} catch (IOException e) {
+			System.err.println("Unable to read the daemon's token from " + tokenFile(port)
+								+ "; is a daemon running on local port " + port + " as this user?");
+			return -1;
+		}
+
+		List<String> job = new ArrayList<String>();
+		job.add(M_JOB);
+		job.add(token);
+		boolean shutdown = false;
+		for (int i=0; i<args.length; i++) {
+			if (args[i].equals(BatchEvolve.A_SUBMIT)) {
+				i++;
+			} else if (args[i].equals(BatchEvolve.A_SHUTDOWN)) {
+				shutdown = true;
+			} else if (Arrays.asList(FILE_ARGUMENTS).contains(args[i]) && i+1 < args.length) {
+				job.add(args[i]);
+				job.add(new File(args[++i]).getAbsolutePath());
+			} else {
+				job.add(args[i]);
+			}
+		}
+
+		Socket socket = null;
+		try {
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			CSVPrinter out = new CSVPrinter(new OutputStreamWriter(socket.getOutputStream()));
+			if (shutdown) {
+				out.write(M_SHUTDOWN);
+				out.writeln(token);
+			} else {
+				out.writeln(job.toArray(new String[job.size()]));
+			}
+
+			String message;
+			while ((message = in.readLine()) != null) {
+				String[] fields = CSVParser.parse(message)[0];
+				if (fields[0].equals(M_RUNNING)) {
+					System.out.println("Batch running on daemon");
+				} else if (fields[0].equals(M_DONE)) {
+					if (!shutdown) {
+						System.out.println("Batch finished in " + fields[1] + "s");
+					}
+					return 0;
+				} else if (fields[0].equals(M_ERROR)) {
+					System.err.println("Batch failed on daemon: " + fields[1]);
+					return -1;
+				}
+			}
+			if (shutdown) {
+				return 0;
+			}
+			System.err.println("Daemon went away before the batch finished; see its output");
+		} catch (Exception e) {
+			System.err.println("Unable to submit to daemon on local port " + port + ": " + e);
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (Exception e) {
+					// already gone
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param port
+	 * @return file holding the token of the daemon on a local port, in the
+	 * 			home directory of the user running it
+	 */
+	public static File tokenFile(int port) {
+		return new File(System.getProperty("user.home"), ".batchevolve-daemon-" + port);
+	}
+
+	/**
+	 * Make a random token and write it to a new tokenFile() that only this
+	 * user can read, removed when the daemon exits.
+	 * @param port
+	 * @return the token
+	 */
+	private static String writeToken(int port) throws BatchException {
+
+		byte[] bytes = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b & 0xff));
+		}
+
+		Path path = tokenFile(port).toPath();
+		try {
+			Files.deleteIfExists(path);
+			try {
+				Files.createFile(path, PosixFilePermissions.asFileAttribute(
+										PosixFilePermissions.fromString("rw-------")));
+			} catch (UnsupportedOperationException e) {
+				// Not a POSIX file system; restrict it as far as Java can
+				File file = Files.createFile(path).toFile();
+				file.setReadable(false, false);
+				file.setWritable(false, false);
+				file.setReadable(true, true);
+				file.setWritable(true, true);
+			}
+			Files.write(path, token.toString().getBytes(StandardCharsets.US_ASCII));
+		} catch (IOException e) {
+			throw new BatchException("Unable to write the daemon's token file " + path, e);
+		}
+		path.toFile().deleteOnExit();
+		return token.toString();
+	}
+
+}
@@ -0,0 +1,435 @@
+package test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+import com.Ostermiller.util.BadDelimiterException;
+import com.Ostermiller.util.BadQuoteException;
+import com.Ostermiller.util.CSVPrinter;
+
+/**
+ * A full factorial batch generated from a design spec, in place of a batch
+ * file expanded beforehand.  Any row can be made directly from its line
+ * number, so no batch file is written, a shard starts at its first row
+ * without reading the rows before it, and IDs map straight to lines.
+ *
+ * The spec is a properties file:
+ *   factor.label = level,level,...   levels of a batch column
+ *   derive.label = expression        a column computed from others
+ *   repetitions = n                  rows per combination of levels (1)
+ *   seed = n                         seed from which row seeds are made (0)
+ *   id.start = n                     ID of the first row (1)
+ *   columns = label,label,...        column order (the published header)
+ * An expression is a constant, a column label, or labels and numbers
+ * joined by " + " and " - " (with spaces, as labels contain '-'), such as
+ * "1 - pop.subpop.0.species.pipe.source.0.prob".  It may only use factor
+ * columns and derived columns to its left, and is NaN if any of them is.
+ * Columns added or subtracted may only take numbers or NaN.
+ * ID and seed.0 are made by the design; any other column that is neither
+ * a factor nor derived is NaN.
+ *
+ * Rows run through the factors in column order, the last varying
+ * fastest, with the repetitions of each combination next to each other.
+ * Each row's seed is a hash of the spec's seed and the row's position, so
+ * it does not depend on which rows are read.  Since the checks on a row
+ * depend on its algorithm (see BatchEvolve), a spec normally fixes the
+ * Algorithm and Problem with single levels, as each published batch file
+ * does.
+ *
+ * Commandline use, to print rows of a design as a batch file:
+ *   java test.BatchDesign spec.properties [start end]
+ * @author drw
+ *
+ */
+public class BatchDesign implements BatchSource {
+
+	/** Keys in a spec **/
+	public static final String K_FACTOR = "factor.";
+	public static final String K_DERIVE = "derive.";
+	public static final String K_REPETITIONS = "repetitions";
+	public static final String K_SEED = "seed";
+	public static final String K_ID_START = "id.start";
+	public static final String K_COLUMNS = "columns";
+
+	/** Kinds of column **/
+	private static final int C_NAN = 0;
+	private static final int C_ID = 1;
+	private static final int C_SEED = 2;
+	private static final int C_FACTOR = 3;
+	private static final int C_DERIVED = 4;
+
+	private final String[] labels;
+
+	/** Column index of each label **/
+	private final Map<String,Integer> index;
+
+	/** Kind of each column **/
+	private final int[] kinds;
+
+	/** Levels of each factor column, null for other columns **/
+	private final String[][] levels;
+
+	/** Terms of each derived column's expression, null for other columns **/
+	private final String[][] expressions;
+
+	/** Rows generated for each combination of levels **/
+	private final int repetitions;
+
+	private final long seed;
+	private final long idStart;
+
+	/** Number of rows in the design **/
+	private final int size;
+
+	/** Line number of the row last returned by getLine(), 0 before the first **/
+	private int lastLine = 0;
+
+	/** Values of that row not yet returned by nextValue() **/
+	private String[] pendingValues = null;
+	private int pendingValue = 0;
+
+	/**
+	 * Read and check a design spec.
+	 * @param filename
+	 * @throws IOException if the spec cannot be read or is invalid
+	 */
+	public BatchDesign(String filename) throws IOException {
+
+		Properties spec = new Properties();
+		FileInputStream in = new FileInputStream(filename);
+		try {
+			spec.load(in);
+		} finally {
+			in.close();
+		}
+
+		String columns = spec.getProperty(K_COLUMNS);
+		labels = columns == null ? BatchEvolve.BATCH_LABELS.clone() : split(columns);
+		index = BatchRow.indexLabels(labels);
+		kinds = new int[labels.length];
+		levels = new String[labels.length][];
+		expressions = new String[labels.length][];
+		for (int i=0; i<labels.length; i++) {
+			if (labels[i].equals(BatchEvolve.L_ID)) {
+				kinds[i] = C_ID;
+			} else if (labels[i].equals(BatchEvolve.L_SEED)) {
+				kinds[i] = C_SEED;
+			}
+		}
+		if (!index.containsKey(BatchEvolve.L_ID) || !index.containsKey(BatchEvolve.L_SEED)) {
+			throw new IOException("Design columns must include " + BatchEvolve.L_ID
+									+ " and " + BatchEvolve.L_SEED);
+		}
+
+		long combinations = 1;
+		for (String key : spec.stringPropertyNames()) {
+			boolean factor = key.startsWith(K_FACTOR);
+			if (!factor && !key.startsWith(K_DERIVE)) {
+				continue;
+			}
+			String label = key.substring(factor ? K_FACTOR.length() : K_DERIVE.length());
+			Integer column = index.get(label);
+			if (column == null) {
+				throw new IOException("Design has no column " + label);
+			}
+			int c = column.intValue();
+			if (kinds[c] != C_NAN) {
+				throw new IOException("Column " + label + " is given twice or made by the design");
+			}
+			if (factor) {
+				kinds[c] = C_FACTOR;
+				levels[c] = split(spec.getProperty(key));
+				combinations *= levels[c].length;
+			} else {
+				kinds[c] = C_DERIVED;
+				expressions[c] = spec.getProperty(key).trim().split("\\s+");
+			}
+		}
+
+		// Check each expression only uses columns already made, and only
+		// adds and subtracts columns whose values are all numbers or NaN
+		boolean[] numeric = new boolean[labels.length];
+		for (int c=0; c<labels.length; c++) {
+			if (kinds[c] == C_FACTOR) {
+				numeric[c] = true;
+				for (String level : levels[c]) {
+					numeric[c] &= isNumberOrNull(level);
+				}
+			}
+		}
+		for (int c=0; c<labels.length; c++) {
+			if (kinds[c] != C_DERIVED) {
+				continue;
+			}
+			String[] terms = expressions[c];
+			for (int t=0; t<terms.length; t++) {
+				Integer used = index.get(terms[t]);
+				if (t % 2 == 1) {
+					if (!terms[t].equals("+") && !terms[t].equals("-")) {
+						throw new IOException("Expected + or - in " + K_DERIVE + labels[c]
+												+ ", found " + terms[t]);
+					}
+				} else if (used != null && (used.intValue() >= c
+							|| (kinds[used.intValue()] != C_FACTOR && kinds[used.intValue()] != C_DERIVED))) {
+					throw new IOException(K_DERIVE + labels[c] + " uses " + terms[t]
+								+ ", which is not a factor or derived column to its left");
+				} else if (used == null && terms.length > 1 && !isNumber(terms[t])) {
+					throw new IOException(K_DERIVE + labels[c] + " uses unknown column " + terms[t]);
+				} else if (used != null && terms.length > 1 && !numeric[used.intValue()]) {
+					throw new IOException(K_DERIVE + labels[c] + " adds or subtracts " + terms[t]
+								+ ", which can be something other than a number or "
+								+ BatchEvolve.NULL_SYMBOL);
+				}
+			}
+			if (terms.length % 2 == 0) {
+				throw new IOException(K_DERIVE + labels[c] + " ends with an operator");
+			}
+			Integer copied = index.get(terms[0]);
+			numeric[c] = terms.length > 1 || (copied == null ? isNumberOrNull(terms[0])
+															: numeric[copied.intValue()]);
+		}
+
+		repetitions = Integer.parseInt(spec.getProperty(K_REPETITIONS, "1").trim());
+		seed = Long.parseLong(spec.getProperty(K_SEED, "0").trim());
+		idStart = Long.parseLong(spec.getProperty(K_ID_START, "1").trim());
+		if (repetitions < 1 || combinations * repetitions > Integer.MAX_VALUE) {
+			throw new IOException("Design must have between 1 and " + Integer.MAX_VALUE
+									+ " rows, not " + combinations * repetitions);
+		}
+		size = (int)(combinations * repetitions);
+	}
+
+	/**
+	 * @return number of rows in the design
+	 */
+	public int size() {
+		return size;
+	}
+
+	public String[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @param id
+	 * @return line number of the row with this ID, or -1 if there is none
+	 */
+	public int getLine(long id) {
+		long line = id - idStart + 1;
+		return line >= 1 && line <= size ? (int)line : -1;
+	}
+
+	/**
+	 * Make a row of the design.
+	 * @param line line number, from 1
+	 * @return values of the row, in column order
+	 */
+	public String[] getRow(int line) {
+
+		if (line < 1 || line > size) {
+			throw new IllegalArgumentException("No line " + line + " in design of " + size + " rows");
+		}
+		long position = line - 1;
+		long combination = position / repetitions;
+
+		// Decode the combination, the last factor varying fastest
+		String[] values = new String[labels.length];
+		for (int c=labels.length - 1; c>=0; c--) {
+			if (kinds[c] == C_FACTOR) {
+				values[c] = levels[c][(int)(combination % levels[c].length)].trim();
+				combination /= levels[c].length;
+			}
+		}
+		for (int c=0; c<labels.length; c++) {
+			switch (kinds[c]) {
+			case C_ID:
+				values[c] = Long.toString(idStart + position);
+				break;
+			case C_SEED:
+				values[c] = Integer.toString(rowSeed(seed, position));
+				break;
+			case C_DERIVED:
+				values[c] = evaluate(expressions[c], values);
+				break;
+			case C_NAN:
+				values[c] = BatchEvolve.NULL_SYMBOL;
+				break;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Move to a line, so the next getLine() returns it.
+	 * @param line from 1
+	 */
+	public void seek(int line) {
+		lastLine = line - 1;
+		pendingValues = null;
+	}
+
+	/**
+	 * @param values values of the row, complete to the left of the column
+	 * 			being derived
+	 * @return
+	 */
+	private String evaluate(String[] terms, String[] values) {
+		if (terms.length == 1) {
+			return value(terms[0], values);
+		}
+		BigDecimal result = null;
+		for (int t=0; t<terms.length; t+=2) {
+			String value = value(terms[t], values);
+			if (value.equals(BatchEvolve.NULL_SYMBOL)) {
+				return BatchEvolve.NULL_SYMBOL;
+			}
+			BigDecimal term = new BigDecimal(value);
+			if (result == null) {
+				result = term;
+			} else if (terms[t - 1].equals("+")) {
+				result = result.add(term);
+			} else {
+				result = result.subtract(term);
+			}
+		}
+		return result.signum() == 0 ? "0" : result.stripTrailingZeros().toPlainString();
+	}
+
+	/**
+	 * @return the value of a column of the row, or the term itself if it is
+	 * 			a constant
+	 */
+	private String value(String term, String[] values) {
+		Integer column = index.get(term);
+		return column == null ? term : values[column.intValue()];
+	}
+
+	/**
+	 * Seed for a row, mixed from the design seed and the row's position by
+	 * the SplitMix64 finalizer, so that neighbouring rows get unrelated
+	 * seeds.
+	 * @param seed
+	 * @param position position of the row, from 0
+	 * @return
+	 */
+	static int rowSeed(long seed, long position) {
+		long z = seed + (position + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return (int)(z ^ (z >>> 31));
+	}
+
+	private static String[] split(String list) {
+		String[] parts = list.split(",");
+		for (int i=0; i<parts.length; i++) {
+			parts[i] = parts[i].trim();
+		}
+		return parts;
+	}
+
+	private static boolean isNumberOrNull(String term) {
+		return term.equals(BatchEvolve.NULL_SYMBOL) || isNumber(term);
+	}
+
+	private static boolean isNumber(String term) {
+		try {
+			new BigDecimal(term);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	public String[] getLine() {
+		pendingValues = null;
+		if (lastLine >= size) {
+			return null;
+		}
+		return getRow(++lastLine);
+	}
+
+	public String[][] getAllValues() {
+		String[][] rows = new String[size - lastLine][];
+		for (int i=0; i<rows.length; i++) {
+			rows[i] = getLine();
+		}
+		return rows.length == 0 ? null : rows;
+	}
+
+	/**
+	 * Values are returned one at a time along each row, moving to the next
+	 * row after the last value.
+	 */
+	public String nextValue() {
+		if (pendingValues == null || pendingValue == pendingValues.length) {
+			String[] row = getLine();
+			if (row == null) {
+				return null;
+			}
+			pendingValues = row;
+			pendingValue = 0;
+		}
+		return pendingValues[pendingValue++];
+	}
+
+	public int lastLineNumber() {
+		return lastLine;
+	}
+
+	public int getLastLineNumber() {
+		return lastLine;
+	}
+
+	/**
+	 * Rows are not parsed, so this does nothing.
+	 */
+	public void changeDelimiter(char newDelim) throws BadDelimiterException {
+	}
+
+	/**
+	 * Rows are not parsed, so this does nothing.
+	 */
+	public void changeQuote(char newQuote) throws BadQuoteException {
+	}
+
+	public void close() {
+	}
+
+	public static void main(String[] args) {
+
+		if (args.length != 1 && args.length != 3) {
+			System.err.println("Usage: java test.BatchDesign spec.properties [start end]");
+			System.exit(-1);
+		}
+		BatchDesign design = null;
+		try {
+			design = new BatchDesign(args[0]);
+		} catch (Exception e) {
+			System.err.println("Error reading design " + args[0]);
+			System.err.println(e);
+			System.exit(-1);
+		}
+		int start = args.length == 3 ? Integer.parseInt(args[1]) : 1;
+		int end = args.length == 3 ? Integer.parseInt(args[2]) : design.size();
+		System.err.println("Design has " + design.size() + " rows");
+		try {
+			CSVPrinter out = new CSVPrinter(new OutputStreamWriter(System.out));
+			out.writeln(design.getLabels());
+			for (int line=start; line<=Math.min(end, design.size()); line++) {
+				out.writeln(design.getRow(line));
+			}
+			out.flush();
+		} catch (Exception e) {
+			System.err.println("Error writing rows " + Arrays.toString(args));
+			System.err.println(e);
+			System.exit(-1);
+		}
+		System.exit(0);
+	}
+
+}
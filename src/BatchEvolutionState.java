@@ -0,0 +1,41 @@
+package test;
+
+import ec.EvolutionState;
+import ec.simple.SimpleEvolutionState;
+import ec.util.Parameter;
+
+/**
+ * The EvolutionState of a row run as an island of an IslandModel or under
+ * a RowBudget.  ECJ builds a state's exchanger from the parameter files
+ * in setup(), which run() calls when the state starts fresh, so an
+ * exchanger set on the state before it runs would be thrown away.  This
+ * state puts the IslandExchanger and BudgetExchanger in place once ECJ
+ * has set everything else up.  BatchEvolve names it as the "state" in
+ * place of SimpleEvolutionState (see setBatchEvolutionState) and its
+ * fields are set after Evolve.initialize(), before the run starts;
+ * otherwise it runs exactly as SimpleEvolutionState does.
+ * @author drw
+ *
+ */
+public class BatchEvolutionState extends SimpleEvolutionState {
+
+	/** Islands this state is one of, or null for a single population **/
+	IslandModel islandModel;
+
+	/** Position of this state in the ring of islands, 0 if there is one population **/
+	int island;
+
+	/** Budget the row runs under, or null for none **/
+	RowBudget budget;
+
+	public void setup(EvolutionState state, Parameter base) {
+		super.setup(state, base);
+		if (islandModel != null) {
+			exchanger = new IslandExchanger(islandModel, island);
+		}
+		if (budget != null) {
+			exchanger = new BudgetExchanger(budget, island, exchanger);
+		}
+	}
+
+}
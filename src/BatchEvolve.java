@@ -2,11 +2,21 @@ package test;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import com.Ostermiller.util.CSVParser;
+import com.Ostermiller.util.CSVParse;
 import com.Ostermiller.util.CSVPrinter;
-import com.Ostermiller.util.LabeledCSVParser;
 
 import ec.EvolutionState;
 import ec.Evolve;
@@ -33,12 +43,152 @@ public class BatchEvolve extends Evolve {
     /** Commandline argument for last line to process in the input file **/
     public static final String A_END = "-end";
     
+    /** Commandline argument for ID of first row to process, in place of -start **/
+    public static final String A_START_ID = "-startid";
+    
+    /** Commandline argument for ID of last row to process, in place of -end **/
+    public static final String A_END_ID = "-endid";
+    
+    /** Commandline flag to seek to the start line using the batch file index **/
+    public static final String A_INDEX = "-index";
+    
     /** Commandline argument for batch file **/
     public static final String A_BATCHFILE = "-batchfile";
     
     /** Commandline argument for output file **/
     public static final String A_OUTPUT_FILE = "-resultfile";
     
+    /** Commandline argument for number of rows to run at once **/
+    public static final String A_THREADS = "-threads";
+    
+    /** Commandline flag to keep an existing result file and skip its rows **/
+    public static final String A_RESUME = "-resume";
+    
+    /** Commandline argument for number of results written between syncs **/
+    public static final String A_SYNC_EVERY = "-syncevery";
+    
+    /** Commandline argument for port to serve rows to workers on **/
+    public static final String A_SERVE = "-serve";
+    
+    /** Commandline argument for coordinator (host:port) to take rows from **/
+    public static final String A_WORKER = "-worker";
+    
+    /** Commandline argument for ECJ eval/breed threads per row, a number or "auto" **/
+    public static final String A_ECJ_THREADS = "-ecjthreads";
+    
+    /** Value of getEcjThreads() for "-ecjthreads auto" **/
+    public static final int ECJ_THREADS_AUTO = -1;
+    
+    /** Commandline argument for file to log each row's run time to **/
+    public static final String A_TIMING_FILE = "-timingfile";
+    
+    /** Commandline flag to start the most expensive rows of the window first **/
+    public static final String A_LONGEST_FIRST = "-longestfirst";
+    
+    /** Commandline argument for cost model used by -longestfirst **/
+    public static final String A_COST_MODEL = "-costmodel";
+    
+    /** Commandline flag to use fast evaluators where there is one for the problem **/
+    public static final String A_FAST_EVAL = "-fasteval";
+    
+    /** Commandline flag to check fast evaluators against the original problem **/
+    public static final String A_FAST_EVAL_CHECK = "-fastevalcheck";
+    
+    /** Commandline flag to evaluate regression fitness cases all at once **/
+    public static final String A_FAST_EVAL_VECTOR = "-fastevalvector";
+    
+    /** Commandline argument for the number of regression fitness cases **/
+    public static final String A_FITNESS_CASES = "-fitnesscases";
+    
+    /** Commandline argument for a columnar copy of the result file **/
+    public static final String A_COLUMN_FILE = "-columnfile";
+    
+    /** Commandline argument for a result file to rerun and check **/
+    public static final String A_VERIFY = "-verify";
+    
+    /** Commandline argument for the fraction of rows to check with -verify **/
+    public static final String A_SAMPLE = "-sample";
+    
+    /** Commandline flag to sample the same fraction of each problem **/
+    public static final String A_STRATIFIED = "-stratified";
+    
+    /** Commandline argument for the seed used to sample rows **/
+    public static final String A_SAMPLE_SEED = "-sampleseed";
+    
+    /** Commandline argument for a CSV report of every row checked **/
+    public static final String A_VERIFY_REPORT = "-verifyreport";
+    
+    /** Commandline argument to record a JFR event for every generation **/
+    public static final String A_GENERATION_EVENTS = "-generationevents";
+    
+    /** Commandline argument for the per-generation trace file **/
+    public static final String A_TRACE_FILE = "-tracefile";
+    
+    /** Commandline argument to stop replicating a configuration once the
+     *  confidence interval on its mean response is this wide **/
+    public static final String A_CI_WIDTH = "-ciwidth";
+    
+    /** Commandline argument for the confidence level of that interval **/
+    public static final String A_CI_LEVEL = "-cilevel";
+    
+    /** Commandline argument for the replicates run before any are skipped **/
+    public static final String A_MIN_REPLICATES = "-minreplicates";
+    
+    /** Commandline argument for the replicates added in each later round **/
+    public static final String A_ROUND_SIZE = "-roundsize";
+    
+    /** Commandline argument to report heap allocation and GC for a batch **/
+    public static final String A_ALLOCATION_STATS = "-allocationstats";
+    
+    /** Commandline argument to run as a daemon accepting batches **/
+    public static final String A_DAEMON = "-daemon";
+    
+    /** Commandline argument to submit a batch to a running daemon **/
+    public static final String A_SUBMIT = "-submit";
+    
+    /** Commandline argument, with "-submit", to stop the daemon **/
+    public static final String A_SHUTDOWN = "-shutdown";
+    
+    /** Commandline argument for a design spec generating the batch rows **/
+    public static final String A_DESIGN = "-design";
+    
+    /** Commandline flag to breed from LinearGenome copies of the trees **/
+    public static final String A_LINEAR_GENOME = "-lineargenome";
+    
+    /** Commandline flag, with "-lineargenome", to breed from the nodes of old populations **/
+    public static final String A_NODE_POOL = "-nodepool";
+    
+    /** Commandline flag to check every row of the window before running any **/
+    public static final String A_PREFLIGHT = "-preflight";
+    
+    /** Commandline argument for the error allowed in probabilities adding up to 1 **/
+    public static final String A_TOLERANCE = "-tolerance";
+    public static final double DEFAULT_TOLERANCE = 1e-6;
+    
+    /** Commandline argument for the individuals each island sends at a migration **/
+    public static final String A_MIGRANTS = "-migrants";
+    public static final int DEFAULT_MIGRANTS = 1;
+    
+    /** Commandline arguments for the budgets of each row, see RowBudget **/
+    public static final String A_MAX_SECONDS = "-maxseconds";
+    public static final String A_MAX_EVALUATIONS = "-maxevaluations";
+    public static final String A_MAX_NODES = "-maxnodes";
+    
+    /** Defaults for adaptive replication **/
+    public static final double DEFAULT_CI_LEVEL = 0.95;
+    public static final int DEFAULT_MIN_REPLICATES = 10;
+    public static final int DEFAULT_ROUND_SIZE = 10;
+    
+    /** Pipeline used by "-lineargenome" in place of each Koza operator **/
+    public static final Map<String,String> LINEAR_OPERATORS = new HashMap<String,String>();
+    static {
+    	LINEAR_OPERATORS.put("ec.gp.koza.CrossoverPipeline", "test.LinearCrossoverPipeline");
+    	LINEAR_OPERATORS.put("ec.gp.koza.MutationPipeline", "test.LinearMutationPipeline");
+    }
+    
+    /** Finished rows buffered per worker thread before the writer blocks **/
+    public static final int PENDING_ROWS_PER_THREAD = 2;
+    
     /** Path to the ECJ default parameter files **/
     public static final String PARAMETER_PATH = 
     					"/n/staffstore/drw/GPTest/ParameterFiles/problem_";
@@ -64,6 +214,43 @@ public class BatchEvolve extends Evolve {
     public static final String L_NONTERMINALS = "gp.koza.ns.nonterminals";
     public static final String L_REPRO_PROBABILITY = "pop.subpop.0.species.pipe.source.1.prob";
     public static final String L_OP = "pop.subpop.0.species.pipe.source.0";
+    
+    /** Header of a batch file, in the order of the published batches **/
+    public static final String[] BATCH_LABELS = {
+    	L_ID, L_ALGORITHM, L_PROBLEM, L_SEED, L_HALF_GROW_PROB, L_HALF_MAX_DEPTH,
+    	L_HALF_MIN_DEPTH, L_ROOT, L_TERMINALS, L_XOVER_MAXDEPTH, L_MUTATE_MAXDEPTH,
+    	L_POP_SIZE, L_OP_PROBABILITY, L_TS, L_GROW_MIN_DEPTH, L_GROW_MAX_DEPTH,
+    	L_GENERATIONS, L_NONTERMINALS, L_REPRO_PROBABILITY, L_OP };
+    
+    /** ECJ parameter naming a parameter file's first parent file **/
+    public static final String P_PARENT = "parent.0";
+    
+    /** ECJ problem class parameter **/
+    public static final String P_PROBLEM = "eval.problem";
+    
+    /** ECJ EvolutionState class parameter, and the class the parameter files give **/
+    public static final String P_STATE = "state";
+    public static final String SIMPLE_STATE = "ec.simple.SimpleEvolutionState";
+    
+    /** ECJ Breeder class parameter, and the class the parameter files give **/
+    public static final String P_BREEDER = "breed";
+    public static final String SIMPLE_BREEDER = "ec.simple.SimpleBreeder";
+    
+    /** Parameter for the number of regression fitness cases, under P_PROBLEM **/
+    public static final String P_FITNESS_CASES = "size";
+    
+    /** Statistics parameter, and its children, in the parameter files **/
+    public static final String P_STATISTICS = "stat";
+    public static final String P_NUM_CHILDREN = "num-children";
+    public static final String P_CHILD = "child";
+    
+    /** Problem classes whose number of fitness cases can be changed **/
+    public static final String[] REGRESSION_PROBLEMS = {
+    	"ec.app.regression.Regression", "ec.app.regression.Quintic" };
+    
+    /** ECJ thread parameters, recorded in the output when set per row **/
+    public static final String L_EVAL_THREADS = "evalthreads";
+    public static final String L_BREED_THREADS = "breedthreads";
     							       
     /** Constants for algorithm types **/
     public static final String ALG_CROSSOVER = "C";
@@ -72,9 +259,16 @@ public class BatchEvolve extends Evolve {
     
     /** Part to append to header of output file **/
     public static final String[] RESULTS_HEADER_PART = {"Raw Fitness","Adjusted Fitness", "Hits"};
+    
+    /** Part appended after the response when ECJ threads are set per row **/
+    public static final String[] RESULTS_THREADS_PART = {L_EVAL_THREADS, L_BREED_THREADS};
         
     /** Value for fields that do not apply to a particular row **/
     public static final String NULL_SYMBOL = "NaN";
+    
+    /** Parsed parameter files, keyed by problem number **/
+    private static final Map<String,ParameterDatabase> parameterTemplates =
+    						new HashMap<String,ParameterDatabase>();
 	
     /**
      * Main procedure.
@@ -83,164 +277,922 @@ public class BatchEvolve extends Evolve {
      *  Also requires "-start xxxx" and "-end xxxx" to indicate which
      *  IDs (the first column of the file) this process should process, 
      *  inclusively.
+     *  An optional "-threads n" runs up to n rows at once, each with its
+     *  own EvolutionState; results are still written in input order.
+     *  "-startid" and "-endid" select rows by their ID instead, and
+     *  "-index" seeks to the start line without reading the rows before
+     *  it; both use an index stored alongside the batch file.
+     *  "-resume" keeps an existing result file and skips the rows already
+     *  in it; "-syncevery n" forces results to disk every n rows.
+     *  "-serve port" hands the selected rows out to worker processes
+     *  started with "-worker host:port" (and optionally "-threads n"),
+     *  and writes their results to the result file.
+     *  "-ecjthreads n" gives every row n ECJ evaluation and breeding
+     *  threads; "-ecjthreads auto" shares the "-threads" cores out between
+     *  rows, giving more to the last rows of a batch.  Either way the
+     *  thread counts are added to the result file.
+     *  "-longestfirst" starts the rows of the window in order of their
+     *  estimated cost (see CostModel, "-costmodel file"), and
+     *  "-timingfile file" logs each row's run time to fit that model.
+     *  "-fasteval" replaces the problem with a faster evaluator giving the
+     *  same fitness, where there is one (see FastEvaluation);
+     *  "-fastevalcheck" also checks every evaluation against the original,
+     *  and "-fastevalvector" evaluates regression trees over all fitness
+     *  cases at once.  "-fitnesscases n" runs the regression problems
+     *  with n fitness cases instead of the 20 in the parameter files.
+     *  "-columnfile file" also writes the finished results in the compact
+     *  form read by ColumnarResults.
+     *  The batch file may be gzipped, or a .tar.gz archive as in exp/, and
+     *  may be a result file: its response columns are ignored.
+     *  "-verify resultfile" reruns rows of a result file (all of them, or
+     *  a random "-sample fraction", optionally "-stratified" by problem,
+     *  chosen with "-sampleseed n") on "-threads n" threads and checks
+     *  each response matches the recorded one; "-verifyreport file"
+     *  writes the outcome for every row.
+     *  "-generationevents" commits a Java Flight Recorder event for every
+     *  generation of every row (see GenerationStatistics), and
+     *  "-tracefile file" also appends the same figures to a CSV file,
+     *  gzipped if its name ends in .gz.
+     *  "-ciwidth w" runs the replicates of each configuration (rows
+     *  differing only in ID and seed) in rounds, and skips the rest once
+     *  the "-cilevel" (0.95) confidence interval on the mean raw fitness
+     *  is no wider than w; see AdaptiveReplication for "-minreplicates"
+     *  and "-roundsize".
+     *  "-allocationstats" reports the heap allocated by the rows and the
+     *  time spent collecting it at the end of the batch.
+     *  "-daemon port" keeps the JVM running and runs batches submitted
+     *  to it on that local port, one at a time; a batch is submitted by
+     *  running with the usual arguments plus "-submit port" (see
+     *  BatchDaemon), and "-submit port -shutdown" stops the daemon.
+     *  "-design spec" generates the rows of a full factorial design
+     *  (see BatchDesign) in place of "-batchfile"; line numbers and IDs
+     *  select rows of the design without generating the rows before them.
+     *  "-lineargenome" breeds by crossover and mutation on array copies
+     *  of the trees (see LinearGenome), breeding the same children.
+     *  "-nodepool" with it builds the children from the nodes and
+     *  individuals of populations already bred from (see PoolingBreeder).
      * @param args
      */
 	public static void main(String[] args) {
 		
-		// Input and output filenames
-		String batchfile = getBatchFile(args);
+		try {
+			// Hand the batch to a running daemon instead of running it here
+			String submitPort = getArgument(args, A_SUBMIT);
+			if (submitPort != null) {
+				System.exit(BatchDaemon.submit(Integer.parseInt(submitPort), args));
+			}
+		
+			// Keep a warm JVM running batches submitted to it
+			String daemonPort = getArgument(args, A_DAEMON);
+			if (daemonPort != null) {
+				new BatchDaemon().serve(Integer.parseInt(daemonPort));
+				System.exit(0);
+			}
+		
+			// Workers take their rows from a coordinator rather than a file
+			String coordinator = getArgument(args, A_WORKER);
+			if (coordinator != null) {
+				if (getEcjThreads(args) == ECJ_THREADS_AUTO) {
+					System.err.println("Automatic ECJ threads are only available when running a batch directly");
+					System.exit(-1);
+				}
+				BatchWorker.work(coordinator, getThreads(args), args);
+				System.exit(0);
+			}
+		
+			// Rerun rows of an existing result file and compare the responses
+			String verifyFile = getArgument(args, A_VERIFY);
+			if (verifyFile != null) {
+				if (getEcjThreads(args) == ECJ_THREADS_AUTO) {
+					System.err.println("Automatic ECJ threads are only available when running a batch directly");
+					System.exit(-1);
+				}
+				ResultVerifier verifier = new ResultVerifier(verifyFile, getSampleFraction(args),
+						hasFlag(args, A_STRATIFIED), getIntArgument(args, A_SAMPLE_SEED, 0));
+				int mismatches = verifier.verify(getThreads(args), getArgument(args, A_VERIFY_REPORT), args);
+				System.exit(mismatches == 0 ? 0 : -1);
+			}
+		
+			runBatch(args);
+		
+			// We're done
+			System.exit(0);
+		} catch (BatchException e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Run the rows of a batch file selected by the commandline arguments
+	 * and write their results, returning once all are written.  Called
+	 * by main(), and by BatchDaemon for each batch submitted to it.
+	 * @param args
+	 */
+	static void runBatch(String[] args) throws BatchException {
+		
+		// Input and output filenames; the rows may come from a design
+		// rather than a batch file
+		String designFile = getArgument(args, A_DESIGN);
+		BatchDesign design = null;
+		String batchfile = null;
+		if (designFile != null) {
+			if (getArgument(args, A_BATCHFILE) != null) {
+				throw new BatchException("Give either a batch file or a design, not both");
+			}
+			try {
+				design = new BatchDesign(designFile);
+			} catch (Exception e) {
+				throw new BatchException("Can't read design " + designFile, e);
+			}
+		} else {
+			batchfile = getBatchFile(args);
+		}
 		String outputFile = getOutputFile(args);
 		
+		// Rows may be selected by ID rather than line number, which needs
+		// the batch file index
+		boolean byId = (getArgument(args, A_START_ID) != null)
+							|| (getArgument(args, A_END_ID) != null);
+		BatchIndex index = null;
+		if (design == null && (byId || hasFlag(args, A_INDEX))) {
+			if (BatchInput.isCompressed(batchfile)) {
+				throw new BatchException("Compressed batch files cannot be indexed: use -start and -end");
+			}
+			index = BatchIndex.open(batchfile);
+		}
+		
 		// Parse arguments for the start and end line numbers
-		int[] lines = getStartEnd(args);
+		int[] lines;
+		if (byId) {
+			lines = getStartEndById(args, index, design);
+		} else {
+			lines = getStartEnd(args);
+		}
 		int start = lines[0];
 		int end = lines[1];
+		
+		// Number of rows to run at once
+		int threads = getThreads(args);
+		
+		// Check every row of the window before running any, if asked to,
+		// so that a bad row cannot stop the batch part way through
+		if (hasFlag(args, A_PREFLIGHT)) {
+			preflight(batchfile, designFile, start, end, threads, args);
+		}
 				
-		// Open output file
-		CSVPrinter resultPrinter = null;
+		// Open CSV Input File, which may be compressed or an archived
+		// result file
+		BatchSource batchReader = design;
+		if (design == null) {
+			try {
+				batchReader = new BatchInput(batchfile);
+			} catch (Exception e) {
+				throw new BatchException("Can't open batch input file", e);
+			}
+		}
+		
+		// Everything opened from here on is let go of if the batch fails,
+		// so that a daemon can go on to its next batch
+		CSVParse lineReader = batchReader;
+		ResultJournal journal = null;
+		CSVPrinter timingLog = null;
+		CSVPrinter traceLog = null;
+		ExecutorService pool = null;
 		try {
-			FileOutputStream outStream = new FileOutputStream(outputFile);
-			resultPrinter = new CSVPrinter(outStream);
+			// Read in header
+			String[] header = null;
+			try {
+				header = batchReader.getLabels();
+			} catch (Exception e) {
+				throw new BatchException("Error reading and writing header", e);
+			}
+			Map<String,Integer> labelIndex = BatchRow.indexLabels(header);
+		
+			// Open output file and write header, or pick up where a previous
+			// run of this batch left off
+			journal = new ResultJournal(outputFile, header, getResultsHeader(args),
+									hasFlag(args, A_RESUME), getSyncInterval(args));
+		
+			// Read CSV file until we reach start, or seek straight to it
+			// if the file has been indexed or the rows come from a design
+			String[] line = null;
+			if (design != null) {
+				if (start < 1 || start > design.size()) {
+					throw new BatchException("Unable to locate start line " + start + " in a design of "
+										+ design.size() + " rows");
+				}
+				design.seek(start);
+				line = design.getLine();
+			} else if (index == null) {
+				line = skipToStart(batchReader,start);
+			} else {
+				try {
+					FileInputStream dataStream = new FileInputStream(batchfile);
+					dataStream.getChannel().position(index.getOffset(start));
+					lineReader = new BatchInput(dataStream, (BatchInput)batchReader);
+					line = lineReader.getLine();
+				} catch (BatchException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new BatchException("Error seeking to start line " + start, e);
+				}
+			}
+		
+			// Replicate each configuration only until its response is known
+			// well enough, if asked to
+			AdaptiveReplication adaptive = getAdaptiveReplication(args);
+		
+			// Hand rows out to worker processes instead of running them here
+			String servePort = getArgument(args, A_SERVE);
+			if (servePort != null) {
+				if (adaptive != null) {
+					throw new BatchException("Adaptive replication is only available when running a batch directly");
+				}
+				new BatchCoordinator(lineReader, line, start, end, header, getResultsHeader(args), journal)
+											.serve(Integer.parseInt(servePort));
+				journal.close();
+				writeColumnFile(args, outputFile);
+				return;
+			}
+		
+			// Optionally log how long each row takes, for fitting a cost model
+			String timingFile = getArgument(args, A_TIMING_FILE);
+			if (timingFile != null) {
+				timingLog = CostModel.openTimingLog(timingFile, header);
+			}
+		
+			// Optionally total the heap allocated by each row
+			AllocationStats allocationStats = null;
+			if (hasFlag(args, A_ALLOCATION_STATS)) {
+				allocationStats = new AllocationStats();
+			}
+		
+			// Optionally log every generation of every row
+			String traceFile = getArgument(args, A_TRACE_FILE);
+			if (traceFile != null) {
+				traceLog = GenerationStatistics.openTraceFile(traceFile);
+			}
+		
+			// Run the most expensive rows first, if asked to; this needs the
+			// whole window read in before anything is started
+			boolean longestFirst = hasFlag(args, A_LONGEST_FIRST);
+			List<BatchRow> window = new ArrayList<BatchRow>();
+		
+			// Rows submitted to the worker pool but not yet written out,
+			// oldest first
+			LinkedList<Future<RowResult>> pending = new LinkedList<Future<RowResult>>();
+			if (threads > 1 || longestFirst || adaptive != null) {
+				pool = Executors.newFixedThreadPool(threads);
+			}
+		
+			// Cores shared out between rows when ECJ threads are chosen per row
+			ThreadAllocator allocator = null;
+			if (getEcjThreads(args) == ECJ_THREADS_AUTO) {
+				allocator = new ThreadAllocator(threads, end - start + 1);
+			}
+		
+			// Current Line
+			int current = start;
+		
+			// Whilst not finished, run each experiment
+			while (true) {
+			
+				final BatchRow row = new BatchRow(labelIndex, line, current);
+				final String[] rowArgs = args;
+				final ThreadAllocator rowAllocator = allocator;
+			
+				if (adaptive != null) {
+					// Rows already done still count towards their configuration
+					window.add(row);
+				} else if (journal.isComplete(row.getValueByLabel(L_ID))) {
+					System.out.println("Skipping Line " + current + " with ID: "
+							+ row.getValueByLabel(L_ID) + ", already in result file");
+					if (allocator != null) {
+						allocator.skip();
+					}
+				} else if (longestFirst) {
+					window.add(row);
+				} else if (pool == null) {
+					writeResult(runRow(row, args, allocator), journal, timingLog, traceLog, allocationStats);
+				} else {
+					pending.addLast(pool.submit(new Callable<RowResult>() {
+						public RowResult call() throws BatchException {
+							return runRow(row, rowArgs, rowAllocator);
+						}
+					}));
+					// Bound the number of finished rows held in memory
+					if (pending.size() >= threads * PENDING_ROWS_PER_THREAD) {
+						writeResult(nextResult(pending), journal, timingLog, traceLog, allocationStats);
+					}
+				}
+		    
+			    // If at the end, finish.  If not, keep going or raise error if eof
+			    if (current == end) {
+			    	break;
+			    }
+			    try {
+			    	line = lineReader.getLine();
+			    	current++;
+			    	if (line == null) {
+			    		throw new BatchException("Reached end of file without processing to end line " + end);
+			    	}
+			    } catch (Exception e) {
+			    	throw new BatchException("Exception reading input file", e);
+			    }
+
+			}
+		
+			if (adaptive != null) {
+				adaptive.run(window, journal, pool, args, allocator, timingLog, traceLog, allocationStats);
+			} else if (longestFirst) {
+				pending = submitLongestFirst(window, pool, args, allocator,
+										CostModel.load(getArgument(args, A_COST_MODEL)));
+			}
+		
+			// Write out whatever is still running, in order
+			while (!pending.isEmpty()) {
+				writeResult(nextResult(pending), journal, timingLog, traceLog, allocationStats);
+			}
+			journal.close();
+			writeColumnFile(args, outputFile);
+			if (allocationStats != null) {
+				allocationStats.report();
+			}
+		} catch (BatchException e) {
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (BatchException closing) {
+					System.err.println(closing.getMessage());
+				}
+			}
+			throw e;
+		} finally {
+			if (timingLog != null) {
+				try {
+					timingLog.close();
+				} catch (Exception e) {
+					System.err.println("Error closing timing file " + e);
+				}
+			}
+			if (traceLog != null) {
+				try {
+					traceLog.close();
+				} catch (Exception e) {
+					System.err.println("Error closing trace file " + e);
+				}
+			}
+			if (pool != null) {
+				// Stops rows still running if the batch has failed
+				pool.shutdownNow();
+			}
+			close(lineReader, batchReader);
+		}
+	}
+	
+	/**
+	 * Close the batch file readers, which matters when a daemon runs many
+	 * batches.
+	 * @param lineReader
+	 * @param batchReader
+	 */
+	private static void close(CSVParse lineReader, CSVParse batchReader) {
+		try {
+			lineReader.close();
+			if (batchReader != lineReader) {
+				batchReader.close();
+			}
 		} catch (Exception e) {
-			System.err.println("Error opening output file: " + e);
-			System.exit(-1);
+			System.err.println("Error closing batch file " + e);
 		}
-
-		// Open CSV Input File
-		LabeledCSVParser batchReader = null;
+	}
+	
+	/**
+	 * Run a single row of the batch file through ECJ and return its result.
+	 * Each call builds its own parameter database and EvolutionState, so
+	 * rows may be run on separate threads at the same time.
+	 * @param row
+	 * @param args Commandline arguments
+	 * @return
+	 */
+	public static RowResult runRow(BatchRow row, String[] args) throws BatchException {
+		return runRow(row, args, null);
+	}
+	
+	/**
+	 * Run a single row of the batch file through ECJ and return its result.
+	 * @param row
+	 * @param args Commandline arguments
+	 * @param allocator decides the row's ECJ threads with "-ecjthreads auto",
+	 * 			otherwise null
+	 * @return
+	 */
+	public static RowResult runRow(BatchRow row, String[] args, ThreadAllocator allocator) throws BatchException {
+		
+		long startTime = System.currentTimeMillis();
+		long startAllocated = AllocationStats.threadAllocatedBytes();
+		int currentLineID = Integer.parseInt(row.getValueByLabel(L_ID));
+		System.out.println("Processing Line " + row.getLineNumber() + " with ID: " + currentLineID);
+		
+		// Build the parameter database from the problem file and the row
+		String seedString = row.getValueByLabel(L_SEED);
+		ParameterDatabase parameterDatabase = buildParameters(row, args);
+		
+		// Record every generation, if asked to
+		boolean trace = getArgument(args, A_TRACE_FILE) != null;
+		if (trace || hasFlag(args, A_GENERATION_EVENTS)) {
+			setGenerationStatistics(parameterDatabase, Integer.toString(currentLineID), trace);
+		}
+		
+		// Set the number of ECJ evaluation and breeding threads, if asked
+		// to; with islands, these are the threads of each island
+		int islands = IslandModel.getIslands(row);
+		int ecjThreads = getEcjThreads(args);
+		int allocated = 0;
+		if (ecjThreads == ECJ_THREADS_AUTO) {
+			allocated = allocator.acquire(parameterDatabase.getInt(new Parameter(L_POP_SIZE), null),
+											islands);
+			ecjThreads = Math.max(1, allocated / islands);
+		}
+		if (ecjThreads > 0) {
+			setThreadParameters(parameterDatabase, ecjThreads, seedString);
+		}
+		
+		// A budget's exchanger is put in place when the state is set up
+		RowBudget budget = getRowBudget(args, startTime, islands);
+		if (budget != null) {
+			setBatchEvolutionState(parameterDatabase);
+		}
+		
+		// Initialise parameter database, split into islands if the row
+		// asks for them
+		IslandModel islandModel = null;
+		EvolutionState[] states;
+		if (islands > 1) {
+			islandModel = new IslandModel(parameterDatabase, islands, IslandModel.getInterval(row),
+								getIntArgument(args, A_MIGRANTS, DEFAULT_MIGRANTS));
+			states = islandModel.getStates();
+		} else {
+			states = new EvolutionState[] {initialize(parameterDatabase, 0)};
+		}
+		
+		// Stop the row early if it runs over a budget, if given any
+		if (budget != null) {
+			for (int i=0; i<states.length; i++) {
+				((BatchEvolutionState)states[i]).budget = budget;
+			}
+		}
+		
+		// Run Experiment
+	    try {
+	    	if (islandModel != null) {
+	    		islandModel.run();
+	    	} else {
+	    		states[0].run(EvolutionState.C_STARTED_FRESH);
+	    	}
+	    } finally {
+	    	if (allocated > 0) {
+	    		allocator.release(allocated);
+	    	}
+	    }
+	    
+	    // Read parameters back from the parameter database (sanity check)
+	    // Use the read ones to build the output
+	    String[] usedParams = usedParameters(row, parameterDatabase);
+	    
+	    // Get Response measure, and the threads used to get it
+	    String[] result = getResponse(states);
+	    if (ecjThreads != 0) {
+	    	result = append(result, new String[] {
+	    			parameterDatabase.getString(new Parameter(L_EVAL_THREADS), null),
+	    			parameterDatabase.getString(new Parameter(L_BREED_THREADS), null)});
+	    }
+	    if (budget != null) {
+	    	result = append(result, new String[] {budget.getStatus()});
+	    }
+	    
+	    RowResult rowResult = new RowResult(row.getLineNumber(), usedParams, result);
+	    if (trace) {
+	    	rowResult.trace = GenerationStatistics.find(states[0]).getTrace();
+	    }
+	    
+	    // Clean-up, leaving any pooled nodes for the next row
+	    if (islandModel != null) {
+	    	islandModel.cleanup();
+	    } else {
+	    	PoolingBreeder.finish(states[0]);
+	    	cleanup(states[0]);
+	    }
+	    
+	    rowResult.elapsedMillis = System.currentTimeMillis() - startTime;
+	    rowResult.allocatedBytes = AllocationStats.threadAllocatedBytes() - startAllocated;
+	    return rowResult;
+	}
+	
+	/**
+	 * Build the parameter database for a row: the problem's parameter
+	 * file with the row's settings, and any fitness case or fast
+	 * evaluation changes asked for on the commandline, laid over it.
+	 * @param row
+	 * @param args Commandline arguments
+	 * @return
+	 */
+	static ParameterDatabase buildParameters(BatchRow row, String[] args) throws BatchException {
+		
+		// Check everything in the row before using any of it
+		checkRow(row, args);
+		
+		// Set problem number
+		String problemNumber = row.getValueByLabel(L_PROBLEM);
+		
+		// Create parameter database using ECJ default problem file
+		ParameterDatabase parameterDatabase = readParam(problemNumber);
+					
+		parameterDatabase.set(new Parameter("verbosity"), Integer.toString(Output.V_NO_GENERAL));
+		
+		//	Set the seed in the database
+		String seedString = row.getValueByLabel(L_SEED);
+		parameterDatabase.set(new Parameter(L_SEED), seedString);
+		
+		String algorithm = row.getValueByLabel(L_ALGORITHM);		
+		
+		if (algorithm.equals(ALG_CROSSOVER)) {
+			// crossover - set parameters
+			setSharedParameters(parameterDatabase,row);
+			setCrossoverParameters(parameterDatabase,row);
+		} else if (algorithm.equals(ALG_MUTATION)) {
+			// mutation - set parameters
+			setSharedParameters(parameterDatabase,row);
+			setMutationParameters(parameterDatabase,row);
+		}
+		
+		// Change the number of regression fitness cases, if asked to
+		int fitnessCases = getIntArgument(args, A_FITNESS_CASES, 0);
+		if (fitnessCases != 0) {
+			setFitnessCases(parameterDatabase, fitnessCases);
+		}
+		
+		// Swap in a fast evaluator for the problem, if asked to and there is one
+		if (hasFlag(args, A_FAST_EVAL)) {
+			setFastEvaluation(parameterDatabase, hasFlag(args, A_FAST_EVAL_CHECK),
+										hasFlag(args, A_FAST_EVAL_VECTOR));
+		}
+		
+		// Breed from linear genomes, if asked to
+		if (hasFlag(args, A_LINEAR_GENOME)) {
+			setLinearGenome(parameterDatabase);
+			
+			// and from the nodes of old populations, if asked to
+			if (hasFlag(args, A_NODE_POOL)) {
+				setNodePool(parameterDatabase);
+			}
+		}
+		
+		return parameterDatabase;
+	}
+	
+	/**
+	 * Check rows start to end of the batch in parallel, listing every bad
+	 * row, and exit if there are any.
+	 * @param batchfile batch file, or null for a design
+	 * @param designFile design spec, or null for a batch file
+	 * @param start
+	 * @param end
+	 * @param threads
+	 * @param args Commandline arguments
+	 */
+	private static void preflight(String batchfile, String designFile, int start, int end,
+									int threads, String[] args) throws BatchException {
+		
+		BatchSource source = null;
 		try {
-			FileInputStream inStream = new FileInputStream(batchfile);
-			batchReader = new LabeledCSVParser(new CSVParser(inStream));
+			source = designFile != null ? new BatchDesign(designFile) : new BatchInput(batchfile);
 		} catch (Exception e) {
-			System.err.println("Can't open batch input file: " + e);
-			System.exit(-1);
+			throw new BatchException("Can't open batch for pre-flight checks", e);
+		}
+		int bad = BatchValidator.validate(source, start, end, threads, getTolerance(args),
+								getIntArgument(args, A_MIGRANTS, DEFAULT_MIGRANTS));
+		try {
+			source.close();
+		} catch (Exception e) {
+			System.err.println("Error closing batch " + e);
+		}
+		if (bad != 0) {
+			throw new BatchException("Not running a batch with bad rows");
 		}
+	}
+	
+	/**
+	 * Parameters of a row as written to the result file: read back from
+	 * the row's parameter database, followed by its island columns.
+	 * @param row
+	 * @param parameterDatabase built for the row by buildParameters()
+	 * @return
+	 */
+	static String[] usedParameters(BatchRow row, ParameterDatabase parameterDatabase) throws BatchException {
+		
+		String id = Integer.toString(Integer.parseInt(row.getValueByLabel(L_ID)));
+		String problemNumber = row.getValueByLabel(L_PROBLEM);
+		String algorithm = row.getValueByLabel(L_ALGORITHM);
+		String[] usedParams = null;
+		if (!(algorithm.equals(ALG_DEFAULTS))) {
+			usedParams = readParametersBack(parameterDatabase, id, problemNumber);
+		} else {
+			usedParams = defaultParameters(parameterDatabase, id, problemNumber);
+		}
+		return append(usedParams, IslandModel.getIslandColumns(row));
+	}
+	
+	/**
+	 * Submit the rows of a window to the pool in order of decreasing
+	 * estimated cost, and return their futures in input order.
+	 * @param window rows to run, in input order
+	 * @param pool
+	 * @param args Commandline arguments
+	 * @param allocator
+	 * @param model
+	 * @return
+	 */
+	private static LinkedList<Future<RowResult>> submitLongestFirst(List<BatchRow> window,
+						ExecutorService pool, final String[] args,
+						final ThreadAllocator allocator, CostModel model) throws BatchException {
+		
+		final double[] costs = new double[window.size()];
+		Integer[] order = new Integer[window.size()];
+		for (int i=0; i<costs.length; i++) {
+			costs[i] = model.estimate(window.get(i));
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(costs[b.intValue()], costs[a.intValue()]);
+			}
+		});
 		
-		// Read in header and output to result file
+		List<Future<RowResult>> futures = new ArrayList<Future<RowResult>>();
+		for (int i=0; i<costs.length; i++) {
+			futures.add(null);
+		}
+		for (int i=0; i<order.length; i++) {
+			final BatchRow row = window.get(order[i].intValue());
+			futures.set(order[i].intValue(), pool.submit(new Callable<RowResult>() {
+				public RowResult call() throws BatchException {
+					return runRow(row, args, allocator);
+				}
+			}));
+		}
+		return new LinkedList<Future<RowResult>>(futures);
+	}
+	
+	/**
+	 * Write a finished row to the result file, and to the timing and
+	 * trace files and allocation totals if they are kept.
+	 * @param result
+	 * @param journal
+	 * @param timingLog timing file, or null
+	 * @param traceLog trace file, or null
+	 * @param allocationStats allocation totals, or null
+	 */
+	static void writeResult(RowResult result, ResultJournal journal, CSVPrinter timingLog,
+							CSVPrinter traceLog, AllocationStats allocationStats) throws BatchException {
+		journal.write(result);
+		if (allocationStats != null) {
+			allocationStats.add(result);
+		}
+		if (timingLog != null) {
+			CostModel.writeTiming(result, timingLog);
+		}
+		if (traceLog != null) {
+			GenerationStatistics.writeTrace(result, traceLog);
+		}
+	}
+	
+	/**
+	 * Wait for the oldest outstanding row to finish and return its result.
+	 * A BatchException thrown by the row is passed on as it is.
+	 * @param pending rows submitted to the worker pool, oldest first
+	 * @return
+	 */
+	static RowResult nextResult(LinkedList<Future<RowResult>> pending) throws BatchException {
+		RowResult result = null;
 		try {
-			String[] header = batchReader.getLabels();
-			resultPrinter.write(header);
-			resultPrinter.writeln(RESULTS_HEADER_PART);
+			result = pending.removeFirst().get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof BatchException) {
+				throw (BatchException)e.getCause();
+			}
+			throw new BatchException("Error running row", e.getCause());
 		} catch (Exception e) {
-			System.err.println("Error reading and writing header.");
-			System.err.println(e);
-			System.exit(-1);
+			throw new BatchException("Error running row", e);
+		}
+		return result;
+	}
+	
+	/**
+	 * Return the labels of the columns appended to each row of the
+	 * result file.
+	 * @param args Commandline arguments
+	 * @return
+	 */
+	public static String[] getResultsHeader(String[] args) throws BatchException {
+		String[] resultsHeader = RESULTS_HEADER_PART;
+		if (getEcjThreads(args) != 0) {
+			resultsHeader = append(resultsHeader, RESULTS_THREADS_PART);
+		}
+		if (hasBudget(args)) {
+			resultsHeader = append(resultsHeader, RowBudget.RESULTS_STATUS_PART);
+		}
+		if (getArgument(args, A_CI_WIDTH) != null) {
+			resultsHeader = append(resultsHeader, AdaptiveReplication.RESULTS_SKIPPED_PART);
 		}
+		return resultsHeader;
+	}
+	
+	/**
+	 * Set the number of ECJ evaluation and breeding threads for a run.
+	 * Each thread needs its own seed; these are taken as consecutive
+	 * values from seed.0, so a row can be reproduced from its seed and
+	 * the thread count recorded in the result file.
+	 * @param parameterDatabase
+	 * @param threads
+	 * @param seedString value of seed.0
+	 */
+	public static void setThreadParameters(ParameterDatabase parameterDatabase,
+											int threads, String seedString) {
+		
+		parameterDatabase.set(new Parameter(L_EVAL_THREADS), Integer.toString(threads));
+		parameterDatabase.set(new Parameter(L_BREED_THREADS), Integer.toString(threads));
+		int seed = Integer.parseInt(seedString);
+		for (int i=1; i<threads; i++) {
+			parameterDatabase.set(new Parameter("seed." + i), Integer.toString(seed + i));
+		}
+	}
+	
+	/**
+	 * Replace the problem class in the parameter database with its fast
+	 * evaluator, if FastEvaluation has one for it.
+	 * @param parameterDatabase
+	 * @param check also evaluate with the original problem and stop on
+	 * 			any difference
+	 * @param vector evaluate all fitness cases at once, where supported
+	 */
+	public static void setFastEvaluation(ParameterDatabase parameterDatabase, boolean check,
+														boolean vector) {
+		
+		String problemClass = parameterDatabase.getString(new Parameter(P_PROBLEM), null);
+		String fastClass = FastEvaluation.getFastProblem(problemClass);
+		if (fastClass != null) {
+			parameterDatabase.set(new Parameter(P_PROBLEM), fastClass);
+			if (check) {
+				parameterDatabase.set(new Parameter(P_PROBLEM).push(FastEvaluation.P_CHECK), "true");
+			}
+			if (vector) {
+				parameterDatabase.set(new Parameter(P_PROBLEM).push(FastEvaluation.P_VECTOR), "true");
+			}
+		}
+	}
+	
+	/**
+	 * Replace the Koza crossover or mutation pipeline in the parameter
+	 * database with the one that breeds from LinearGenome copies of the
+	 * trees.  Other operators are left alone.
+	 * @param parameterDatabase
+	 */
+	public static void setLinearGenome(ParameterDatabase parameterDatabase) {
 		
-		// Read CSV file until we reach start
-		skipToStart(batchReader,start);
+		String operator = parameterDatabase.getString(new Parameter(L_OP), null);
+		String linear = LINEAR_OPERATORS.get(operator);
+		if (linear != null) {
+			parameterDatabase.set(new Parameter(L_OP), linear);
+		}
+	}
+	
+	/**
+	 * Replace SimpleBreeder in the parameter database with PoolingBreeder,
+	 * which keeps the nodes of old populations for the LinearGenome
+	 * pipelines to reuse.  Any other breeder is left alone.
+	 * @param parameterDatabase
+	 */
+	public static void setNodePool(ParameterDatabase parameterDatabase) {
 		
-		// Flag for when we've finished processing
-		boolean finished = false;
+		String breeder = parameterDatabase.getString(new Parameter(P_BREEDER), null);
+		if (SIMPLE_BREEDER.equals(breeder)) {
+			parameterDatabase.set(new Parameter(P_BREEDER), PoolingBreeder.class.getName());
+		}
+	}
+	
+	/**
+	 * Replace SimpleEvolutionState in the parameter database with
+	 * BatchEvolutionState, which puts a row's island and budget exchangers
+	 * in place when ECJ sets the state up.
+	 * @param parameterDatabase
+	 */
+	public static void setBatchEvolutionState(ParameterDatabase parameterDatabase)
+															throws BatchException {
+		
+		String state = parameterDatabase.getString(new Parameter(P_STATE), null);
+		if (SIMPLE_STATE.equals(state)) {
+			parameterDatabase.set(new Parameter(P_STATE), BatchEvolutionState.class.getName());
+		} else if (!BatchEvolutionState.class.getName().equals(state)) {
+			throw new BatchException("Islands and row budgets need " + SIMPLE_STATE
+										+ " as the state, not " + state);
+		}
+	}
+	
+	/**
+	 * Add GenerationStatistics as a further child of the statistics named
+	 * in the parameter database, leaving any existing children in place.
+	 * @param parameterDatabase
+	 * @param rowId ID of the row, for labelling its events and trace
+	 * @param trace keep a trace of the row's generations
+	 */
+	public static void setGenerationStatistics(ParameterDatabase parameterDatabase, String rowId,
+															boolean trace) {
 		
-		// Current Line and corresponding ID column values
-		int current = start;
-		int currentLineID;
+		Parameter stat = new Parameter(P_STATISTICS);
+		int children = parameterDatabase.getInt(stat.push(P_NUM_CHILDREN), null, 0);
+		if (children < 0) {
+			children = 0;
+		}
+		Parameter child = stat.push(P_CHILD).push(Integer.toString(children));
+		parameterDatabase.set(stat.push(P_NUM_CHILDREN), Integer.toString(children + 1));
+		parameterDatabase.set(child, GenerationStatistics.class.getName());
+		parameterDatabase.set(child.push(GenerationStatistics.P_ROW), rowId);
+		parameterDatabase.set(child.push(GenerationStatistics.P_TRACE), Boolean.toString(trace));
+	}
+	
+	/**
+	 * Convert the finished result file to columnar form, if asked to with
+	 * "-columnfile".  The whole file is converted, including any rows
+	 * from earlier runs when resuming.
+	 * @param args
+	 * @param outputFile result file
+	 */
+	private static void writeColumnFile(String args[], String outputFile) throws BatchException {
 		
-		// Whilst not finished, run each experiment
-		while (!finished) {
-			
-			currentLineID = Integer.parseInt(batchReader.getValueByLabel(L_ID));
-			System.out.println("Processing Line " + current + " with ID: " + currentLineID);
-			
-			// Set problem number
-			String problemNumber = batchReader.getValueByLabel(L_PROBLEM);
-			
-			// Create parameter database using ECJ default problem file
-			ParameterDatabase parameterDatabase = readParam(problemNumber,args);
-						
-			parameterDatabase.set(new Parameter("verbosity"), Integer.toString(Output.V_NO_GENERAL));
-			
-			//	Set the seed in the database
-			String seedString = batchReader.getValueByLabel(L_SEED);
-			parameterDatabase.set(new Parameter(L_SEED), seedString);
-			
-			String algorithm = batchReader.getValueByLabel(L_ALGORITHM);		
-			
-			if (algorithm.equals(ALG_CROSSOVER)) {
-				// crossover - set parameters
-				setSharedParameters(parameterDatabase,batchReader);
-				setCrossoverParameters(parameterDatabase,batchReader);
-			} else if (algorithm.equals(ALG_MUTATION)) {
-				// mutation - set parameters
-				setSharedParameters(parameterDatabase,batchReader);
-				setMutationParameters(parameterDatabase,batchReader);
-			} else if (algorithm.equals(ALG_DEFAULTS)) {
-				checkDefaultParameters(batchReader);
-			} else {
-				System.err.println("Error: unrecognised algorithm type");
-				System.exit(-1);
-			}
-			
-			// Initialise parameter database
-			EvolutionState state = initialize(parameterDatabase, 0);
-			
-			// Run Experiment
-		    state.run(EvolutionState.C_STARTED_FRESH);
-		    
-		    // Read parameters back from the parameter database (sanity check)
-		    // Use the read ones to build the output
-		    // Write experiment's result to file
-		    String[] usedParams = null;
-		    if (!(algorithm.equals(ALG_DEFAULTS))) {
-		    	    usedParams = readParametersBack(parameterDatabase,
-		    						Integer.toString(currentLineID),problemNumber);
-		    } else if (algorithm.equals(ALG_DEFAULTS)) {
-		    	usedParams=defaultParameters(parameterDatabase,Integer.toString(currentLineID),problemNumber);
-		    } else {
-		    	System.err.println("Invalid algorithm type " + algorithm);
-		    	System.exit(-1);
-		    }
-		    
-		    // Get Response measure
-		    String[] result = getResponse(state);
-		    
-		    writeResult(usedParams,result,resultPrinter);
-		    
-		    // Clean-up
-		    cleanup(state);
-		    
-		    // If at the end, finish.  If not, keep going or raise error if eof
-		    if (current == end) {
-		    	finished = true;
-		    } else {
-		    	try {
-		    		String[] newLine = batchReader.getLine();
-		    		current++;
-			    	if (newLine == null) {
-			    		System.err.println("Reached end of file without processing to end line " + end);
-			    		System.exit(-1);
-			    	}
-		    	} catch (Exception e) {
-		    		System.err.println("Exception reading input file");
-		    		System.err.println(e);
-		    		System.exit(-1);
-		    	}
-		    }
-
+		String columnFile = getArgument(args, A_COLUMN_FILE);
+		if (columnFile == null) {
+			return;
+		}
+		try {
+			ColumnarResults.fromCsv(outputFile, columnFile);
+		} catch (Exception e) {
+			throw new BatchException("Error writing column file " + columnFile, e);
 		}
+	}
+	
+	/**
+	 * Set the number of fitness cases used by a regression problem.  Other
+	 * problems use eval.problem.size for something else, or not at all,
+	 * so asking to change it for them is an error.
+	 * @param parameterDatabase
+	 * @param fitnessCases
+	 */
+	public static void setFitnessCases(ParameterDatabase parameterDatabase, int fitnessCases) throws BatchException {
 		
-		// We're done
-	    System.exit(0);
-
+		if (fitnessCases < 1) {
+			throw new BatchException("Invalid number of fitness cases: " + fitnessCases);
+		}
+		String problemClass = parameterDatabase.getString(new Parameter(P_PROBLEM), null);
+		if (!Arrays.asList(REGRESSION_PROBLEMS).contains(problemClass)) {
+			throw new BatchException("Error: " + A_FITNESS_CASES + " only applies to regression problems, not "
+									+ problemClass);
+		}
+		parameterDatabase.set(new Parameter(P_PROBLEM).push(P_FITNESS_CASES),
+									Integer.toString(fitnessCases));
 	}
 	
+	/**
+	 * @param first
+	 * @param second
+	 * @return a new array holding the values of first followed by second
+	 */
+	public static String[] append(String[] first, String[] second) {
+		String[] joined = new String[first.length + second.length];
+		System.arraycopy(first, 0, joined, 0, first.length);
+		System.arraycopy(second, 0, joined, first.length, second.length);
+		return joined;
+	}
 	
 	/**
 	 * Return response - the best individual in the population at the end
-	 * of the run.
-	 * @param state
+	 * of the run, or in any of the islands' populations.
+	 * @param states
 	 * @return
 	 */
-	public static String[] getResponse(EvolutionState state) {
+	public static String[] getResponse(EvolutionState... states) {
 		
 		String[] response = new String[3];
-		Individual[] population = state.population.subpops[0].individuals;
-		Individual best = population[0];	
-		
-		for(int i=0; i<population.length; i++) {
-			if(population[i].fitness.betterThan(best.fitness)) {
-				best = population[i];
+		Individual best = states[0].population.subpops[0].individuals[0];
+		
+		// Best of every island, when the row was run as islands
+		for (EvolutionState state : states) {
+			Individual[] population = state.population.subpops[0].individuals;
+			for(int i=0; i<population.length; i++) {
+				if(population[i].fitness.betterThan(best.fitness)) {
+					best = population[i];
+				}
 			}
 		}
 		
@@ -252,6 +1204,15 @@ public class BatchEvolve extends Evolve {
 		return response;
 	}
 	
+	/**
+	 * Write out latest result to output file.
+	 * @param result
+	 * @param outPrinter
+	 */
+	public static void writeResult(RowResult result, CSVPrinter outPrinter) throws BatchException {
+		writeResult(result.params, result.response, outPrinter);
+	}
+	
 	/**
 	 * Write out latest result to output file.
 	 * @param params
@@ -259,13 +1220,12 @@ public class BatchEvolve extends Evolve {
 	 * @param outPrinter
 	 */
 	public static void writeResult(String[] params, String[] result, 
-													CSVPrinter outPrinter) {
+													CSVPrinter outPrinter) throws BatchException {
 		try {
 			outPrinter.write(params);
 			outPrinter.writeln(result);
 		} catch (Exception e) {
-			System.err.println("Error writing result " + e);
-			System.exit(-1);
+			throw new BatchException("Error writing result", e);
 		}
 		
 	}
@@ -295,10 +1255,17 @@ public class BatchEvolve extends Evolve {
 	 * @return
 	 */
 	public static String[] readParametersBack(ParameterDatabase p, 
-											  String id, String problem) {
+											  String id, String problem) throws BatchException {
 		
 		String operator = p.getString(new Parameter(L_OP),null);
 		
+		// Report the linear pipelines as the operators they stand in for
+		for (Map.Entry<String,String> linear : LINEAR_OPERATORS.entrySet()) {
+			if (linear.getValue().equals(operator)) {
+				operator = linear.getKey();
+			}
+		}
+		
 		String algorithm = "";
 		if (operator.equals("ec.gp.koza.CrossoverPipeline")) {
 			algorithm = "C";
@@ -307,8 +1274,7 @@ public class BatchEvolve extends Evolve {
 		} else if (operator.equals(NULL_SYMBOL)) {
 			algorithm = "D";
 		} else {
-			System.err.println("Invalid algorithm type read back: " + operator);
-			System.exit(-1); 
+			throw new BatchException("Invalid algorithm type read back: " + operator);
 		}
 		
 		String seed = p.getString(new Parameter(L_SEED), null);
@@ -359,334 +1325,115 @@ public class BatchEvolve extends Evolve {
 		
 	}
 	
-	/**
-	 * Validate parameters are all "NaN" for default algorithm.
-	 * @param batchReader
-	 */
-	public static void checkDefaultParameters(LabeledCSVParser batchReader) {
-		
-		String halfGrowProb = batchReader.getValueByLabel(L_HALF_GROW_PROB);
-		if (!(halfGrowProb.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected grow probability");
-			System.exit(-1);
-		}
-		
-		String halfMaxDepth = batchReader.getValueByLabel(L_HALF_MAX_DEPTH);
-		if (!(halfMaxDepth.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected half max depth");
-			System.exit(-1);
-		}
-		
-		String halfMinDepth = batchReader.getValueByLabel(L_HALF_MIN_DEPTH);
-		if (!(halfMinDepth.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected half min depth");
-			System.exit(-1);
-		}
-		
-		String rootProb = batchReader.getValueByLabel(L_ROOT);
-		if (!(rootProb.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected root probability");
-			System.exit(-1);
-		}
-		
-		String termProb = batchReader.getValueByLabel(L_TERMINALS);
-		if (!(termProb.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected terminals probability");
-			System.exit(-1);
-		}
-		
-		String xoMaxDepth = batchReader.getValueByLabel(L_XOVER_MAXDEPTH);
-		if (!(xoMaxDepth.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected xo max depth");
-			System.exit(-1);
-		}
-		
-		String mutMaxDepth = batchReader.getValueByLabel(L_MUTATE_MAXDEPTH);
-		if (!(mutMaxDepth.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected mutation max depth");
-			System.exit(-1);
-		}
-		
-		String popSize = batchReader.getValueByLabel(L_POP_SIZE);
-		if (!(popSize.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected pop size");
-			System.exit(-1);
-		}
-		
-		String opProb = batchReader.getValueByLabel(L_OP_PROBABILITY);
-		if (!(opProb.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected operator probability");
-			System.exit(-1);
-		}
-		
-		String ts = batchReader.getValueByLabel(L_TS);
-		if (!(ts.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected tournament selection size");
-			System.exit(-1);
-		}
-		
-		String growMin = batchReader.getValueByLabel(L_GROW_MIN_DEPTH);
-		if (!(growMin.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected min grow size");
-			System.exit(-1);
-		}
-		
-		String growMax = batchReader.getValueByLabel(L_GROW_MAX_DEPTH);
-		if (!(growMax.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected max grow size");
-			System.exit(-1);
-		}
-		
-		String generations = batchReader.getValueByLabel(L_GENERATIONS);
-		if (!(generations.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected generations");
-			System.exit(-1);
-		}
-		
-		String nonterm = batchReader.getValueByLabel(L_NONTERMINALS);
-		if (!(nonterm.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected nonterm probability");
-			System.exit(-1);
-		}
-		
-		String reproProb = batchReader.getValueByLabel(L_REPRO_PROBABILITY);
-		if (!(reproProb.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected reproduction probability");
-			System.exit(-1);
-		}
-		
-		String source = batchReader.getValueByLabel(L_OP);
-		if (!(source.equals(NULL_SYMBOL))) {
-			System.err.println("Unexpected operator" + source);
-			System.exit(-1);
-		}
-		
-	}
-	
 	/**
 	 * Set shared parameters - write those parameters relevant to xo and mut
-	 * into the database.  Also validate as we go.
+	 * into the database.  The row must have been checked by checkRow().
 	 * @param parameterDatabase
 	 * @param batchReader
 	 * @return
 	 */
 	public static void setSharedParameters(ParameterDatabase parameterDatabase,
-										LabeledCSVParser batchReader) {
-											
-		String halfGrowProbString = batchReader.getValueByLabel(L_HALF_GROW_PROB);		
-		float halfGrowProb = Float.parseFloat(halfGrowProbString);
-		if ((halfGrowProb < 0) || (halfGrowProb > 1)) {
-			System.err.println("Invalid Grow probability");
-			System.err.println("Invalid value was " + halfGrowProb);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_HALF_GROW_PROB), halfGrowProbString);
-		
-		String halfMaxString = batchReader.getValueByLabel(L_HALF_MAX_DEPTH);
-		int halfMax = Integer.parseInt(halfMaxString);
-		if (halfMax < 1) {
-			System.err.println("Invalid half maximum depth");
-			System.err.println("Invalid value was " + halfMax);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_HALF_MAX_DEPTH), halfMaxString);
-		
-		String halfMinString = batchReader.getValueByLabel(L_HALF_MIN_DEPTH);
-		int halfMin = Integer.parseInt(halfMinString);
-		if ((halfMin < 1) || (halfMin > halfMax)) {
-			System.err.println("Invalid half minimum depth");
-			System.err.println("Invalid value was " + halfMin);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_HALF_MIN_DEPTH), halfMinString);
-		
-		String nsRootString = batchReader.getValueByLabel(L_ROOT);
-		float nsRoot = Float.parseFloat(nsRootString);
-		if ((nsRoot < 0) || (nsRoot > 1)) {
-			System.err.println("Invalid root selection prob");
-			System.err.println("Invalid value was " + nsRootString);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_ROOT), nsRootString);
-		
-		String nsTerminalsString = batchReader.getValueByLabel(L_TERMINALS);
-		float nsTerminals = Float.parseFloat(nsTerminalsString);
-		if ((nsTerminals < 0) || (nsTerminals > 1) || ((nsTerminals + nsRoot) > 1)) {
-			System.err.println("Invalid terminals selection prob");
-			System.err.println("Invalid value was " + nsTerminalsString);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_TERMINALS), nsTerminalsString);
-		
-		String popSizeString = batchReader.getValueByLabel(L_POP_SIZE);
-		int popSize = Integer.parseInt(popSizeString);
-		if (popSize < 1) {
-			System.err.println("Invalid population size: " + popSizeString);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_POP_SIZE), popSizeString);
-		
-		String opProbString = batchReader.getValueByLabel(L_OP_PROBABILITY);
-		float opProb = Float.parseFloat(opProbString);
-		if ((opProb < 0) || (opProb > 1)) {
-			System.err.println("Invalid operator probability: " + opProb);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_OP_PROBABILITY), opProbString);
+										BatchRow batchReader) {
 		
-		String tsString = batchReader.getValueByLabel(L_TS);
-		int ts = Integer.parseInt(tsString);
-		if (ts <= 0) {
-			System.err.println("Invalid tournament size: " + ts);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_TS), tsString);
-		
-		String generationsString = batchReader.getValueByLabel(L_GENERATIONS);
-		int generations = Integer.parseInt(generationsString);
-		if (generations < 1) {
-			System.err.println("Invalid generations: " + generations);
-			System.err.println("Pop size was " + popSize);
-			System.err.println("gen * pop is " + (generations*popSize));
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_GENERATIONS), generationsString);
-		
-		String reproProbString = batchReader.getValueByLabel(L_REPRO_PROBABILITY);
-		float reproProb = Float.parseFloat(reproProbString);
-		if (reproProb < 0 || reproProb > 1 || ((reproProb + opProb) != 1)) {
-			System.err.println("Invalid reproduction probability " + reproProb);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_REPRO_PROBABILITY), reproProbString);
-		
-		String nonterminalsString = batchReader.getValueByLabel(L_NONTERMINALS);
-		float nonterminals = Float.parseFloat(nonterminalsString);
-		if (nonterminals < 0 || nonterminals > 1 || (nonterminals + nsTerminals + nsRoot) != 1 ) {
-			System.err.println("Invalid nonterminals probability " + nonterminals);
-			System.err.println("Terminals prob was " + nsTerminals);
-			System.err.println("Root was " + nsRoot);
-			System.exit(-1);
+		String[] labels = {L_HALF_GROW_PROB, L_HALF_MAX_DEPTH, L_HALF_MIN_DEPTH, L_ROOT,
+							L_TERMINALS, L_POP_SIZE, L_OP_PROBABILITY, L_TS, L_GENERATIONS,
+							L_REPRO_PROBABILITY, L_NONTERMINALS};
+		for (String label : labels) {
+			parameterDatabase.set(new Parameter(label), batchReader.getValueByLabel(label));
 		}
-		parameterDatabase.set(new Parameter(L_NONTERMINALS), nonterminalsString);
-				
 	}
 	
 	/**
-	 * Set parameters specific to crossover-based algorithm, and also
-	 * do some sanity checks on the non-employed mutation arguments.
+	 * Set parameters specific to crossover-based algorithm.  The row must
+	 * have been checked by checkRow().
 	 * @param parameterDatabase
 	 * @param batchReader
 	 */
 	public static void setCrossoverParameters(ParameterDatabase parameterDatabase,
-										LabeledCSVParser batchReader) {
+										BatchRow batchReader) {
 	
-		String xoMaxDepthString = batchReader.getValueByLabel(L_XOVER_MAXDEPTH);
-		int xoMaxDepth = Integer.parseInt(xoMaxDepthString);
-		if (xoMaxDepth < 1) {
-			System.err.println("Invalid XO Max Depth: " + xoMaxDepth);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_XOVER_MAXDEPTH), xoMaxDepthString);
-		
-		String source = batchReader.getValueByLabel(L_OP);
-		if (!(source.equals("ec.gp.koza.CrossoverPipeline"))) {
-			System.err.println("Invalid genetic operator " + source);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_OP), source);
-		
-		// Sanity checks
-		String mutMaxDepth = batchReader.getValueByLabel(L_MUTATE_MAXDEPTH);
-		if (!(mutMaxDepth.equals(NULL_SYMBOL))) {
-			System.err.println("Mutation max depth not expected");
-			System.exit(-1);
-		}
-		
-		String mutGrowMinDepth = batchReader.getValueByLabel(L_GROW_MIN_DEPTH);
-		if (!(mutGrowMinDepth.equals(NULL_SYMBOL))) {
-			System.err.println("Mutation grow min depth not expected");
-			System.exit(-1);
-		}
-		
-		String mutGrowMaxDepth = batchReader.getValueByLabel(L_GROW_MAX_DEPTH);
-		if (!(mutGrowMaxDepth.equals(NULL_SYMBOL))) {
-			System.err.println("Mutation grow max depth not expected");
-			System.exit(-1);
-		}
-		
+		parameterDatabase.set(new Parameter(L_XOVER_MAXDEPTH), batchReader.getValueByLabel(L_XOVER_MAXDEPTH));
+		parameterDatabase.set(new Parameter(L_OP), batchReader.getValueByLabel(L_OP));
 	}
 	
 	/**
-	 * Set mutation-algorithm specific parameters, and do some sanity checks
-	 * on the non-employed crossover parameters.
+	 * Set mutation-algorithm specific parameters.  The row must have been
+	 * checked by checkRow().
 	 * @param parameterDatabase
 	 * @param batchReader
 	 */
 	public static void setMutationParameters(ParameterDatabase parameterDatabase,
-			LabeledCSVParser batchReader) {
+			BatchRow batchReader) {
 
-		String mutMaxDepthString = batchReader.getValueByLabel(L_MUTATE_MAXDEPTH);
-		int mutMaxDepth = Integer.parseInt(mutMaxDepthString);
-		if (mutMaxDepth < 1) {
-			System.err.println("Invalid mutation max depth: " + mutMaxDepth);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_MUTATE_MAXDEPTH), mutMaxDepthString);
-		
-		String growMinDepthString = batchReader.getValueByLabel(L_GROW_MIN_DEPTH);
-		int growMinDepth = Integer.parseInt(growMinDepthString);
-		if (growMinDepth < 1) {
-			System.err.println("Invalid grow min depth:" + growMinDepth);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_GROW_MIN_DEPTH), growMinDepthString);
-				
-		String growMaxDepthString = batchReader.getValueByLabel(L_GROW_MAX_DEPTH);
-		int growMaxDepth = Integer.parseInt(growMaxDepthString);
-		if (growMaxDepth != growMinDepth) {
-			System.err.println("Invalid grow max depth: " + growMaxDepth);
-			System.exit(-1);
-		}
-		parameterDatabase.set(new Parameter(L_GROW_MAX_DEPTH), growMaxDepthString );
+		parameterDatabase.set(new Parameter(L_MUTATE_MAXDEPTH), batchReader.getValueByLabel(L_MUTATE_MAXDEPTH));
+		parameterDatabase.set(new Parameter(L_GROW_MIN_DEPTH), batchReader.getValueByLabel(L_GROW_MIN_DEPTH));
+		parameterDatabase.set(new Parameter(L_GROW_MAX_DEPTH), batchReader.getValueByLabel(L_GROW_MAX_DEPTH));
+		parameterDatabase.set(new Parameter(L_OP), batchReader.getValueByLabel(L_OP));
+	}
+	
+	/**
+	 * Check a row against the BatchValidator rules for its algorithm.
+	 * Throws a BatchException listing everything wrong with it if it
+	 * breaks any, so the caller decides whether that stops the batch.
+	 * @param row
+	 * @param args Commandline arguments
+	 */
+	public static void checkRow(BatchRow row, String[] args) throws BatchException {
 		
-		String source = batchReader.getValueByLabel(L_OP);
-		if (!(source.equals("ec.gp.koza.MutationPipeline"))) {
-			System.err.println("Invalid genetic operator " + source);
-			System.exit(-1);
+		List<String> problems = BatchValidator.forLabels(row.getLabelIndex(), getTolerance(args),
+								getIntArgument(args, A_MIGRANTS, DEFAULT_MIGRANTS)).check(row.getValues());
+		if (!problems.isEmpty()) {
+			throw new BatchException("Invalid row at line " + row.getLineNumber() + " with ID "
+								+ row.getValueByLabel(L_ID) + ": " + BatchValidator.join(problems));
 		}
-		parameterDatabase.set(new Parameter(L_OP), source);
+	}
+	
+	/**
+	 * Create a parameter database for this experiment.  The parameter
+	 * file for the problem is read from PARAMETER_PATH once, and each row
+	 * gets its own copy of it to set its values in.  ECJ marks every
+	 * database it looks in while finding a parameter until the lookup
+	 * ends, so rows run at the same time cannot share one.
+	 * @param problemNumber Problem number given in experiment.
+	 * @return
+	 */
+	static ParameterDatabase readParam(String problemNumber) throws BatchException {
 		
-		// Sanity Check
-		String xoMaxDepth = batchReader.getValueByLabel(L_XOVER_MAXDEPTH);
-		if (!(xoMaxDepth.equals(NULL_SYMBOL))) {
-			System.err.println("Crossover max depth not expected");
-			System.exit(-1);
-		}
+		return (ParameterDatabase)(getParameterTemplate(problemNumber).clone());
 	}
 	
 	/**
-	 * Read in a parameter file from PARAMETER_PATH for this experiment.
-	 * Create a parameter database.
+	 * Return the parsed parameter file for a problem, reading it from
+	 * PARAMETER_PATH the first time the problem is seen.  The database
+	 * returned is only ever copied, never read, because a lookup in it
+	 * from one thread could make a lookup from another miss.  Parameter
+	 * files naming parent files are refused, since copies would share the
+	 * parents.
 	 * @param problemNumber Problem number given in experiment.
-	 * @param args Commandline arguments
 	 * @return
 	 */
-	private static ParameterDatabase readParam(String problemNumber,
-												String[] gs) {
+	private static synchronized ParameterDatabase getParameterTemplate(String problemNumber)
+																throws BatchException {
+		
+		ParameterDatabase p = parameterTemplates.get(problemNumber);
+		if (p != null) {
+			return p;
+		}
 		
-		ParameterDatabase p = null;
 		String parameterFilename = PARAMETER_PATH + problemNumber + ".params"; 
 		
         try  {
         	p = new ParameterDatabase(new File(parameterFilename));
         } catch(Exception e) {
-        	System.err.println("Exception reading the parameter file " 
-        			+ parameterFilename);
-        	System.err.println(e);
-        	System.exit(-1);
+        	throw new BatchException("Exception reading the parameter file " 
+        			+ parameterFilename, e);
+        }
+        if (p.getProperty(P_PARENT) != null) {
+        	throw new BatchException("Parameter file " + parameterFilename
+        			+ " names parent files, which rows cannot share");
         }
         
+        parameterTemplates.put(problemNumber, p);
         return p;
 	}
 	
@@ -695,24 +1442,24 @@ public class BatchEvolve extends Evolve {
 	 * 
 	 * @param inReader CSVParser for the input file
 	 * @param start ID value to begin processing at
+	 * @return the values of the start line
 	 */
-	private static void skipToStart(LabeledCSVParser inReader, int start) {
+	private static String[] skipToStart(CSVParse inReader, int start) throws BatchException {
 	
+		String[] line = null;
 		try {
 			for (int i=1;i<=start;i++) {
-				String[] line = inReader.getLine();
+				line = inReader.getLine();
 				if (line == null) {
-					System.err.println("Unable to locate start line: " + start);
-					System.exit(-1);
+					throw new BatchException("Unable to locate start line: " + start);
 				}
 			}
 			
 		} catch (Exception e) {
-			System.err.println("Error skipping file");
-			System.err.println(e);
-			System.exit(-1);
+			throw new BatchException("Error skipping file", e);
 		}
 		
+		return line;
 	}
 	
 	/**
@@ -720,7 +1467,7 @@ public class BatchEvolve extends Evolve {
 	 * @param args
 	 * @return
 	 */
-	private static String getBatchFile(String args[]) {
+	private static String getBatchFile(String args[]) throws BatchException {
 		
 		boolean readBatch = false;
 		
@@ -730,21 +1477,18 @@ public class BatchEvolve extends Evolve {
 			
 			if (args[x].equals(A_BATCHFILE)) {
 				if (readBatch) {
-					System.err.println("Duplicate batch filename given");
-					System.exit(-1);
+					throw new BatchException("Duplicate batch filename given");
 				}
 				readBatch = true;
 				if (args.length < (x+2)) {
-					System.err.println("Missing batch filename");
-					System.exit(-1);
+					throw new BatchException("Missing batch filename");
 				}
 				batchFilename = args[x+1];
 			}
 		}
 		
 		if (!readBatch) {
-			System.err.println("No batchfilename argument provided");
-			System.exit(-1);
+			throw new BatchException("No batchfilename argument provided");
 		}
 		
 		return batchFilename;
@@ -756,7 +1500,7 @@ public class BatchEvolve extends Evolve {
 	 * @param args
 	 * @return
 	 */
-	private static String getOutputFile(String args[]) {
+	private static String getOutputFile(String args[]) throws BatchException {
 		
 		boolean readFilename = false;
 		
@@ -766,34 +1510,287 @@ public class BatchEvolve extends Evolve {
 			
 			if (args[x].equals(A_OUTPUT_FILE)) {
 				if (readFilename) {
-					System.err.println("Duplicate output filename given");
-					System.exit(-1);
+					throw new BatchException("Duplicate output filename given");
 				}
 				readFilename = true;
 				if (args.length < (x+2)) {
-					System.err.println("Missing output filename");
-					System.exit(-1);
+					throw new BatchException("Missing output filename");
 				}
 				outputFile = args[x+1];
 			}
 		}
 		
 		if (!readFilename) {
-			System.err.println("No output argument provided");
-			System.exit(-1);
+			throw new BatchException("No output argument provided");
 		}
 		
 		return outputFile;
 		
 	}
 	
+	/**
+	 * Parse the commandline arguments and return the number of rows to
+	 * run at once.  Defaults to 1, which runs rows one after another.
+	 * @param args
+	 * @return
+	 */
+	static int getThreads(String args[]) throws BatchException {
+		
+		int threads = getIntArgument(args, A_THREADS, 1);
+		if (threads < 1) {
+			throw new BatchException("Invalid number of threads: " + threads);
+		}
+		return threads;
+	}
+	
+	/**
+	 * Parse the commandline arguments and return the number of ECJ
+	 * evaluation and breeding threads each row should use: a fixed number,
+	 * ECJ_THREADS_AUTO to choose per row, or 0 to leave the parameter
+	 * file settings alone.
+	 * @param args
+	 * @return
+	 */
+	private static int getEcjThreads(String args[]) throws BatchException {
+		
+		String value = getArgument(args, A_ECJ_THREADS);
+		if (value == null) {
+			return 0;
+		}
+		if (value.equals("auto")) {
+			return ECJ_THREADS_AUTO;
+		}
+		int threads = Integer.parseInt(value);
+		if (threads < 1) {
+			throw new BatchException("Invalid number of ECJ threads: " + threads);
+		}
+		return threads;
+	}
+	
+	/**
+	 * Parse the commandline arguments and return the error allowed in
+	 * probabilities that must add up to 1.
+	 * @param args
+	 * @return
+	 */
+	static double getTolerance(String args[]) throws BatchException {
+		
+		String value = getArgument(args, A_TOLERANCE);
+		if (value == null) {
+			return DEFAULT_TOLERANCE;
+		}
+		double tolerance = Double.parseDouble(value);
+		if (!(tolerance >= 0)) {
+			throw new BatchException("Invalid tolerance: " + tolerance);
+		}
+		return tolerance;
+	}
+	
+	/**
+	 * Parse the commandline arguments and return the fraction of rows to
+	 * rerun with -verify.  Defaults to 1, all rows.
+	 * @param args
+	 * @return
+	 */
+	private static double getSampleFraction(String args[]) throws BatchException {
+		
+		String value = getArgument(args, A_SAMPLE);
+		if (value == null) {
+			return 1.0;
+		}
+		double fraction = Double.parseDouble(value);
+		if (!(fraction > 0 && fraction <= 1)) {
+			throw new BatchException("Invalid sample fraction: " + fraction);
+		}
+		return fraction;
+	}
+	
+	/**
+	 * @param args
+	 * @return whether any row budget was given on the commandline
+	 */
+	private static boolean hasBudget(String args[]) throws BatchException {
+		return getArgument(args, A_MAX_SECONDS) != null
+				|| getArgument(args, A_MAX_EVALUATIONS) != null
+				|| getArgument(args, A_MAX_NODES) != null;
+	}
+	
+	/**
+	 * @param args
+	 * @param startTime time the row started
+	 * @param islands number of islands the row runs as
+	 * @return a budget for a row with the limits given on the commandline,
+	 * 			or null if none were given
+	 */
+	private static RowBudget getRowBudget(String args[], long startTime, int islands) throws BatchException {
+		
+		if (!hasBudget(args)) {
+			return null;
+		}
+		String seconds = getArgument(args, A_MAX_SECONDS);
+		String evaluations = getArgument(args, A_MAX_EVALUATIONS);
+		String nodes = getArgument(args, A_MAX_NODES);
+		try {
+			RowBudget budget = new RowBudget(startTime,
+					seconds == null ? 0 : Double.parseDouble(seconds),
+					evaluations == null ? 0 : Long.parseLong(evaluations),
+					nodes == null ? 0 : Long.parseLong(nodes), islands);
+			if ((seconds != null && !(Double.parseDouble(seconds) > 0))
+					|| (evaluations != null && Long.parseLong(evaluations) < 1)
+					|| (nodes != null && Long.parseLong(nodes) < 1)) {
+				throw new BatchException("Row budgets must be positive");
+			}
+			return budget;
+		} catch (NumberFormatException e) {
+			throw new BatchException("Invalid row budget: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @param args
+	 * @return adaptive replication with the settings given on the
+	 * 			commandline, or null if "-ciwidth" was not given
+	 */
+	private static AdaptiveReplication getAdaptiveReplication(String args[]) throws BatchException {
+		
+		String width = getArgument(args, A_CI_WIDTH);
+		if (width == null) {
+			return null;
+		}
+		if (hasFlag(args, A_LONGEST_FIRST)) {
+			throw new BatchException(A_LONGEST_FIRST + " cannot be used with " + A_CI_WIDTH);
+		}
+		String level = getArgument(args, A_CI_LEVEL);
+		try {
+			return new AdaptiveReplication(Double.parseDouble(width),
+					level == null ? DEFAULT_CI_LEVEL : Double.parseDouble(level),
+					getIntArgument(args, A_MIN_REPLICATES, DEFAULT_MIN_REPLICATES),
+					getIntArgument(args, A_ROUND_SIZE, DEFAULT_ROUND_SIZE));
+		} catch (NumberFormatException e) {
+			throw new BatchException("Invalid adaptive replication setting: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Parse the commandline arguments and return the number of results
+	 * to write between each sync of the result file to disk.  Defaults
+	 * to 1, syncing after every row.
+	 * @param args
+	 * @return
+	 */
+	private static int getSyncInterval(String args[]) throws BatchException {
+		
+		int interval = getIntArgument(args, A_SYNC_EVERY, 1);
+		if (interval < 1) {
+			throw new BatchException("Invalid sync interval: " + interval);
+		}
+		return interval;
+	}
+	
+	/**
+	 * Return the value following an optional commandline argument, or
+	 * null if the argument was not given.
+	 * @param args
+	 * @param name
+	 * @return
+	 */
+	static String getArgument(String args[], String name) throws BatchException {
+		
+		String value = null;
+		
+		for(int x=0;x<args.length;x++) {
+			
+			if (args[x].equals(name)) {
+				if (value != null) {
+					throw new BatchException("Duplicate " + name + " argument given");
+				}
+				if (args.length < (x+2)) {
+					throw new BatchException("Missing value for " + name);
+				}
+				value = args[x+1];
+			}
+		}
+		
+		return value;
+	}
+	
+	/**
+	 * Return the integer value of an optional commandline argument.
+	 * @param args
+	 * @param name
+	 * @param defaultValue value to use if the argument was not given
+	 * @return
+	 */
+	static int getIntArgument(String args[], String name, int defaultValue) throws BatchException {
+		
+		String value = getArgument(args, name);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Integer.parseInt(value);
+	}
+	
+	/**
+	 * @param args
+	 * @param flag
+	 * @return whether a commandline flag taking no value was given
+	 */
+	private static boolean hasFlag(String args[], String flag) {
+		
+		for(int x=0;x<args.length;x++) {
+			if (args[x].equals(flag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Parse commandline arguments to retrieve the IDs of the first and last
+	 * rows to process, and return the line numbers of those rows.
+	 * Window is inclusive.
+	 * @param args
+	 * @param index index of the batch file, or null for a design
+	 * @param design design generating the rows, or null for a batch file
+	 * @return
+	 */
+	private static int[] getStartEndById(String args[], BatchIndex index, BatchDesign design) throws BatchException {
+		
+		String startId = getArgument(args, A_START_ID);
+		String endId = getArgument(args, A_END_ID);
+		if (startId == null || endId == null) {
+			throw new BatchException("Missing start/end IDs");
+		}
+		if (getArgument(args, A_START) != null || getArgument(args, A_END) != null) {
+			throw new BatchException("Give either start/end lines or start/end IDs, not both");
+		}
+		
+		int[] lines = new int[2];
+		if (index != null) {
+			lines[0] = index.getLine(Integer.parseInt(startId));
+			lines[1] = index.getLine(Integer.parseInt(endId));
+		} else {
+			lines[0] = design.getLine(Long.parseLong(startId));
+			lines[1] = design.getLine(Long.parseLong(endId));
+		}
+		if (lines[0] < 0) {
+			throw new BatchException("Unable to locate start ID: " + startId);
+		}
+		if (lines[1] < lines[0]) {
+			throw new BatchException("Unable to locate end ID after start: " + endId);
+		}
+		System.err.println("Starting at line " + lines[0] + " with ID " + startId);
+		System.err.println("Ending at line " + lines[1] + " with ID " + endId);
+		return lines;
+	}
+	
 	/**
 	 * Parse commandline arguments to retrieve start and end line numbers to 
 	 * process from the input file.  Window is inclusive.
 	 * @param args
 	 * @return
 	 */
-	private static int[] getStartEnd(String args[]) {
+	private static int[] getStartEnd(String args[]) throws BatchException {
 		
 		boolean readStart = false;
 		boolean readEnd = false;
@@ -807,12 +1804,10 @@ public class BatchEvolve extends Evolve {
 			
             if (args[x].equals(A_START)) {
             	if (readStart) {
-            		System.err.println("Duplicate start line argument.");
-            		System.exit(-1);
+            		throw new BatchException("Duplicate start line argument.");
             	}
             	if (args.length < (x+2)) {
-            		System.err.println("Missing start line number");
-            		System.exit(-1);
+            		throw new BatchException("Missing start line number");
             	}
             	start = Integer.parseInt(args[x+1]);
             	System.err.println("Starting at line " + start);
@@ -821,12 +1816,10 @@ public class BatchEvolve extends Evolve {
             
             if (args[x].equals(A_END)) {
             	if (readEnd) {
-            		System.err.println("Duplicate end line argument.");
-            		System.exit(-1);
+            		throw new BatchException("Duplicate end line argument.");
             	}
             	if (args.length < (x+2)) {
-            		System.err.println("Missing end line number");
-            		System.exit(-1);
+            		throw new BatchException("Missing end line number");
             	}
             	end = Integer.parseInt(args[x+1]);
             	System.err.println("Ending at line " + end);
@@ -836,8 +1829,7 @@ public class BatchEvolve extends Evolve {
 		}
 		
 		if (!(readStart && readEnd)) {
-			System.err.println("Missing start/end line numbers");
-			System.exit(-1);
+			throw new BatchException("Missing start/end line numbers");
 		}
 		
         lines[0] = start;
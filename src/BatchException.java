@@ -0,0 +1,24 @@
+package test;
+
+/**
+ * An error that stops a batch, such as a bad argument, a bad row or a
+ * file that cannot be read or written.  The batch code throws it rather
+ * than exiting, so that a BatchDaemon can report it to the submitting
+ * process and carry on; the commandline entry points print the message
+ * and exit.
+ * @author drw
+ *
+ */
+public class BatchException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public BatchException(String message) {
+		super(message);
+	}
+
+	public BatchException(String message, Throwable cause) {
+		super(message + ": " + cause, cause);
+	}
+
+}
@@ -0,0 +1,326 @@
+package test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.Ostermiller.util.CSVParser;
+
+/**
+ * Byte offsets of each row of a batch file, so that a shard can start
+ * reading at its first row instead of parsing every line before it.
+ * The index is built on first use and kept next to the batch file as
+ * batchfile + ".idx", and is rebuilt whenever the batch file's length
+ * or modification time no longer match those recorded in it.  Rows can
+ * also be looked up by the value of their ID column.
+ *
+ * The batch file is assumed to hold one row per line, with no quoted
+ * line breaks, which is how the Matlab-generated files are written.
+ *
+ * Index file layout: a fixed header (magic, version, batch file length,
+ * batch file modification time, number of rows), then the offset of
+ * each row followed by the end of the file, then the IDs sorted in
+ * ascending order, then the line number belonging to each sorted ID.
+ * @author drw
+ *
+ */
+public class BatchIndex {
+
+	/** Suffix added to the batch filename for the index file **/
+	public static final String INDEX_SUFFIX = ".idx";
+
+	/** Identifies an index file, and its layout version **/
+	private static final long MAGIC = 0x4241544348494458L;
+	private static final int VERSION = 1;
+
+	/** Size of the fixed header, in bytes **/
+	private static final int HEADER_SIZE = 8 + 4 + 8 + 8 + 4;
+
+	/** Mapped contents of the index file **/
+	private final MappedByteBuffer buffer;
+
+	/** Number of rows in the batch file, excluding the header **/
+	private final int rows;
+
+	/** Positions of each section within the index file **/
+	private final int offsetsStart;
+	private final int idsStart;
+	private final int idLinesStart;
+
+	private BatchIndex(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+		this.rows = buffer.getInt(HEADER_SIZE - 4);
+		this.offsetsStart = HEADER_SIZE;
+		this.idsStart = offsetsStart + 8 * (rows + 1);
+		this.idLinesStart = idsStart + 4 * rows;
+	}
+
+	/**
+	 * Open the index for a batch file, building or rebuilding it first
+	 * if it is missing or out of date.
+	 * @param batchfile
+	 * @return
+	 */
+	public static BatchIndex open(String batchfile) throws BatchException {
+
+		File batch = new File(batchfile);
+		File indexFile = new File(batchfile + INDEX_SUFFIX);
+
+		BatchIndex index = null;
+		try {
+			if (indexFile.exists()) {
+				index = map(indexFile);
+				if (!index.matches(batch)) {
+					System.err.println("Batch file has changed, rebuilding index");
+					index = null;
+				}
+			}
+			if (index == null) {
+				System.err.println("Building index " + indexFile);
+				build(batch, indexFile);
+				index = map(indexFile);
+			}
+		} catch (BatchException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new BatchException("Error opening batch file index " + indexFile, e);
+		}
+		return index;
+	}
+
+	/**
+	 * @return the number of rows in the batch file
+	 */
+	public int getRowCount() {
+		return rows;
+	}
+
+	/**
+	 * Return the byte offset of the start of a line.
+	 * @param line line number, where the first row after the header is 1
+	 * @return
+	 */
+	public long getOffset(int line) throws BatchException {
+		if (line < 1 || line > rows) {
+			throw new BatchException("Unable to locate line: " + line);
+		}
+		return buffer.getLong(offsetsStart + 8 * (line - 1));
+	}
+
+	/**
+	 * Return the line number of the first row with the given ID, or -1 if
+	 * there is no such row.
+	 * @param id
+	 * @return
+	 */
+	public int getLine(int id) {
+		int low = 0;
+		int high = rows - 1;
+		int found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midId = buffer.getInt(idsStart + 4 * mid);
+			if (midId < id) {
+				low = mid + 1;
+			} else {
+				if (midId == id) {
+					found = mid;
+				}
+				high = mid - 1;
+			}
+		}
+		if (found < 0) {
+			return -1;
+		}
+		return buffer.getInt(idLinesStart + 4 * found);
+	}
+
+	/**
+	 * @param batch
+	 * @return whether this index was built from the batch file as it is now
+	 */
+	private boolean matches(File batch) {
+		return buffer.getLong(0) == MAGIC
+			&& buffer.getInt(8) == VERSION
+			&& buffer.getLong(12) == batch.length()
+			&& buffer.getLong(20) == batch.lastModified();
+	}
+
+	/**
+	 * Memory map an existing index file.
+	 * @param indexFile
+	 * @return
+	 * @throws Exception
+	 */
+	private static BatchIndex map(File indexFile) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+													0, channel.size());
+			return new BatchIndex(buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Scan the batch file and write its index.  The index is written to
+	 * a temporary file and renamed into place, so shards starting at the
+	 * same time never see a partial index.
+	 * @param batch
+	 * @param indexFile
+	 * @throws Exception
+	 */
+	private static void build(File batch, File indexFile) throws Exception {
+
+		long length = batch.length();
+		long modified = batch.lastModified();
+
+		long[] offsets = new long[1024];
+		int[] ids = new int[1024];
+		int rows = 0;
+		int idColumn = -1;
+
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(batch), 1 << 16);
+		StringBuilder line = new StringBuilder();
+		long position = 0;
+		long lineStart = 0;
+		try {
+			int c;
+			do {
+				c = in.read();
+				if (c != -1) {
+					position++;
+				}
+				if (c != '\n' && c != -1) {
+					if (c != '\r') {
+						line.append((char)c);
+					}
+					continue;
+				}
+				if (line.length() > 0) {
+					if (idColumn < 0) {
+						idColumn = findColumn(line.toString(), BatchEvolve.L_ID);
+					} else {
+						if (rows == offsets.length) {
+							offsets = grow(offsets);
+							ids = grow(ids);
+						}
+						offsets[rows] = lineStart;
+						ids[rows] = Integer.parseInt(getField(line.toString(), idColumn).trim());
+						rows++;
+					}
+				}
+				line.setLength(0);
+				lineStart = position;
+			} while (c != -1);
+		} finally {
+			in.close();
+		}
+
+		if (idColumn < 0) {
+			throw new BatchException("Batch file has no header line");
+		}
+
+		// Sort line numbers by ID, keeping file order between equal IDs
+		Integer[] order = new Integer[rows];
+		for (int i=0; i<rows; i++) {
+			order[i] = Integer.valueOf(i);
+		}
+		final int[] rowIds = ids;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int ia = rowIds[a.intValue()];
+				int ib = rowIds[b.intValue()];
+				return ia < ib ? -1 : (ia == ib ? 0 : 1);
+			}
+		});
+
+		File tmp = File.createTempFile(indexFile.getName(), ".tmp",
+									indexFile.getAbsoluteFile().getParentFile());
+		DataOutputStream out = new DataOutputStream(
+								new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(length);
+			out.writeLong(modified);
+			out.writeInt(rows);
+			for (int i=0; i<rows; i++) {
+				out.writeLong(offsets[i]);
+			}
+			out.writeLong(position);
+			for (int i=0; i<rows; i++) {
+				out.writeInt(ids[order[i].intValue()]);
+			}
+			for (int i=0; i<rows; i++) {
+				out.writeInt(order[i].intValue() + 1);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(indexFile)) {
+			tmp.delete();
+			throw new BatchException("Unable to write index " + indexFile);
+		}
+	}
+
+	/**
+	 * @param header header line of the batch file
+	 * @param label
+	 * @return the index of the column with the given label
+	 */
+	private static int findColumn(String header, String label) throws BatchException {
+		String[] labels = CSVParser.parse(header)[0];
+		for (int i=0; i<labels.length; i++) {
+			if (labels[i].equals(label)) {
+				return i;
+			}
+		}
+		throw new BatchException("Batch file has no " + label + " column");
+	}
+
+	/**
+	 * Return one field of a CSV line.  Lines without quotes are split
+	 * directly, anything else goes through the CSV parser.
+	 * @param line
+	 * @param column
+	 * @return
+	 */
+	private static String getField(String line, int column) throws BatchException {
+		if (line.indexOf('"') >= 0) {
+			return CSVParser.parse(line)[0][column];
+		}
+		int start = 0;
+		for (int i=0; i<column; i++) {
+			start = line.indexOf(',', start) + 1;
+			if (start == 0) {
+				throw new BatchException("Short line in batch file: " + line);
+			}
+		}
+		int end = line.indexOf(',', start);
+		return end < 0 ? line.substring(start) : line.substring(start, end);
+	}
+
+	private static long[] grow(long[] array) {
+		long[] bigger = new long[array.length * 2];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] bigger = new int[array.length * 2];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+
+}
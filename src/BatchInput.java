@@ -0,0 +1,197 @@
+package test;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import com.Ostermiller.util.BadDelimiterException;
+import com.Ostermiller.util.BadQuoteException;
+import com.Ostermiller.util.CSVParser;
+
+/**
+ * Reads the rows of a batch file.  The file may be plain CSV, gzipped
+ * (.gz) or a gzipped tar archive holding the CSV file (.tar.gz or .tgz,
+ * like the archives in exp/), which is read as a stream without
+ * extracting it.  If the file is a BatchEvolve result file, the response
+ * columns at the end of each line (and the thread columns, if present)
+ * are dropped, so published results can be rerun as they are.
+ * @author drw
+ *
+ */
+public class BatchInput implements BatchSource {
+
+	/** Underlying parser **/
+	private final CSVParser parser;
+
+	/** Labels of the batch columns, without any response columns **/
+	private final String[] labels;
+
+	/** Number of response columns dropped from the end of each line **/
+	private final int responseColumns;
+
+	/** Response columns dropped from the line last read by getLine() **/
+	private String[] lastResponses = null;
+
+	/**
+	 * Open a batch file and read its header.
+	 * @param filename
+	 * @throws IOException
+	 */
+	public BatchInput(String filename) throws IOException {
+		parser = new CSVParser(open(filename));
+		String[] header = parser.getLine();
+		if (header == null) {
+			throw new IOException("Batch file " + filename + " is empty");
+		}
+		responseColumns = countResponseColumns(header);
+		labels = trim(header, header.length - responseColumns);
+		if (responseColumns > 0) {
+			System.err.println("Ignoring " + responseColumns + " response columns in " + filename);
+		}
+	}
+
+	/**
+	 * Read rows from part way through a batch file, whose header has
+	 * already been read by another BatchInput.
+	 * @param in stream positioned at the start of a line
+	 * @param header the other BatchInput
+	 */
+	public BatchInput(InputStream in, BatchInput header) {
+		parser = new CSVParser(in);
+		labels = header.labels;
+		responseColumns = header.responseColumns;
+	}
+
+	/**
+	 * @param filename
+	 * @return a stream of the CSV text of a plain, gzipped or tar.gz file
+	 * @throws IOException
+	 */
+	public static InputStream open(String filename) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(filename));
+		if (isArchive(filename)) {
+			return new TarInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+		} else if (isCompressed(filename)) {
+			return new BufferedInputStream(new GZIPInputStream(in));
+		}
+		return in;
+	}
+
+	/**
+	 * @param filename
+	 * @return whether the file is a gzipped tar archive
+	 */
+	public static boolean isArchive(String filename) {
+		return filename.endsWith(".tar.gz") || filename.endsWith(".tgz");
+	}
+
+	/**
+	 * @param filename
+	 * @return whether the file is compressed, and so cannot be indexed
+	 */
+	public static boolean isCompressed(String filename) {
+		return isArchive(filename) || filename.endsWith(".gz");
+	}
+
+	/**
+	 * @param header
+	 * @return the number of columns at the end of the header that were
+	 * 			added by BatchEvolve to a result file: the response columns
+	 * 			and any columns appended after them
+	 */
+	public static int countResponseColumns(String[] header) {
+		String[] part = BatchEvolve.RESULTS_HEADER_PART;
+		for (int offset=header.length - part.length; offset>0; offset--) {
+			boolean matches = true;
+			for (int i=0; i<part.length && matches; i++) {
+				matches = header[offset + i].trim().equals(part[i].trim());
+			}
+			if (matches) {
+				return header.length - offset;
+			}
+		}
+		return 0;
+	}
+
+	private static String[] trim(String[] line, int length) {
+		if (line == null || line.length <= length) {
+			return line;
+		}
+		String[] trimmed = new String[length];
+		System.arraycopy(line, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	/**
+	 * @return labels of the batch columns
+	 */
+	public String[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return number of response columns dropped from each line
+	 */
+	public int getResponseColumns() {
+		return responseColumns;
+	}
+
+	/**
+	 * @return the response values dropped from the line last read by
+	 * 			getLine(), or null if there were none
+	 */
+	public String[] getLastResponses() {
+		return lastResponses;
+	}
+
+	public String[] getLine() throws IOException {
+		String[] line = parser.getLine();
+		lastResponses = null;
+		if (line != null && responseColumns > 0 && line.length > labels.length) {
+			lastResponses = new String[line.length - labels.length];
+			System.arraycopy(line, labels.length, lastResponses, 0, lastResponses.length);
+		}
+		return trim(line, labels.length);
+	}
+
+	public String[][] getAllValues() throws IOException {
+		String[][] values = parser.getAllValues();
+		if (values != null) {
+			for (int i=0; i<values.length; i++) {
+				values[i] = trim(values[i], labels.length);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Values are returned one at a time as they are in the file, including
+	 * any response columns; use getLine() to have them dropped.
+	 */
+	public String nextValue() throws IOException {
+		return parser.nextValue();
+	}
+
+	public int lastLineNumber() {
+		return parser.lastLineNumber();
+	}
+
+	public int getLastLineNumber() {
+		return parser.getLastLineNumber();
+	}
+
+	public void changeDelimiter(char newDelim) throws BadDelimiterException {
+		parser.changeDelimiter(newDelim);
+	}
+
+	public void changeQuote(char newQuote) throws BadQuoteException {
+		parser.changeQuote(newQuote);
+	}
+
+	public void close() throws IOException {
+		parser.close();
+	}
+
+}
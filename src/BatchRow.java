@@ -0,0 +1,95 @@
+package test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A single line of the batch file, detached from the parser that read it.
+ * LabeledCSVParser only ever holds the most recent line, so rows that are
+ * handed to other threads need their own copy of the values.  Lookups by
+ * label behave the same way as LabeledCSVParser.getValueByLabel().
+ * @author drw
+ *
+ */
+public class BatchRow {
+
+	/** Column index for each header label, shared by every row of a file **/
+	private final Map<String,Integer> labelIndex;
+
+	/** Values for this row, in file order **/
+	private final String[] values;
+
+	/** Line number of this row in the batch file (first data line is 1) **/
+	private final int lineNumber;
+
+	/**
+	 * Create a row from values read from the batch file.
+	 * @param labelIndex index built by indexLabels() from the file header
+	 * @param values values of this line
+	 * @param lineNumber line number within the file
+	 */
+	public BatchRow(Map<String,Integer> labelIndex, String[] values, int lineNumber) {
+		this.labelIndex = labelIndex;
+		this.values = values;
+		this.lineNumber = lineNumber;
+	}
+
+	/**
+	 * Build the label to column index map for a header line.
+	 * @param labels header of the batch file
+	 * @return
+	 */
+	public static Map<String,Integer> indexLabels(String[] labels) {
+		Map<String,Integer> index = new HashMap<String,Integer>();
+		for (int i=0; i<labels.length; i++) {
+			index.put(labels[i], Integer.valueOf(i));
+		}
+		return index;
+	}
+
+	/**
+	 * Return the value in the column with the given label, or null if
+	 * there is no such column.
+	 * @param label
+	 * @return
+	 */
+	public String getValueByLabel(String label) {
+		Integer idx = labelIndex.get(label);
+		if (idx == null || idx.intValue() >= values.length) {
+			return null;
+		}
+		return values[idx.intValue()];
+	}
+
+	/**
+	 * @param label
+	 * @return the index of the column with the given label, or -1 if there
+	 * 			is no such column
+	 */
+	public int getColumn(String label) {
+		Integer idx = labelIndex.get(label);
+		return idx == null ? -1 : idx.intValue();
+	}
+
+	/**
+	 * @return the label to column index map shared by the rows of a file
+	 */
+	public Map<String,Integer> getLabelIndex() {
+		return labelIndex;
+	}
+
+	/**
+	 * @return the values of this row in file order
+	 */
+	public String[] getValues() {
+		return values;
+	}
+
+	/**
+	 * @return the line number of this row within the batch file
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+}
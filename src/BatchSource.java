@@ -0,0 +1,18 @@
+package test;
+
+import com.Ostermiller.util.CSVParse;
+
+/**
+ * The rows of a batch, with the labels of their columns: either read from
+ * a batch file (BatchInput) or generated from a design (BatchDesign).
+ * @author drw
+ *
+ */
+public interface BatchSource extends CSVParse {
+
+	/**
+	 * @return labels of the batch columns
+	 */
+	public String[] getLabels();
+
+}
@@ -0,0 +1,502 @@
+package test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The rules a batch row must follow for its algorithm.  BatchEvolve checks
+ * each row against them before running it, and with "-preflight" checks
+ * every row of the window before running any, so that a bad row is found
+ * before hours of compute rather than when it is reached.  The pre-flight
+ * pass reads the rows once and checks them in parallel, in chunks, and
+ * reports every problem with every bad row.
+ *
+ * Probabilities that must add up to 1 may be out by the tolerance, since
+ * values such as 0.1, 0.2 and 0.7 do not add up to exactly 1 as floats.
+ * The node selection probabilities may only fall short of 1 by it, as
+ * ECJ rejects any that add up to more than 1.
+ * The IslandModel columns are optional, but must directly follow the
+ * published columns if they are there.
+ *
+ * Commandline use, to check a whole batch file or design without
+ * running it:
+ *   java test.BatchValidator -batchfile batch.csv [-tolerance t] [-migrants m] [-threads n]
+ *   java test.BatchValidator -design spec.properties [-tolerance t] [-migrants m] [-threads n]
+ * @author drw
+ *
+ */
+public class BatchValidator {
+
+	/** Rows checked by each task of the pre-flight pass **/
+	public static final int CHUNK_SIZE = 1000;
+
+	/** Whether the parameter file for each problem seen so far exists **/
+	private static final Map<String,Boolean> PARAMETER_FILES = new ConcurrentHashMap<String,Boolean>();
+
+	/** Validator for the batch file whose rows were checked last **/
+	private static volatile BatchValidator last;
+
+	/** Column of each label, -1 if the batch has no such column **/
+	private final int id;
+	private final int algorithm;
+	private final int problem;
+	private final int halfGrowProb;
+	private final int halfMaxDepth;
+	private final int halfMinDepth;
+	private final int root;
+	private final int terminals;
+	private final int xoverMaxDepth;
+	private final int mutateMaxDepth;
+	private final int popSize;
+	private final int opProb;
+	private final int tournamentSize;
+	private final int growMinDepth;
+	private final int growMaxDepth;
+	private final int generations;
+	private final int nonterminals;
+	private final int reproProb;
+	private final int operator;
+	private final int islands;
+	private final int migrationInterval;
+
+	/** Problems with the batch header **/
+	private final List<String> headerProblems = new ArrayList<String>();
+
+	private final float tolerance;
+
+	/** Individuals each island sends at a migration **/
+	private final int migrants;
+
+	private final Map<String,Integer> labelIndex;
+
+	/**
+	 * Resolve the columns of a batch.
+	 * @param labelIndex column of each label, from BatchRow.indexLabels()
+	 * @param tolerance allowed error in probabilities that must add up to 1
+	 * @param migrants individuals each island sends at a migration
+	 */
+	public BatchValidator(Map<String,Integer> labelIndex, double tolerance, int migrants) {
+		this.tolerance = (float)tolerance;
+		this.migrants = migrants;
+		this.labelIndex = labelIndex;
+		id = column(labelIndex, BatchEvolve.L_ID);
+		algorithm = column(labelIndex, BatchEvolve.L_ALGORITHM);
+		problem = column(labelIndex, BatchEvolve.L_PROBLEM);
+		halfGrowProb = column(labelIndex, BatchEvolve.L_HALF_GROW_PROB);
+		halfMaxDepth = column(labelIndex, BatchEvolve.L_HALF_MAX_DEPTH);
+		halfMinDepth = column(labelIndex, BatchEvolve.L_HALF_MIN_DEPTH);
+		root = column(labelIndex, BatchEvolve.L_ROOT);
+		terminals = column(labelIndex, BatchEvolve.L_TERMINALS);
+		xoverMaxDepth = column(labelIndex, BatchEvolve.L_XOVER_MAXDEPTH);
+		mutateMaxDepth = column(labelIndex, BatchEvolve.L_MUTATE_MAXDEPTH);
+		popSize = column(labelIndex, BatchEvolve.L_POP_SIZE);
+		opProb = column(labelIndex, BatchEvolve.L_OP_PROBABILITY);
+		tournamentSize = column(labelIndex, BatchEvolve.L_TS);
+		growMinDepth = column(labelIndex, BatchEvolve.L_GROW_MIN_DEPTH);
+		growMaxDepth = column(labelIndex, BatchEvolve.L_GROW_MAX_DEPTH);
+		generations = column(labelIndex, BatchEvolve.L_GENERATIONS);
+		nonterminals = column(labelIndex, BatchEvolve.L_NONTERMINALS);
+		reproProb = column(labelIndex, BatchEvolve.L_REPRO_PROBABILITY);
+		operator = column(labelIndex, BatchEvolve.L_OP);
+
+		// Results give the island columns after the published ones
+		Integer islandColumn = labelIndex.get(IslandModel.L_ISLANDS);
+		Integer intervalColumn = labelIndex.get(IslandModel.L_MIGRATION_INTERVAL);
+		islands = islandColumn == null ? -1 : islandColumn.intValue();
+		migrationInterval = intervalColumn == null ? -1 : intervalColumn.intValue();
+		if ((islandColumn != null || intervalColumn != null)
+				&& (islands != BatchEvolve.BATCH_LABELS.length
+						|| migrationInterval != BatchEvolve.BATCH_LABELS.length + 1)) {
+			headerProblems.add("Columns " + IslandModel.L_ISLANDS + " and "
+					+ IslandModel.L_MIGRATION_INTERVAL + " must follow " + BatchEvolve.L_OP);
+		}
+	}
+
+	/**
+	 * @param labelIndex column of each label, from BatchRow.getLabelIndex()
+	 * @param tolerance
+	 * @param migrants
+	 * @return a validator for the batch, resolving its columns only when
+	 * 			they differ from the last batch's
+	 */
+	public static BatchValidator forLabels(Map<String,Integer> labelIndex, double tolerance,
+											int migrants) {
+		BatchValidator validator = last;
+		if (validator == null || validator.labelIndex != labelIndex
+				|| validator.tolerance != (float)tolerance || validator.migrants != migrants) {
+			validator = new BatchValidator(labelIndex, tolerance, migrants);
+			last = validator;
+		}
+		return validator;
+	}
+
+	private int column(Map<String,Integer> labelIndex, String label) {
+		Integer column = labelIndex.get(label);
+		if (column == null) {
+			headerProblems.add("Missing column " + label);
+			return -1;
+		}
+		return column.intValue();
+	}
+
+	/**
+	 * @return problems with the batch header, such as missing columns
+	 */
+	public List<String> getHeaderProblems() {
+		return headerProblems;
+	}
+
+	/**
+	 * Check a row against the rules for its algorithm.
+	 * @param values values of the row
+	 * @return every problem found, empty if the row is valid
+	 */
+	public List<String> check(String[] values) {
+
+		Row row = new Row(values);
+		if (!headerProblems.isEmpty()) {
+			row.problems.addAll(headerProblems);
+			return row.problems;
+		}
+
+		String problemNumber = row.text(problem);
+		if (!parameterFileExists(problemNumber)) {
+			row.problems.add("No parameter file for problem " + problemNumber);
+		}
+
+		String alg = row.text(algorithm);
+		if (alg.equals(BatchEvolve.ALG_DEFAULTS)) {
+			// Everything comes from the parameter file
+			row.unused(halfGrowProb, "grow probability");
+			row.unused(halfMaxDepth, "half max depth");
+			row.unused(halfMinDepth, "half min depth");
+			row.unused(root, "root probability");
+			row.unused(terminals, "terminals probability");
+			row.unused(xoverMaxDepth, "xo max depth");
+			row.unused(mutateMaxDepth, "mutation max depth");
+			row.unused(popSize, "pop size");
+			row.unused(opProb, "operator probability");
+			row.unused(tournamentSize, "tournament selection size");
+			row.unused(growMinDepth, "min grow size");
+			row.unused(growMaxDepth, "max grow size");
+			row.unused(generations, "generations");
+			row.unused(nonterminals, "nonterm probability");
+			row.unused(reproProb, "reproduction probability");
+			row.unused(operator, "operator");
+			if (islands >= 0) {
+				row.unused(islands, "islands");
+				row.unused(migrationInterval, "migration interval");
+			}
+			return row.problems;
+		}
+		if (!alg.equals(BatchEvolve.ALG_CROSSOVER) && !alg.equals(BatchEvolve.ALG_MUTATION)) {
+			row.problems.add("Unrecognised algorithm type " + alg);
+			return row.problems;
+		}
+
+		// Shared by crossover and mutation
+		row.probability(halfGrowProb, "grow probability");
+		int halfMax = row.integer(halfMaxDepth, "half maximum depth", 1);
+		int halfMin = row.integer(halfMinDepth, "half minimum depth", 1);
+		if (halfMin > halfMax && halfMax > 0) {
+			row.problems.add("Invalid half minimum depth " + halfMin + ", above maximum " + halfMax);
+		}
+		float nsRoot = row.probability(root, "root selection prob");
+		float nsTerminals = row.probability(terminals, "terminals selection prob");
+		if (nsRoot + nsTerminals > 1) {
+			row.problems.add("Invalid terminals selection prob " + nsTerminals
+								+ ", with root " + nsRoot + " above 1");
+		}
+		int pop = row.integer(popSize, "population size", 1);
+		float op = row.probability(opProb, "operator probability");
+		row.integer(tournamentSize, "tournament size", 1);
+		row.integer(generations, "generations", 1);
+		float repro = row.probability(reproProb, "reproduction probability");
+		if (!isOne(repro + op)) {
+			row.problems.add("Invalid reproduction probability " + repro
+								+ ", with operator probability " + op + " not adding up to 1");
+		}
+		float nsNonterminals = row.probability(nonterminals, "nonterminals probability");
+		// Summed in the order KozaNodeSelector sums them, which fails the
+		// run if they come to more than 1
+		float nsSum = nsRoot + nsTerminals + nsNonterminals;
+		if (nsSum > 1) {
+			row.problems.add("Invalid nonterminals probability " + nsNonterminals + ", with terminals "
+								+ nsTerminals + " and root " + nsRoot + " adding up to more than 1");
+		} else if (nsSum < 1 - tolerance) {
+			row.problems.add("Invalid nonterminals probability " + nsNonterminals + ", with terminals "
+								+ nsTerminals + " and root " + nsRoot + " not adding up to 1");
+		}
+
+		if (alg.equals(BatchEvolve.ALG_CROSSOVER)) {
+			row.integer(xoverMaxDepth, "XO max depth", 1);
+			row.operator(operator, "ec.gp.koza.CrossoverPipeline");
+			row.unused(mutateMaxDepth, "mutation max depth");
+			row.unused(growMinDepth, "mutation grow min depth");
+			row.unused(growMaxDepth, "mutation grow max depth");
+		} else {
+			row.integer(mutateMaxDepth, "mutation max depth", 1);
+			int growMin = row.integer(growMinDepth, "grow min depth", 1);
+			int growMax = row.integer(growMaxDepth, "grow max depth", 1);
+			if (growMax != growMin && growMin > 0 && growMax > 0) {
+				row.problems.add("Invalid grow max depth " + growMax + ", not equal to min depth " + growMin);
+			}
+			row.operator(operator, "ec.gp.koza.MutationPipeline");
+			row.unused(xoverMaxDepth, "crossover max depth");
+		}
+
+		// Each island must be big enough to send its migrants and keep one
+		if (islands >= 0 && !row.text(islands).equals(BatchEvolve.NULL_SYMBOL)) {
+			int count = row.integer(islands, "number of islands", 1);
+			if (count > 1) {
+				row.integer(migrationInterval, "migration interval", 1);
+				if (pop > 0 && pop / count <= migrants) {
+					row.problems.add("Invalid number of islands " + count + " for population "
+									+ pop + " and " + migrants + " migrants");
+				}
+			} else {
+				row.unused(migrationInterval, "migration interval");
+			}
+		} else if (islands >= 0) {
+			row.unused(migrationInterval, "migration interval");
+		}
+		return row.problems;
+	}
+
+	private boolean isOne(float sum) {
+		return Math.abs(sum - 1) <= tolerance;
+	}
+
+	/**
+	 * Values of one row being checked, and the problems found so far.
+	 */
+	private static class Row {
+		final String[] values;
+		final List<String> problems = new ArrayList<String>();
+
+		Row(String[] values) {
+			this.values = values;
+		}
+
+		String text(int column) {
+			return column < values.length && values[column] != null ? values[column] : "";
+		}
+
+		/**
+		 * @return the value, or NaN (with a problem recorded) if it is not a
+		 * 			probability
+		 */
+		float probability(int column, String name) {
+			String text = text(column);
+			try {
+				float value = Float.parseFloat(text);
+				if (!(value >= 0 && value <= 1)) {
+					problems.add("Invalid " + name + " " + text);
+				}
+				return value;
+			} catch (NumberFormatException e) {
+				problems.add("Invalid " + name + " " + text);
+				return Float.NaN;
+			}
+		}
+
+		/**
+		 * @return the value, or 0 (with a problem recorded) if it is not an
+		 * 			integer of at least min
+		 */
+		int integer(int column, String name, int min) {
+			String text = text(column);
+			try {
+				int value = Integer.parseInt(text);
+				if (value < min) {
+					problems.add("Invalid " + name + " " + text);
+					return 0;
+				}
+				return value;
+			} catch (NumberFormatException e) {
+				problems.add("Invalid " + name + " " + text);
+				return 0;
+			}
+		}
+
+		void operator(int column, String expected) {
+			if (!text(column).equals(expected)) {
+				problems.add("Invalid genetic operator " + text(column));
+			}
+		}
+
+		void unused(int column, String name) {
+			if (!text(column).equals(BatchEvolve.NULL_SYMBOL)) {
+				problems.add("Unexpected " + name + " " + text(column));
+			}
+		}
+	}
+
+	/**
+	 * @param problemNumber
+	 * @return whether BatchEvolve will find a parameter file for the problem
+	 */
+	private static boolean parameterFileExists(String problemNumber) {
+		Boolean exists = PARAMETER_FILES.get(problemNumber);
+		if (exists == null) {
+			exists = Boolean.valueOf(
+					new File(BatchEvolve.PARAMETER_PATH + problemNumber + ".params").isFile());
+			PARAMETER_FILES.put(problemNumber, exists);
+		}
+		return exists.booleanValue();
+	}
+
+	/**
+	 * Check rows start to end of a batch in parallel and print every
+	 * problem with every bad row.
+	 * @param source batch, positioned before its first row
+	 * @param start first line to check, from 1
+	 * @param end last line to check, or 0 for the end of the batch
+	 * @param threads
+	 * @param tolerance allowed error in probabilities that must add up to 1
+	 * @param migrants individuals each island sends at a migration
+	 * @return number of bad rows
+	 */
+	public static int validate(BatchSource source, int start, int end, int threads,
+								double tolerance, int migrants) throws BatchException {
+
+		final BatchValidator validator = new BatchValidator(
+								BatchRow.indexLabels(source.getLabels()), tolerance, migrants);
+		if (!validator.getHeaderProblems().isEmpty()) {
+			System.err.println("Bad batch header: " + join(validator.getHeaderProblems()));
+			return -1;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		LinkedList<Future<List<String>>> pending = new LinkedList<Future<List<String>>>();
+		int bad = 0;
+		int checked = 0;
+		try {
+			int line = 0;
+			if (source instanceof BatchDesign) {
+				((BatchDesign)source).seek(start);
+				line = start - 1;
+			}
+			List<String[]> chunk = new ArrayList<String[]>();
+			int chunkStart = Math.max(line + 1, start);
+			String[] values;
+			while ((end == 0 || line < end) && (values = source.getLine()) != null) {
+				line++;
+				if (line < start) {
+					continue;
+				}
+				chunk.add(values);
+				checked++;
+				if (chunk.size() == CHUNK_SIZE) {
+					pending.addLast(pool.submit(validator.task(chunk, chunkStart)));
+					chunk = new ArrayList<String[]>();
+					chunkStart = line + 1;
+					// Bound the number of rows held in memory
+					if (pending.size() >= threads * 2) {
+						bad += report(pending.removeFirst());
+					}
+				}
+			}
+			if (!chunk.isEmpty()) {
+				pending.addLast(pool.submit(validator.task(chunk, chunkStart)));
+			}
+			while (!pending.isEmpty()) {
+				bad += report(pending.removeFirst());
+			}
+			if (end != 0 && line < end) {
+				System.err.println("Batch ends at line " + line + ", before end line " + end);
+				bad++;
+			}
+		} catch (Exception e) {
+			throw new BatchException("Error reading batch for pre-flight checks", e);
+		} finally {
+			pool.shutdown();
+		}
+		System.err.println("Pre-flight checks found " + bad + " bad rows out of " + checked);
+		return bad;
+	}
+
+	/**
+	 * @param chunk rows to check
+	 * @param firstLine line number of the first of them
+	 * @return a task returning a message for each bad row
+	 */
+	private Callable<List<String>> task(final List<String[]> chunk, final int firstLine) {
+		return new Callable<List<String>>() {
+			public List<String> call() {
+				List<String> messages = new ArrayList<String>();
+				for (int i=0; i<chunk.size(); i++) {
+					List<String> problems = check(chunk.get(i));
+					if (!problems.isEmpty()) {
+						String[] values = chunk.get(i);
+						messages.add("Line " + (firstLine + i) + " with ID "
+								+ (id < values.length ? values[id] : "?") + ": " + join(problems));
+					}
+				}
+				return messages;
+			}
+		};
+	}
+
+	private static int report(Future<List<String>> future) throws Exception {
+		List<String> messages = future.get();
+		for (String message : messages) {
+			System.err.println(message);
+		}
+		return messages.size();
+	}
+
+	/**
+	 * @param problems
+	 * @return the problems as one line
+	 */
+	public static String join(List<String> problems) {
+		StringBuilder joined = new StringBuilder();
+		for (String problem : problems) {
+			if (joined.length() > 0) {
+				joined.append("; ");
+			}
+			joined.append(problem);
+		}
+		return joined.toString();
+	}
+
+	public static void main(String[] args) {
+
+		try {
+			String batchfile = BatchEvolve.getArgument(args, BatchEvolve.A_BATCHFILE);
+			String designFile = BatchEvolve.getArgument(args, BatchEvolve.A_DESIGN);
+			if ((batchfile == null) == (designFile == null)) {
+				System.err.println("Give either -batchfile batch.csv or -design spec.properties");
+				System.exit(-1);
+			}
+			BatchSource source = null;
+			try {
+				source = batchfile != null ? new BatchInput(batchfile) : new BatchDesign(designFile);
+			} catch (Exception e) {
+				System.err.println("Can't open batch: " + e);
+				System.exit(-1);
+			}
+			int bad = validate(source, 1, 0, BatchEvolve.getThreads(args), BatchEvolve.getTolerance(args),
+							BatchEvolve.getIntArgument(args, BatchEvolve.A_MIGRANTS, BatchEvolve.DEFAULT_MIGRANTS));
+			try {
+				source.close();
+			} catch (Exception e) {
+				System.err.println("Error closing batch " + e);
+			}
+			System.exit(bad == 0 ? 0 : -1);
+		} catch (BatchException e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
+		}
+	}
+
+}
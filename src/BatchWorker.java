@@ -0,0 +1,200 @@
+package test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.Ostermiller.util.CSVParser;
+import com.Ostermiller.util.CSVPrinter;
+
+/**
+ * Pulls rows from a BatchCoordinator, runs them through ECJ and sends the
+ * results back, until the coordinator has no rows left.  Each connection
+ * runs one row at a time; a worker started with several threads opens one
+ * connection per thread.  While a row runs the worker sends ALIVE every
+ * HEARTBEAT_MILLIS, so the coordinator can tell a long row from a worker
+ * that has hung or lost its host.
+ * @author drw
+ *
+ */
+public class BatchWorker implements Runnable {
+
+	/** Time to wait before asking again when the coordinator says WAIT **/
+	public static final long WAIT_MILLIS = 1000;
+
+	/** Time between the messages telling the coordinator a row is still running **/
+	public static final long HEARTBEAT_MILLIS = 10000;
+
+	private final String host;
+	private final int port;
+	private final String[] args;
+
+	/**
+	 * @param host coordinator host
+	 * @param port coordinator port
+	 * @param args commandline arguments, passed through to runRow()
+	 */
+	public BatchWorker(String host, int port, String[] args) {
+		this.host = host;
+		this.port = port;
+		this.args = args;
+	}
+
+	/**
+	 * Run the given number of connections to the coordinator, returning
+	 * once all of them have been told there is no more work.
+	 * @param address coordinator as host:port
+	 * @param threads
+	 * @param args commandline arguments
+	 */
+	public static void work(String address, int threads, String[] args) {
+
+		int colon = address.lastIndexOf(':');
+		if (colon < 0) {
+			System.err.println("Coordinator address should be host:port, was " + address);
+			System.exit(-1);
+		}
+		String host = address.substring(0, colon);
+		int port = Integer.parseInt(address.substring(colon + 1));
+
+		Thread[] workers = new Thread[threads];
+		for (int i=0; i<threads; i++) {
+			workers[i] = new Thread(new BatchWorker(host, port, args), "worker-" + i);
+			workers[i].start();
+		}
+		for (int i=0; i<threads; i++) {
+			try {
+				workers[i].join();
+			} catch (InterruptedException e) {
+				System.err.println("Interrupted waiting for worker " + i);
+				System.exit(-1);
+			}
+		}
+	}
+
+	public void run() {
+
+		Socket socket = null;
+		try {
+			socket = new Socket(host, port);
+			BufferedReader in = new BufferedReader(
+									new InputStreamReader(socket.getInputStream()));
+			final CSVPrinter out = new CSVPrinter(new OutputStreamWriter(socket.getOutputStream()));
+
+			String[] headerMessage = CSVParser.parse(in.readLine())[0];
+			if (!headerMessage[0].equals(BatchCoordinator.M_HEADER)) {
+				System.err.println("Expected header from coordinator, got " + headerMessage[0]);
+				System.exit(-1);
+			}
+			String[] header = new String[Integer.parseInt(headerMessage[1])];
+			System.arraycopy(headerMessage, 2, header, 0, header.length);
+			Map<String,Integer> labelIndex = BatchRow.indexLabels(header);
+			
+			// Results must have the columns the coordinator writes
+			String[] resultsHeader = new String[headerMessage.length - 2 - header.length];
+			System.arraycopy(headerMessage, 2 + header.length, resultsHeader, 0, resultsHeader.length);
+			if (!Arrays.equals(resultsHeader, BatchEvolve.getResultsHeader(args))) {
+				System.err.println("Coordinator writes response columns " + Arrays.toString(resultsHeader)
+						+ " but this worker's flags give " + Arrays.toString(BatchEvolve.getResultsHeader(args)));
+				System.exit(-1);
+			}
+
+			while (true) {
+				synchronized (out) {
+					out.writeln(BatchCoordinator.M_GET);
+				}
+				String message = in.readLine();
+				if (message == null) {
+					System.err.println("Coordinator closed the connection");
+					return;
+				}
+				String[] fields = CSVParser.parse(message)[0];
+
+				if (fields[0].equals(BatchCoordinator.M_DONE)) {
+					return;
+				} else if (fields[0].equals(BatchCoordinator.M_WAIT)) {
+					Thread.sleep(WAIT_MILLIS);
+				} else if (fields[0].equals(BatchCoordinator.M_ROW)) {
+					String[] values = new String[fields.length - 2];
+					System.arraycopy(fields, 2, values, 0, values.length);
+					BatchRow row = new BatchRow(labelIndex, values, Integer.parseInt(fields[1]));
+					RowResult result = null;
+					Thread heartbeat = startHeartbeat(out);
+					try {
+						result = BatchEvolve.runRow(row, args);
+					} catch (BatchException e) {
+						// Report a bad row and carry on, rather than stopping
+						// each worker it is handed to in turn
+						System.err.println(e.getMessage());
+						stopHeartbeat(heartbeat);
+						synchronized (out) {
+							out.write(BatchCoordinator.M_FAILED);
+							out.write(Integer.toString(row.getLineNumber()));
+							out.writeln(e.getMessage());
+						}
+						continue;
+					}
+					stopHeartbeat(heartbeat);
+					synchronized (out) {
+						out.writeln(BatchCoordinator.encodeResult(result));
+					}
+				} else {
+					System.err.println("Unexpected message from coordinator: " + fields[0]);
+					System.exit(-1);
+				}
+			}
+		} catch (BatchException e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
+		} catch (Exception e) {
+			System.err.println("Lost connection to coordinator " + host + ":" + port);
+			System.err.println(e);
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (Exception e) {
+					// already gone
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start sending ALIVE to the coordinator every HEARTBEAT_MILLIS.
+	 * @param out connection to the coordinator, locked for each message
+	 * @return the thread sending them
+	 */
+	private static Thread startHeartbeat(final CSVPrinter out) {
+		Thread heartbeat = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(HEARTBEAT_MILLIS);
+						synchronized (out) {
+							out.writeln(BatchCoordinator.M_ALIVE);
+						}
+					}
+				} catch (Exception e) {
+					// stopped, or the connection is gone
+				}
+			}
+		}, Thread.currentThread().getName() + "-heartbeat");
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+		return heartbeat;
+	}
+
+	/**
+	 * Stop sending ALIVE, waiting for any message being sent to finish.
+	 * @param heartbeat
+	 */
+	private static void stopHeartbeat(Thread heartbeat) throws InterruptedException {
+		heartbeat.interrupt();
+		heartbeat.join();
+	}
+
+}
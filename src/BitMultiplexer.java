@@ -0,0 +1,56 @@
+package test;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.app.multiplexerslow.Multiplexer;
+import ec.util.Parameter;
+
+/**
+ * Multiplexer, used by problem 16 (the 11-multiplexer), with each tree
+ * run by MultiplexerProgram over 64 fitness cases at a time.  Trees
+ * holding nodes MultiplexerProgram does not know are evaluated by
+ * Multiplexer as usual.
+ * @author drw
+ *
+ */
+public class BitMultiplexer extends Multiplexer {
+
+	/** Program for the individual being evaluated **/
+	private MultiplexerProgram program;
+
+	/** Whether to check every evaluation against Multiplexer **/
+	private boolean check;
+
+	public void setup(final EvolutionState state, final Parameter base) {
+		super.setup(state, base);
+		if (bits < 1 || bits > MultiplexerProgram.MAX_BITS) {
+			state.output.fatal("BitMultiplexer supports 1 to " + MultiplexerProgram.MAX_BITS
+								+ " address bits, not " + bits, base.push(P_NUMBITS));
+		}
+		program = new MultiplexerProgram(bits);
+		check = FastEvaluation.isChecked(state, base);
+	}
+
+	public Object clone() {
+		BitMultiplexer myobj = (BitMultiplexer)(super.clone());
+		myobj.program = new MultiplexerProgram(bits);
+		return myobj;
+	}
+
+	public void evaluate(final EvolutionState state, final Individual ind, final int threadnum) {
+		if (ind.evaluated) {
+			return;
+		}
+		Individual copy = null;
+		if (check) {
+			copy = FastEvaluation.uncheckedCopy(ind);
+		}
+		if (!program.evaluate(state, ind)) {
+			super.evaluate(state, ind, threadnum);
+		} else if (check) {
+			super.evaluate(state, copy, threadnum);
+			FastEvaluation.checkFitness(state, ind, copy);
+		}
+	}
+
+}
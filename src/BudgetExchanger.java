@@ -0,0 +1,97 @@
+package test;
+
+import ec.EvolutionState;
+import ec.Exchanger;
+import ec.Individual;
+import ec.Population;
+import ec.util.Parameter;
+
+/**
+ * Put in place of a row's exchanger, by BatchEvolutionState, to stop the
+ * run when a RowBudget runs out.  It passes every call on to the exchanger
+ * it replaces, and after the pre-breeding exchange, once a generation has
+ * been evaluated, spends the generation from the budget.  If a budget has run out, runComplete()
+ * ends the run there, as ECJ does when an exchanger asks it to shut down.
+ * @author drw
+ *
+ */
+public class BudgetExchanger extends Exchanger {
+
+	private final RowBudget budget;
+
+	/** Island of the row this exchanger is for, 0 if there is one population **/
+	private final int island;
+
+	private final Exchanger exchanger;
+
+	/** Tree nodes bred in the last generation but not yet evaluated **/
+	private long unevaluated;
+
+	/**
+	 * @param budget
+	 * @param island
+	 * @param exchanger the state's own exchanger
+	 */
+	public BudgetExchanger(RowBudget budget, int island, Exchanger exchanger) {
+		this.budget = budget;
+		this.island = island;
+		this.exchanger = exchanger;
+	}
+
+	public void setup(EvolutionState state, Parameter base) {
+		exchanger.setup(state, base);
+	}
+
+	public void initializeContacts(EvolutionState state) {
+		exchanger.initializeContacts(state);
+	}
+
+	public void reinitializeContacts(EvolutionState state) {
+		exchanger.reinitializeContacts(state);
+	}
+
+	public Population preBreedingExchangePopulation(EvolutionState state) {
+		return exchanger.preBreedingExchangePopulation(state);
+	}
+
+	public Population postBreedingExchangePopulation(EvolutionState state) {
+		Population population = exchanger.postBreedingExchangePopulation(state);
+		unevaluated = countNodes(population, true);
+		return population;
+	}
+
+	public String runComplete(EvolutionState state) {
+		long populationNodes = countNodes(state.population, false);
+		// Everything in the initial population is evaluated
+		long evaluated = state.generation == 0 ? populationNodes : unevaluated;
+		String stopped = budget.spend(island, evaluated, populationNodes);
+		if (stopped != null) {
+			return "Row stopped by its " + stopped;
+		}
+		return exchanger.runComplete(state);
+	}
+
+	public void closeContacts(EvolutionState state, int result) {
+		exchanger.closeContacts(state, result);
+	}
+
+	/**
+	 * @param population
+	 * @param unevaluatedOnly whether to count only individuals still to be
+	 * 			evaluated
+	 * @return tree nodes in the population
+	 */
+	private static long countNodes(Population population, boolean unevaluatedOnly) {
+		long nodes = 0;
+		for (int s=0; s<population.subpops.length; s++) {
+			Individual[] individuals = population.subpops[s].individuals;
+			for (int i=0; i<individuals.length; i++) {
+				if (!unevaluatedOnly || !individuals[i].evaluated) {
+					nodes += individuals[i].size();
+				}
+			}
+		}
+		return nodes;
+	}
+
+}
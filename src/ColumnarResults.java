@@ -0,0 +1,592 @@
+package test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.Ostermiller.util.CSVParser;
+import com.Ostermiller.util.CSVPrinter;
+
+/**
+ * Result file in a compact column-wise binary form, converted from and
+ * back to the CSV layout written by BatchEvolve.  Rows are stored in
+ * blocks of up to BLOCK_ROWS.  Within a block each column is stored as
+ * whichever of these holds every value exactly (so that converting back
+ * gives the same CSV text):
+ *   T_STRING - a dictionary of the distinct values and a one byte index
+ *              per row, for columns with at most DICTIONARY_SIZE distinct
+ *              values (the parameter settings and pipeline class names)
+ *   T_INT    - ints, as differences from the previous row (IDs, seeds)
+ *   T_FLOAT  - float bits (fitness)
+ *   T_DOUBLE - double bits
+ *   T_TEXT   - anything else, as strings
+ * and each column of each block is deflated separately.  Loading a
+ * numeric column needs no text parsing beyond the dictionary.
+ *
+ * File layout (all through DataOutputStream):
+ *   int MAGIC, int VERSION, int columns, UTF label per column, then for
+ *   each block: int rows, and per column: byte type, int length, length
+ *   bytes of deflated data.  A block of 0 rows ends the file.
+ *
+ * Usage:
+ *   java test.ColumnarResults -tocolumns results.csv results.col
+ *   java test.ColumnarResults -tocsv results.col results.csv
+ * @author drw
+ *
+ */
+public class ColumnarResults {
+
+	/** Identifies a columnar result file **/
+	public static final int MAGIC = 0x52474331;
+
+	/** Format version **/
+	public static final int VERSION = 1;
+
+	/** Largest number of rows in one block **/
+	public static final int BLOCK_ROWS = 65536;
+
+	/** Column encodings **/
+	public static final byte T_INT = 0;
+	public static final byte T_FLOAT = 1;
+	public static final byte T_DOUBLE = 2;
+	public static final byte T_STRING = 3;
+	public static final byte T_TEXT = 4;
+
+	/** Most distinct values in a T_STRING column, so each fits in a byte **/
+	public static final int DICTIONARY_SIZE = 256;
+
+	/** Commandline arguments **/
+	public static final String A_TO_COLUMNS = "-tocolumns";
+	public static final String A_TO_CSV = "-tocsv";
+
+	/** Column labels **/
+	private final String[] header;
+
+	/** Number of rows **/
+	private int rowCount = 0;
+
+	/** Encoding of each column in each block, indexed [block][column] **/
+	private final List<byte[]> blockTypes = new ArrayList<byte[]>();
+
+	/**
+	 * Decoded values of each column in each block, indexed [block][column]:
+	 * an int[], float[], double[] or String[], or for T_STRING an Object[]
+	 * holding the String[] dictionary and the byte[] index of each row.
+	 */
+	private final List<Object[]> blockValues = new ArrayList<Object[]>();
+
+	private ColumnarResults(String[] header) {
+		this.header = header;
+	}
+
+	/**
+	 * @return column labels
+	 */
+	public String[] getHeader() {
+		return header;
+	}
+
+	/**
+	 * @return number of rows, not counting the header
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @param label
+	 * @return index of the column with this label, or -1 if there is none
+	 */
+	public int getColumn(String label) {
+		for (int c=0; c<header.length; c++) {
+			if (header[c].trim().equals(label.trim())) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param column
+	 * @return whether every block stores the column as ints
+	 */
+	public boolean isIntColumn(int column) {
+		for (byte[] types : blockTypes) {
+			if (types[column] != T_INT) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param column
+	 * @return whether every value in the column is a number
+	 */
+	public boolean isFloatColumn(int column) {
+		for (int b=0; b<blockTypes.size(); b++) {
+			switch (blockTypes.get(b)[column]) {
+			case T_INT:
+			case T_FLOAT:
+				break;
+			case T_STRING:
+				if (parseDictionary(blockValues.get(b)[column]) == null) {
+					return false;
+				}
+				break;
+			default:
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param column a column for which isIntColumn() is true
+	 * @return the column's values
+	 */
+	public int[] getInts(int column) {
+		if (!isIntColumn(column)) {
+			throw new IllegalArgumentException("Column " + header[column] + " is not all ints");
+		}
+		int[] values = new int[rowCount];
+		int row = 0;
+		for (int b=0; b<blockValues.size(); b++) {
+			int[] block = (int[])blockValues.get(b)[column];
+			System.arraycopy(block, 0, values, row, block.length);
+			row += block.length;
+		}
+		return values;
+	}
+
+	/**
+	 * @param column a column for which isFloatColumn() is true
+	 * @return the column's values
+	 */
+	public float[] getFloats(int column) {
+		if (!isFloatColumn(column)) {
+			throw new IllegalArgumentException("Column " + header[column] + " is not all numbers");
+		}
+		float[] values = new float[rowCount];
+		int row = 0;
+		for (int b=0; b<blockValues.size(); b++) {
+			Object block = blockValues.get(b)[column];
+			switch (blockTypes.get(b)[column]) {
+			case T_FLOAT:
+				float[] floats = (float[])block;
+				System.arraycopy(floats, 0, values, row, floats.length);
+				row += floats.length;
+				break;
+			case T_INT:
+				for (int v : (int[])block) {
+					values[row++] = v;
+				}
+				break;
+			case T_STRING:
+				float[] dictionary = parseDictionary(block);
+				for (byte v : (byte[])((Object[])block)[1]) {
+					values[row++] = dictionary[v & 0xff];
+				}
+				break;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @param block decoded T_STRING column
+	 * @return the dictionary as numbers, or null if it holds anything else
+	 */
+	private static float[] parseDictionary(Object block) {
+		String[] dictionary = (String[])((Object[])block)[0];
+		float[] numbers = new float[dictionary.length];
+		try {
+			for (int d=0; d<dictionary.length; d++) {
+				numbers[d] = Float.parseFloat(dictionary[d]);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return numbers;
+	}
+
+	/**
+	 * @param column
+	 * @return the column's values as they appear in the CSV file
+	 */
+	public String[] getStrings(int column) {
+		String[] values = new String[rowCount];
+		int row = 0;
+		for (int b=0; b<blockValues.size(); b++) {
+			Object block = blockValues.get(b)[column];
+			switch (blockTypes.get(b)[column]) {
+			case T_INT:
+				for (int v : (int[])block) {
+					values[row++] = Integer.toString(v);
+				}
+				break;
+			case T_FLOAT:
+				for (float v : (float[])block) {
+					values[row++] = Float.toString(v);
+				}
+				break;
+			case T_DOUBLE:
+				for (double v : (double[])block) {
+					values[row++] = Double.toString(v);
+				}
+				break;
+			case T_STRING:
+				String[] dictionary = (String[])((Object[])block)[0];
+				for (byte v : (byte[])((Object[])block)[1]) {
+					values[row++] = dictionary[v & 0xff];
+				}
+				break;
+			case T_TEXT:
+				String[] text = (String[])block;
+				System.arraycopy(text, 0, values, row, text.length);
+				row += text.length;
+				break;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Read a columnar result file.
+	 * @param filename
+	 * @return
+	 * @throws Exception
+	 */
+	public static ColumnarResults read(String filename) throws Exception {
+
+		DataInputStream in = new DataInputStream(
+								new BufferedInputStream(new FileInputStream(filename)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new Exception(filename + " is not a columnar result file");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new Exception("Unsupported columnar result file version " + version);
+			}
+			String[] header = new String[in.readInt()];
+			for (int c=0; c<header.length; c++) {
+				header[c] = in.readUTF();
+			}
+
+			ColumnarResults results = new ColumnarResults(header);
+			int rows;
+			while ((rows = in.readInt()) > 0) {
+				byte[] types = new byte[header.length];
+				Object[] values = new Object[header.length];
+				for (int c=0; c<header.length; c++) {
+					types[c] = in.readByte();
+					byte[] packed = new byte[in.readInt()];
+					in.readFully(packed);
+					values[c] = decode(types[c], rows, packed);
+				}
+				results.blockTypes.add(types);
+				results.blockValues.add(values);
+				results.rowCount += rows;
+			}
+			return results;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write a CSV result file in columnar form.
+	 * @param csvFile
+	 * @param columnFile
+	 * @throws Exception
+	 */
+	public static void fromCsv(String csvFile, String columnFile) throws Exception {
+
+		CSVParser parser = new CSVParser(new BufferedInputStream(new FileInputStream(csvFile)));
+		DataOutputStream out = new DataOutputStream(
+								new BufferedOutputStream(new FileOutputStream(columnFile)));
+		try {
+			String[] header = parser.getLine();
+			if (header == null) {
+				throw new Exception("Empty result file " + csvFile);
+			}
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(header.length);
+			for (int c=0; c<header.length; c++) {
+				out.writeUTF(header[c]);
+			}
+
+			List<String[]> block = new ArrayList<String[]>();
+			String[] line;
+			while ((line = parser.getLine()) != null) {
+				if (line.length != header.length) {
+					throw new Exception("Row at line " + parser.getLastLineNumber()
+										+ " of " + csvFile + " has " + line.length
+										+ " values, expected " + header.length);
+				}
+				block.add(line);
+				if (block.size() == BLOCK_ROWS) {
+					writeBlock(out, block, header.length);
+					block.clear();
+				}
+			}
+			if (!block.isEmpty()) {
+				writeBlock(out, block, header.length);
+			}
+			out.writeInt(0);
+		} finally {
+			parser.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Write a columnar result file back out as CSV, as BatchEvolve would.
+	 * @param columnFile
+	 * @param csvFile
+	 * @throws Exception
+	 */
+	public static void toCsv(String columnFile, String csvFile) throws Exception {
+
+		ColumnarResults results = read(columnFile);
+		String[][] columns = new String[results.header.length][];
+		for (int c=0; c<columns.length; c++) {
+			columns[c] = results.getStrings(c);
+		}
+
+		FileOutputStream outStream = new FileOutputStream(csvFile);
+		CSVPrinter printer = new CSVPrinter(new BufferedOutputStream(outStream));
+		try {
+			printer.writeln(results.header);
+			String[] line = new String[columns.length];
+			for (int r=0; r<results.rowCount; r++) {
+				for (int c=0; c<columns.length; c++) {
+					line[c] = columns[c][r];
+				}
+				printer.writeln(line);
+			}
+		} finally {
+			printer.close();
+		}
+	}
+
+	/**
+	 * Encode and write one block of rows.
+	 * @param out
+	 * @param rows
+	 * @param columns
+	 * @throws Exception
+	 */
+	private static void writeBlock(DataOutputStream out, List<String[]> rows, int columns)
+																	throws Exception {
+		out.writeInt(rows.size());
+		String[] values = new String[rows.size()];
+		for (int c=0; c<columns; c++) {
+			for (int r=0; r<values.length; r++) {
+				values[r] = rows.get(r)[c];
+			}
+			byte type = chooseType(values);
+
+			ByteArrayOutputStream packed = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(new DeflaterOutputStream(packed));
+			switch (type) {
+			case T_INT:
+				int previous = 0;
+				for (String v : values) {
+					int i = Integer.parseInt(v);
+					data.writeInt(i - previous);
+					previous = i;
+				}
+				break;
+			case T_FLOAT:
+				for (String v : values) {
+					data.writeInt(Float.floatToRawIntBits(Float.parseFloat(v)));
+				}
+				break;
+			case T_DOUBLE:
+				for (String v : values) {
+					data.writeLong(Double.doubleToRawLongBits(Double.parseDouble(v)));
+				}
+				break;
+			case T_STRING:
+				Map<String,Integer> dictionary = getDictionary(values);
+				data.writeInt(dictionary.size());
+				for (String v : dictionary.keySet()) {
+					data.writeUTF(v);
+				}
+				for (String v : values) {
+					data.writeByte(dictionary.get(v));
+				}
+				break;
+			case T_TEXT:
+				for (String v : values) {
+					data.writeUTF(v);
+				}
+				break;
+			}
+			data.close();
+
+			out.writeByte(type);
+			out.writeInt(packed.size());
+			packed.writeTo(out);
+		}
+	}
+
+	/**
+	 * @param values
+	 * @return an index for each distinct value, or null if there are more
+	 * 			than DICTIONARY_SIZE of them
+	 */
+	private static Map<String,Integer> getDictionary(String[] values) {
+		Map<String,Integer> dictionary = new LinkedHashMap<String,Integer>();
+		for (String v : values) {
+			if (!dictionary.containsKey(v)) {
+				if (dictionary.size() == DICTIONARY_SIZE) {
+					return null;
+				}
+				dictionary.put(v, dictionary.size());
+			}
+		}
+		return dictionary;
+	}
+
+	/**
+	 * Pick the most compact encoding that gives back exactly the same
+	 * text for every value.
+	 * @param values
+	 * @return
+	 */
+	private static byte chooseType(String[] values) {
+		if (getDictionary(values) != null) {
+			return T_STRING;
+		}
+		boolean ints = true;
+		boolean floats = true;
+		boolean doubles = true;
+		for (String v : values) {
+			if (ints) {
+				try {
+					ints = Integer.toString(Integer.parseInt(v)).equals(v);
+				} catch (NumberFormatException e) {
+					ints = false;
+				}
+			}
+			if (floats) {
+				try {
+					floats = Float.toString(Float.parseFloat(v)).equals(v);
+				} catch (NumberFormatException e) {
+					floats = false;
+				}
+			}
+			if (doubles) {
+				try {
+					doubles = Double.toString(Double.parseDouble(v)).equals(v);
+				} catch (NumberFormatException e) {
+					doubles = false;
+				}
+			}
+			if (!ints && !floats && !doubles) {
+				return T_TEXT;
+			}
+		}
+		if (ints) {
+			return T_INT;
+		} else if (floats) {
+			return T_FLOAT;
+		} else {
+			return T_DOUBLE;
+		}
+	}
+
+	/**
+	 * Inflate and decode one column of a block.
+	 * @param type
+	 * @param rows
+	 * @param packed
+	 * @return
+	 * @throws Exception
+	 */
+	private static Object decode(byte type, int rows, byte[] packed) throws Exception {
+
+		DataInputStream data = new DataInputStream(new BufferedInputStream(
+								new InflaterInputStream(new ByteArrayInputStream(packed))));
+		switch (type) {
+		case T_INT:
+			int[] ints = new int[rows];
+			int previous = 0;
+			for (int r=0; r<rows; r++) {
+				previous += data.readInt();
+				ints[r] = previous;
+			}
+			return ints;
+		case T_FLOAT:
+			float[] floats = new float[rows];
+			for (int r=0; r<rows; r++) {
+				floats[r] = Float.intBitsToFloat(data.readInt());
+			}
+			return floats;
+		case T_DOUBLE:
+			double[] doubles = new double[rows];
+			for (int r=0; r<rows; r++) {
+				doubles[r] = Double.longBitsToDouble(data.readLong());
+			}
+			return doubles;
+		case T_STRING:
+			String[] dictionary = new String[data.readInt()];
+			for (int d=0; d<dictionary.length; d++) {
+				dictionary[d] = data.readUTF();
+			}
+			byte[] codes = new byte[rows];
+			data.readFully(codes);
+			return new Object[] { dictionary, codes };
+		case T_TEXT:
+			String[] text = new String[rows];
+			for (int r=0; r<rows; r++) {
+				text[r] = data.readUTF();
+			}
+			return text;
+		default:
+			throw new Exception("Unknown column type " + type);
+		}
+	}
+
+	/**
+	 * Convert a result file between CSV and columnar form.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+
+		if (args.length != 3) {
+			System.err.println("Usage: ColumnarResults " + A_TO_COLUMNS + " in.csv out.col");
+			System.err.println("       ColumnarResults " + A_TO_CSV + " in.col out.csv");
+			System.exit(-1);
+		}
+		try {
+			if (args[0].equals(A_TO_COLUMNS)) {
+				fromCsv(args[1], args[2]);
+			} else if (args[0].equals(A_TO_CSV)) {
+				toCsv(args[1], args[2]);
+			} else {
+				System.err.println("Unknown option " + args[0]);
+				System.exit(-1);
+			}
+		} catch (Exception e) {
+			System.err.println("Error converting " + args[1] + ": " + e);
+			System.exit(-1);
+		}
+	}
+
+}
@@ -0,0 +1,51 @@
+package test;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.app.ant.Ant;
+import ec.util.Parameter;
+
+/**
+ * Ant, used by problem 9 (the Santa Fe trail), with each tree flattened
+ * by AntProgram and run against a bitmap of the trail.  Trees holding
+ * nodes AntProgram does not know are evaluated by Ant as usual.
+ * @author drw
+ *
+ */
+public class CompiledAnt extends Ant {
+
+	/** Program for the individual being evaluated **/
+	private AntProgram program;
+
+	/** Whether to check every evaluation against Ant **/
+	private boolean check;
+
+	public void setup(final EvolutionState state, final Parameter base) {
+		super.setup(state, base);
+		program = new AntProgram(this);
+		check = FastEvaluation.isChecked(state, base);
+	}
+
+	public Object clone() {
+		CompiledAnt myobj = (CompiledAnt)(super.clone());
+		myobj.program = new AntProgram(myobj);
+		return myobj;
+	}
+
+	public void evaluate(final EvolutionState state, final Individual ind, final int threadnum) {
+		if (ind.evaluated) {
+			return;
+		}
+		Individual copy = null;
+		if (check) {
+			copy = FastEvaluation.uncheckedCopy(ind);
+		}
+		if (!program.evaluate(state, ind)) {
+			super.evaluate(state, ind, threadnum);
+		} else if (check) {
+			super.evaluate(state, copy, threadnum);
+			FastEvaluation.checkFitness(state, ind, copy);
+		}
+	}
+
+}
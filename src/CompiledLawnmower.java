@@ -0,0 +1,56 @@
+package test;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.app.lawnmower.Lawnmower;
+import ec.util.Parameter;
+
+/**
+ * Lawnmower, used by problem 17 (the 8x8 lawn), with each tree run
+ * by LawnmowerProgram against the lawn packed into a long.  Trees
+ * holding nodes LawnmowerProgram does not know, and lawns too big for a
+ * long, are evaluated by Lawnmower as usual.
+ * @author drw
+ *
+ */
+public class CompiledLawnmower extends Lawnmower {
+
+	/** Runs the individual being evaluated, or null if the lawn is too big **/
+	private LawnmowerProgram program;
+
+	/** Whether to check every evaluation against Lawnmower **/
+	private boolean check;
+
+	public void setup(final EvolutionState state, final Parameter base) {
+		super.setup(state, base);
+		if (LawnmowerProgram.fits(maxx, maxy)) {
+			program = new LawnmowerProgram(maxx, maxy);
+		}
+		check = FastEvaluation.isChecked(state, base);
+	}
+
+	public Object clone() {
+		CompiledLawnmower myobj = (CompiledLawnmower)(super.clone());
+		if (program != null) {
+			myobj.program = new LawnmowerProgram(maxx, maxy);
+		}
+		return myobj;
+	}
+
+	public void evaluate(final EvolutionState state, final Individual ind, final int threadnum) {
+		if (ind.evaluated) {
+			return;
+		}
+		Individual copy = null;
+		if (check) {
+			copy = FastEvaluation.uncheckedCopy(ind);
+		}
+		if (program == null || !program.evaluate(state, ind)) {
+			super.evaluate(state, ind, threadnum);
+		} else if (check) {
+			super.evaluate(state, copy, threadnum);
+			FastEvaluation.checkFitness(state, ind, copy);
+		}
+	}
+
+}
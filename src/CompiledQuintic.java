@@ -0,0 +1,57 @@
+package test;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.app.regression.Quintic;
+import ec.util.Parameter;
+
+/**
+ * Quintic, used by problem 4 (x^5 - 2x^3 + x), with each
+ * tree flattened by RegressionProgram before it is run over the fitness
+ * cases.  Trees holding nodes RegressionProgram does not know are
+ * evaluated by Quintic as usual.
+ * @author drw
+ *
+ */
+public class CompiledQuintic extends Quintic {
+
+	/** Program for the individual being evaluated **/
+	private RegressionProgram program = new RegressionProgram();
+
+	/** Whether to check every evaluation against Quintic **/
+	private boolean check;
+
+	/** Whether to evaluate all fitness cases at once **/
+	private boolean vectorised;
+
+	public void setup(final EvolutionState state, final Parameter base) {
+		super.setup(state, base);
+		check = FastEvaluation.isChecked(state, base);
+		vectorised = FastEvaluation.isVectorised(state, base);
+		program.setVectorised(vectorised);
+	}
+
+	public Object clone() {
+		CompiledQuintic myobj = (CompiledQuintic)(super.clone());
+		myobj.program = new RegressionProgram();
+		myobj.program.setVectorised(vectorised);
+		return myobj;
+	}
+
+	public void evaluate(final EvolutionState state, final Individual ind, final int threadnum) {
+		if (ind.evaluated) {
+			return;
+		}
+		Individual copy = null;
+		if (check) {
+			copy = FastEvaluation.uncheckedCopy(ind);
+		}
+		if (!program.evaluate(this, state, ind)) {
+			super.evaluate(state, ind, threadnum);
+		} else if (check) {
+			super.evaluate(state, copy, threadnum);
+			FastEvaluation.checkFitness(state, ind, copy);
+		}
+	}
+
+}
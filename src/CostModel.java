@@ -0,0 +1,433 @@
+package test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.Ostermiller.util.CSVParser;
+import com.Ostermiller.util.CSVPrinter;
+import com.Ostermiller.util.LabeledCSVParser;
+
+import ec.util.Parameter;
+import ec.util.ParameterDatabase;
+
+/**
+ * Estimates how long a row of a batch file will take to run, so that a
+ * batch can start its longest rows first or be cut into shards of equal
+ * cost.  The model is a linear fit of log run time against:
+ * log(generations * population size), the depth limit of the genetic
+ * operator, the maximum depth of the initial trees, log(tournament size)
+ * and an offset for each problem.  Fields that are NaN in a row (the
+ * ECJ default rows) are taken from the problem's parameter file.
+ *
+ * Run times come from timing files written by BatchEvolve with
+ * "-timingfile", which hold the row parameters and the seconds taken.
+ * Without a fitted model, rows are ranked by generations * population
+ * size alone.
+ *
+ * Commandline use:
+ *   -fit timings.csv [timings2.csv ...] -model model.properties
+ *   -plan shards -batchfile batch.csv [-model model.properties]
+ *   -plan shards -design spec.properties [-model model.properties]
+ * @author drw
+ *
+ */
+public class CostModel {
+
+	/** Commandline arguments **/
+	public static final String A_FIT = "-fit";
+	public static final String A_PLAN = "-plan";
+	public static final String A_MODEL = "-model";
+	public static final String A_BATCHFILE = "-batchfile";
+	public static final String A_DESIGN = BatchEvolve.A_DESIGN;
+
+	/** Label of the time column in a timing file **/
+	public static final String L_SECONDS = "Seconds";
+
+	/** Keys in a saved model **/
+	private static final String K_PROBLEMS = "problems";
+	private static final String K_COEFFICIENT = "coefficient.";
+
+	/** Number of features before the per-problem offsets **/
+	private static final int BASE_FEATURES = 5;
+
+	/** Ridge penalty keeping the fit well conditioned **/
+	private static final double RIDGE = 1e-6;
+
+	/** Problems with an offset in the model, or null for no fitted model **/
+	private final String[] problems;
+
+	/** Fitted coefficients, base features first then one per problem **/
+	private final double[] coefficients;
+
+	/**
+	 * Create the default model, ranking rows by generations * population size.
+	 */
+	public CostModel() {
+		this.problems = null;
+		this.coefficients = null;
+	}
+
+	private CostModel(String[] problems, double[] coefficients) {
+		this.problems = problems;
+		this.coefficients = coefficients;
+	}
+
+	/**
+	 * Estimate the run time of a row.  Estimates from the default model
+	 * are only meaningful relative to each other.
+	 * @param row
+	 * @return estimated seconds
+	 */
+	public double estimate(BatchRow row) throws BatchException {
+		double[] x = features(row);
+		if (coefficients == null) {
+			return Math.exp(x[1]);
+		}
+		double logSeconds = 0;
+		for (int i=0; i<BASE_FEATURES; i++) {
+			logSeconds += coefficients[i] * x[i];
+		}
+		String problem = row.getValueByLabel(BatchEvolve.L_PROBLEM);
+		for (int i=0; i<problems.length; i++) {
+			if (problems[i].equals(problem)) {
+				logSeconds += coefficients[BASE_FEATURES + i];
+			}
+		}
+		return Math.exp(logSeconds);
+	}
+
+	/**
+	 * Return the base features of a row: constant, log(gen * pop), operator
+	 * depth limit, initial max depth and log(tournament size).
+	 * @param row
+	 * @return
+	 */
+	public static double[] features(BatchRow row) throws BatchException {
+
+		String problem = row.getValueByLabel(BatchEvolve.L_PROBLEM);
+		String algorithm = row.getValueByLabel(BatchEvolve.L_ALGORITHM);
+
+		String depthLabel = BatchEvolve.L_XOVER_MAXDEPTH;
+		if (algorithm.equals(BatchEvolve.ALG_MUTATION)) {
+			depthLabel = BatchEvolve.L_MUTATE_MAXDEPTH;
+		}
+
+		double generations = value(row, problem, BatchEvolve.L_GENERATIONS);
+		double popSize = value(row, problem, BatchEvolve.L_POP_SIZE);
+
+		double[] x = new double[BASE_FEATURES];
+		x[0] = 1;
+		x[1] = Math.log(generations * popSize);
+		x[2] = value(row, problem, depthLabel);
+		x[3] = value(row, problem, BatchEvolve.L_HALF_MAX_DEPTH);
+		x[4] = Math.log(value(row, problem, BatchEvolve.L_TS));
+		return x;
+	}
+
+	/**
+	 * Return a numeric field of a row, falling back to the problem's
+	 * parameter file where the row has NaN.
+	 * @param row
+	 * @param problem
+	 * @param label
+	 * @return
+	 */
+	private static double value(BatchRow row, String problem, String label) throws BatchException {
+		String value = row.getValueByLabel(label);
+		if (value == null || value.equals(BatchEvolve.NULL_SYMBOL)) {
+			ParameterDatabase parameters = BatchEvolve.readParam(problem);
+			value = parameters.getString(new Parameter(label), null);
+		}
+		return Double.parseDouble(value);
+	}
+
+	/**
+	 * Fit a model to the rows of one or more timing files.
+	 * @param timingFiles
+	 * @return
+	 */
+	public static CostModel fit(List<String> timingFiles) throws BatchException {
+
+		List<double[]> xs = new ArrayList<double[]>();
+		List<String> rowProblems = new ArrayList<String>();
+		List<Double> ys = new ArrayList<Double>();
+		List<String> problems = new ArrayList<String>();
+
+		for (int f=0; f<timingFiles.size(); f++) {
+			try {
+				LabeledCSVParser parser = new LabeledCSVParser(
+						new CSVParser(new FileInputStream(timingFiles.get(f))));
+				Map<String,Integer> labelIndex = BatchRow.indexLabels(parser.getLabels());
+				String[] line;
+				while ((line = parser.getLine()) != null) {
+					BatchRow row = new BatchRow(labelIndex, line, parser.getLastLineNumber());
+					double seconds = Double.parseDouble(row.getValueByLabel(L_SECONDS));
+					if (seconds <= 0) {
+						continue;
+					}
+					String problem = row.getValueByLabel(BatchEvolve.L_PROBLEM);
+					if (!problems.contains(problem)) {
+						problems.add(problem);
+					}
+					xs.add(features(row));
+					rowProblems.add(problem);
+					ys.add(Double.valueOf(Math.log(seconds)));
+				}
+				parser.close();
+			} catch (Exception e) {
+				throw new BatchException("Error reading timing file " + timingFiles.get(f), e);
+			}
+		}
+
+		if (xs.isEmpty()) {
+			throw new BatchException("No timed rows to fit");
+		}
+
+		// Normal equations, with the first problem folded into the constant
+		int n = BASE_FEATURES + problems.size();
+		double[][] a = new double[n][n + 1];
+		for (int r=0; r<xs.size(); r++) {
+			double[] x = new double[n];
+			System.arraycopy(xs.get(r), 0, x, 0, BASE_FEATURES);
+			int p = problems.indexOf(rowProblems.get(r));
+			if (p > 0) {
+				x[BASE_FEATURES + p] = 1;
+			}
+			double y = ys.get(r).doubleValue();
+			for (int i=0; i<n; i++) {
+				for (int j=0; j<n; j++) {
+					a[i][j] += x[i] * x[j];
+				}
+				a[i][n] += x[i] * y;
+			}
+		}
+		for (int i=0; i<n; i++) {
+			a[i][i] += RIDGE;
+		}
+
+		double[] coefficients = solve(a);
+		System.err.println("Fitted cost model to " + xs.size() + " timed rows");
+		return new CostModel(problems.toArray(new String[problems.size()]), coefficients);
+	}
+
+	/**
+	 * Solve a linear system given as an augmented matrix, by Gaussian
+	 * elimination with partial pivoting.
+	 * @param a n by n+1 augmented matrix, overwritten
+	 * @return
+	 */
+	private static double[] solve(double[][] a) {
+		int n = a.length;
+		for (int c=0; c<n; c++) {
+			int pivot = c;
+			for (int r=c+1; r<n; r++) {
+				if (Math.abs(a[r][c]) > Math.abs(a[pivot][c])) {
+					pivot = r;
+				}
+			}
+			double[] swap = a[c];
+			a[c] = a[pivot];
+			a[pivot] = swap;
+			for (int r=c+1; r<n; r++) {
+				double factor = a[r][c] / a[c][c];
+				for (int k=c; k<=n; k++) {
+					a[r][k] -= factor * a[c][k];
+				}
+			}
+		}
+		double[] b = new double[n];
+		for (int r=n-1; r>=0; r--) {
+			double sum = a[r][n];
+			for (int k=r+1; k<n; k++) {
+				sum -= a[r][k] * b[k];
+			}
+			b[r] = sum / a[r][r];
+		}
+		return b;
+	}
+
+	/**
+	 * Load a model saved by save(), or return the default model if
+	 * filename is null.
+	 * @param filename
+	 * @return
+	 */
+	public static CostModel load(String filename) throws BatchException {
+		if (filename == null) {
+			return new CostModel();
+		}
+		Properties properties = new Properties();
+		try {
+			FileInputStream in = new FileInputStream(filename);
+			properties.load(in);
+			in.close();
+		} catch (Exception e) {
+			throw new BatchException("Error reading cost model " + filename, e);
+		}
+		String[] problems = properties.getProperty(K_PROBLEMS).split(",");
+		double[] coefficients = new double[BASE_FEATURES + problems.length];
+		for (int i=0; i<coefficients.length; i++) {
+			coefficients[i] = Double.parseDouble(properties.getProperty(K_COEFFICIENT + i));
+		}
+		return new CostModel(problems, coefficients);
+	}
+
+	/**
+	 * Save a fitted model.
+	 * @param filename
+	 */
+	public void save(String filename) throws BatchException {
+		Properties properties = new Properties();
+		StringBuilder problemList = new StringBuilder();
+		for (int i=0; i<problems.length; i++) {
+			if (i > 0) {
+				problemList.append(',');
+			}
+			problemList.append(problems[i]);
+		}
+		properties.setProperty(K_PROBLEMS, problemList.toString());
+		for (int i=0; i<coefficients.length; i++) {
+			properties.setProperty(K_COEFFICIENT + i, Double.toString(coefficients[i]));
+		}
+		try {
+			FileOutputStream out = new FileOutputStream(filename);
+			properties.store(out, "BatchEvolve run time model");
+			out.close();
+		} catch (Exception e) {
+			throw new BatchException("Error writing cost model " + filename, e);
+		}
+	}
+
+	/**
+	 * Open a timing file for appending, writing its header if it is new.
+	 * @param filename
+	 * @param header header of the batch file
+	 * @return
+	 */
+	public static CSVPrinter openTimingLog(String filename, String[] header) throws BatchException {
+		CSVPrinter printer = null;
+		try {
+			boolean exists = new File(filename).length() > 0;
+			printer = new CSVPrinter(new FileOutputStream(filename, true));
+			if (!exists) {
+				printer.write(header);
+				printer.writeln(L_SECONDS);
+			}
+		} catch (Exception e) {
+			throw new BatchException("Error opening timing file", e);
+		}
+		return printer;
+	}
+
+	/**
+	 * Append the parameters and run time of a finished row to a timing file.
+	 * @param result
+	 * @param printer
+	 */
+	public static void writeTiming(RowResult result, CSVPrinter printer) throws BatchException {
+		try {
+			printer.write(result.params);
+			printer.writeln(Double.toString(result.elapsedMillis / 1000.0));
+		} catch (Exception e) {
+			throw new BatchException("Error writing timing", e);
+		}
+	}
+
+	/**
+	 * Print start/end windows that split a batch file, or the rows of a
+	 * design, into shards of roughly equal estimated cost.
+	 * @param batchfile batch file, or null to plan a design
+	 * @param designFile design spec (see BatchDesign), used if batchfile
+	 * 			is null
+	 * @param shards
+	 */
+	public void plan(String batchfile, String designFile, int shards) throws BatchException {
+
+		List<Double> costs = new ArrayList<Double>();
+		double total = 0;
+		try {
+			BatchSource parser = batchfile != null ? new BatchInput(batchfile)
+													: new BatchDesign(designFile);
+			Map<String,Integer> labelIndex = BatchRow.indexLabels(parser.getLabels());
+			String[] line;
+			while ((line = parser.getLine()) != null) {
+				double cost = estimate(new BatchRow(labelIndex, line, costs.size() + 1));
+				costs.add(Double.valueOf(cost));
+				total += cost;
+			}
+			parser.close();
+		} catch (Exception e) {
+			throw new BatchException("Error reading batch file "
+									+ (batchfile != null ? batchfile : designFile), e);
+		}
+
+		int start = 1;
+		double cumulative = 0;
+		for (int shard=1; shard<=shards && start<=costs.size(); shard++) {
+			double target = total * shard / shards;
+			int end = start;
+			cumulative += costs.get(end - 1).doubleValue();
+			while (end < costs.size() && (shard == shards
+						|| cumulative + costs.get(end).doubleValue() / 2 <= target)) {
+				end++;
+				cumulative += costs.get(end - 1).doubleValue();
+			}
+			System.out.println(BatchEvolve.A_START + " " + start + " " + BatchEvolve.A_END + " " + end);
+			start = end + 1;
+		}
+	}
+
+	public static void main(String[] args) {
+
+		try {
+			String modelFile = null;
+			String batchfile = null;
+			String designFile = null;
+			List<String> timingFiles = new ArrayList<String>();
+			int shards = 0;
+
+			for (int x=0; x<args.length; x++) {
+				if (args[x].equals(A_MODEL) && x+1 < args.length) {
+					modelFile = args[++x];
+				} else if (args[x].equals(A_BATCHFILE) && x+1 < args.length) {
+					batchfile = args[++x];
+				} else if (args[x].equals(A_DESIGN) && x+1 < args.length) {
+					designFile = args[++x];
+				} else if (args[x].equals(A_PLAN) && x+1 < args.length) {
+					shards = Integer.parseInt(args[++x]);
+				} else if (args[x].equals(A_FIT)) {
+					while (x+1 < args.length && !args[x+1].startsWith("-")) {
+						timingFiles.add(args[++x]);
+					}
+				} else {
+					System.err.println("Unrecognised argument " + args[x]);
+					System.exit(-1);
+				}
+			}
+
+			if (!timingFiles.isEmpty()) {
+				if (modelFile == null) {
+					System.err.println("No model file given to save the fit to");
+					System.exit(-1);
+				}
+				fit(timingFiles).save(modelFile);
+			} else if (shards > 0 && (batchfile != null || designFile != null)) {
+				load(modelFile).plan(batchfile, designFile, shards);
+			} else {
+				System.err.println("Give either -fit timings.csv -model model.properties"
+								+ " or -plan shards -batchfile batch.csv (or -design spec.properties)");
+				System.exit(-1);
+			}
+			System.exit(0);
+		} catch (BatchException e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
+		}
+	}
+
+}
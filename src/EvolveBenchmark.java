@@ -0,0 +1,293 @@
+package test;
+
+import java.io.FileOutputStream;
+import java.util.Map;
+
+import com.Ostermiller.util.CSVPrinter;
+
+import ec.EvolutionState;
+import ec.Evolve;
+import ec.Individual;
+import ec.util.Parameter;
+import ec.util.ParameterDatabase;
+
+/**
+ * Benchmarks the published problem configurations, to catch performance
+ * regressions and to measure changes to the evaluators or scheduling.
+ * For each problem, algorithm (crossover or mutation only), population
+ * size and tournament size it builds a run exactly as BatchEvolve would
+ * for a batch row with those settings, then times three operations:
+ * evaluating the whole population, breeding the next population from it,
+ * and one complete generation (evaluation, statistics and breeding).
+ * Each is repeated for a number of warmup iterations, whose times are
+ * discarded while HotSpot compiles the code, and then for the measured
+ * iterations.  The mean and standard deviation of each are printed, with
+ * the throughput in individuals per second and the heap allocated per
+ * iteration (see AllocationStats), as CSV.
+ *
+ * Usage: java test.EvolveBenchmark [-problems 1,4,7,9,16,17]
+ * 		[-popsizes 30,500,1500] [-tournaments 2,9] [-warmup 5]
+ * 		[-iterations 10] [-resultfile bench.csv] [-fasteval ...]
+ *
+ * Run it from a directory where BatchEvolve.PARAMETER_PATH finds the
+ * parameter files.  Other BatchEvolve arguments that change how a row
+ * is set up, such as -fasteval and -fitnesscases, apply here too.
+ * @author drw
+ *
+ */
+public class EvolveBenchmark {
+
+	/** Commandline arguments **/
+	public static final String A_PROBLEMS = "-problems";
+	public static final String A_POP_SIZES = "-popsizes";
+	public static final String A_TOURNAMENTS = "-tournaments";
+	public static final String A_WARMUP = "-warmup";
+	public static final String A_ITERATIONS = "-iterations";
+	public static final String A_RESULT_FILE = "-resultfile";
+
+	/** Defaults: the published problems and the extremes of the factors **/
+	public static final String DEFAULT_PROBLEMS = "1,4,7,9,16,17";
+	public static final String DEFAULT_POP_SIZES = "30,500,1500";
+	public static final String DEFAULT_TOURNAMENTS = "2,9";
+	public static final int DEFAULT_WARMUP = 5;
+	public static final int DEFAULT_ITERATIONS = 10;
+
+	/** Operations timed **/
+	public static final String B_EVALUATION = "evaluation";
+	public static final String B_BREEDING = "breeding";
+	public static final String B_GENERATION = "generation";
+
+	/** Header of the output **/
+	public static final String[] RESULTS_HEADER = {
+		"Problem", "Algorithm", "Population", "Tournament", "Benchmark", "Iterations",
+		"Mean ms", "Std Dev ms", "Individuals per Second", "Allocated Bytes per Iteration" };
+
+	/** Columns of the batch row built for each configuration **/
+	private static final Map<String,Integer> ROW_INDEX = BatchRow.indexLabels(BatchEvolve.BATCH_LABELS);
+
+	/** Seed for every run, so each benchmark sees the same populations **/
+	private static final String SEED = "4357";
+
+	public static void main(String[] args) {
+
+		try {
+			String[] problems = getList(args, A_PROBLEMS, DEFAULT_PROBLEMS);
+			String[] popSizes = getList(args, A_POP_SIZES, DEFAULT_POP_SIZES);
+			String[] tournaments = getList(args, A_TOURNAMENTS, DEFAULT_TOURNAMENTS);
+			int warmup = BatchEvolve.getIntArgument(args, A_WARMUP, DEFAULT_WARMUP);
+			int iterations = BatchEvolve.getIntArgument(args, A_ITERATIONS, DEFAULT_ITERATIONS);
+			if (warmup < 0 || iterations < 1) {
+				System.err.println("Invalid number of warmup or measured iterations");
+				System.exit(-1);
+			}
+
+			CSVPrinter out = null;
+			try {
+				String resultFile = BatchEvolve.getArgument(args, A_RESULT_FILE);
+				out = new CSVPrinter(resultFile == null ? System.out : new FileOutputStream(resultFile));
+				out.writeln(RESULTS_HEADER);
+			} catch (Exception e) {
+				System.err.println("Error opening result file: " + e);
+				System.exit(-1);
+			}
+
+			String[] algorithms = { BatchEvolve.ALG_CROSSOVER, BatchEvolve.ALG_MUTATION };
+			for (String problem : problems) {
+				for (String algorithm : algorithms) {
+					for (String popSize : popSizes) {
+						for (String tournament : tournaments) {
+							BatchRow row = makeRow(problem, algorithm, popSize, tournament,
+													warmup + iterations);
+							String[] config = { problem, algorithm, popSize, tournament };
+							write(out, config, B_EVALUATION,
+									timeEvaluation(row, args, warmup, iterations));
+							write(out, config, B_BREEDING,
+									timeBreeding(row, args, warmup, iterations));
+							write(out, config, B_GENERATION,
+									timeGeneration(row, args, warmup, iterations));
+						}
+					}
+				}
+			}
+
+			try {
+				out.close();
+			} catch (Exception e) {
+				System.err.println("Error closing result file " + e);
+			}
+			System.exit(0);
+		} catch (BatchException e) {
+			System.err.println(e.getMessage());
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Build a batch row for a configuration.  Factors not being varied
+	 * are fixed at middling values from the published designs.
+	 * @param problem
+	 * @param algorithm
+	 * @param popSize
+	 * @param tournament
+	 * @param generations enough generations that no run ends early for
+	 * 			want of them
+	 * @return
+	 */
+	public static BatchRow makeRow(String problem, String algorithm, String popSize,
+										String tournament, int generations) {
+
+		boolean crossover = algorithm.equals(BatchEvolve.ALG_CROSSOVER);
+		String nan = BatchEvolve.NULL_SYMBOL;
+		String[] values = {
+			"1", algorithm, problem, SEED,
+			"0.5", "6", "2",
+			"0.25", "0.25", crossover ? "17" : nan,
+			crossover ? nan : "17", popSize, "0.9",
+			tournament, crossover ? nan : "4", crossover ? nan : "4",
+			Integer.toString(generations + 1), "0.5", "0.1",
+			crossover ? "ec.gp.koza.CrossoverPipeline" : "ec.gp.koza.MutationPipeline" };
+		return new BatchRow(ROW_INDEX, values, 1);
+	}
+
+	/**
+	 * Start a run for a row: set up ECJ and create the initial population,
+	 * without evaluating it.
+	 * @param row
+	 * @param args
+	 * @return
+	 */
+	private static EvolutionState start(BatchRow row, String[] args) throws BatchException {
+		ParameterDatabase parameterDatabase = BatchEvolve.buildParameters(row, args);
+		EvolutionState state = Evolve.initialize(parameterDatabase, 0);
+		state.startFresh();
+		return state;
+	}
+
+	/**
+	 * Time evaluation of the initial population, marking it unevaluated
+	 * again before each iteration.
+	 * @return nanoseconds taken by each measured iteration, the number
+	 * 			of individuals handled by each, and the bytes allocated
+	 * 			over all of them
+	 */
+	private static long[] timeEvaluation(BatchRow row, String[] args, int warmup, int iterations) throws BatchException {
+
+		EvolutionState state = start(row, args);
+		Individual[] population = state.population.subpops[0].individuals;
+		long[] times = new long[iterations + 2];
+		for (int i=-warmup; i<iterations; i++) {
+			for (int j=0; j<population.length; j++) {
+				population[j].evaluated = false;
+			}
+			long startAllocated = AllocationStats.threadAllocatedBytes();
+			long startTime = System.nanoTime();
+			state.evaluator.evaluatePopulation(state);
+			if (i >= 0) {
+				times[i] = System.nanoTime() - startTime;
+				times[iterations + 1] += AllocationStats.threadAllocatedBytes() - startAllocated;
+			}
+		}
+		times[iterations] = population.length;
+		Evolve.cleanup(state);
+		return times;
+	}
+
+	/**
+	 * Time breeding from the evaluated initial population.  The population
+	 * bred is thrown away, so each iteration breeds from the same parents.
+	 */
+	private static long[] timeBreeding(BatchRow row, String[] args, int warmup, int iterations) throws BatchException {
+
+		EvolutionState state = start(row, args);
+		state.evaluator.evaluatePopulation(state);
+		long[] times = new long[iterations + 2];
+		for (int i=-warmup; i<iterations; i++) {
+			long startAllocated = AllocationStats.threadAllocatedBytes();
+			long startTime = System.nanoTime();
+			state.breeder.breedPopulation(state);
+			if (i >= 0) {
+				times[i] = System.nanoTime() - startTime;
+				times[iterations + 1] += AllocationStats.threadAllocatedBytes() - startAllocated;
+			}
+		}
+		times[iterations] = state.population.subpops[0].individuals.length;
+		Evolve.cleanup(state);
+		return times;
+	}
+
+	/**
+	 * Time successive generations of one run.  If the run finds an ideal
+	 * individual and stops, a new run is started with the next seed.
+	 */
+	private static long[] timeGeneration(BatchRow row, String[] args, int warmup, int iterations) throws BatchException {
+
+		EvolutionState state = start(row, args);
+		int restarts = 0;
+		long[] times = new long[iterations + 2];
+		for (int i=-warmup; i<iterations; i++) {
+			long startAllocated = AllocationStats.threadAllocatedBytes();
+			long startTime = System.nanoTime();
+			int result = state.evolve();
+			if (i >= 0) {
+				times[i] = System.nanoTime() - startTime;
+				times[iterations + 1] += AllocationStats.threadAllocatedBytes() - startAllocated;
+			}
+			if (result != EvolutionState.R_NOTDONE) {
+				Evolve.cleanup(state);
+				restarts++;
+				ParameterDatabase parameterDatabase = BatchEvolve.buildParameters(row, args);
+				parameterDatabase.set(new Parameter(BatchEvolve.L_SEED),
+									Integer.toString(Integer.parseInt(SEED) + restarts));
+				state = Evolve.initialize(parameterDatabase, 0);
+				state.startFresh();
+			}
+		}
+		times[iterations] = state.population.subpops[0].individuals.length;
+		Evolve.cleanup(state);
+		return times;
+	}
+
+	/**
+	 * Write the summary of one benchmark.
+	 * @param out
+	 * @param config problem, algorithm, population and tournament size
+	 * @param benchmark
+	 * @param times iteration times in nanoseconds, followed by the number
+	 * 			of individuals handled per iteration and the bytes allocated
+	 * 			over all iterations
+	 */
+	private static void write(CSVPrinter out, String[] config, String benchmark, long[] times) {
+
+		int iterations = times.length - 2;
+		double mean = 0;
+		for (int i=0; i<iterations; i++) {
+			mean += times[i];
+		}
+		mean /= iterations;
+		double variance = 0;
+		for (int i=0; i<iterations; i++) {
+			variance += (times[i] - mean) * (times[i] - mean);
+		}
+		double std = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+		try {
+			out.write(config);
+			out.writeln(new String[] {
+					benchmark,
+					Integer.toString(iterations),
+					String.format("%.3f", mean / 1e6),
+					String.format("%.3f", std / 1e6),
+					Long.toString(Math.round(times[iterations] * 1e9 / mean)),
+					Long.toString(times[iterations + 1] / iterations) });
+			out.flush();
+		} catch (Exception e) {
+			System.err.println("Error writing result " + e);
+			System.exit(-1);
+		}
+	}
+
+	private static String[] getList(String[] args, String name, String defaultValue) throws BatchException {
+		String value = BatchEvolve.getArgument(args, name);
+		return (value == null ? defaultValue : value).split(",");
+	}
+
+}
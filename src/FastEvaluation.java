@@ -0,0 +1,111 @@
+package test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.gp.koza.KozaFitness;
+import ec.util.Parameter;
+
+/**
+ * Shared support for the fast evaluators, which replace the ECJ problem
+ * classes named in the parameter files when BatchEvolve is run with
+ * "-fasteval".  Each fast problem extends the ECJ problem it replaces,
+ * so setup and fitness cases are unchanged, and only overrides how an
+ * individual is evaluated.  With "-fastevalcheck" every individual is
+ * also evaluated by the original problem and the run stops if the two
+ * fitnesses ever differ.  "-fastevalvector" asks the regression
+ * evaluators to work on all fitness cases at once (see RegressionProgram).
+ * @author drw
+ *
+ */
+public class FastEvaluation {
+
+	/** Parameter (under the problem's base) to check against the original **/
+	public static final String P_CHECK = "check-fast";
+
+	/** Parameter (under the problem's base) to evaluate all cases at once **/
+	public static final String P_VECTOR = "vector-fast";
+
+	/** Fast problem class for each ECJ problem class that has one **/
+	private static final Map<String,String> FAST_PROBLEMS = new HashMap<String,String>();
+	static {
+		FAST_PROBLEMS.put("ec.app.regression.Regression", "test.CompiledRegression");
+		FAST_PROBLEMS.put("ec.app.regression.Quintic", "test.CompiledQuintic");
+		FAST_PROBLEMS.put("ec.app.multiplexerslow.Multiplexer", "test.BitMultiplexer");
+		FAST_PROBLEMS.put("ec.app.ant.Ant", "test.CompiledAnt");
+		FAST_PROBLEMS.put("ec.app.lawnmower.Lawnmower", "test.CompiledLawnmower");
+	}
+
+	/**
+	 * @param problemClass value of eval.problem in a parameter file
+	 * @return the fast replacement for the problem, or null if there is none
+	 */
+	public static String getFastProblem(String problemClass) {
+		return FAST_PROBLEMS.get(problemClass);
+	}
+
+	/**
+	 * @param state
+	 * @param base the problem's parameter base
+	 * @return whether fast evaluations should be checked against the original
+	 */
+	public static boolean isChecked(EvolutionState state, Parameter base) {
+		return state.parameters.getBoolean(base.push(P_CHECK), null, false);
+	}
+
+	/**
+	 * @param state
+	 * @param base the problem's parameter base
+	 * @return whether to evaluate all fitness cases at once, where the
+	 * 			fast evaluator supports it
+	 */
+	public static boolean isVectorised(EvolutionState state, Parameter base) {
+		return state.parameters.getBoolean(base.push(P_VECTOR), null, false);
+	}
+
+	/**
+	 * Set an individual's Koza fitness and mark it evaluated.
+	 * @param state
+	 * @param ind
+	 * @param standardized standardized fitness
+	 * @param hits
+	 */
+	public static void setFitness(EvolutionState state, Individual ind, float standardized, int hits) {
+		KozaFitness f = ((KozaFitness)ind.fitness);
+		f.setStandardizedFitness(state, standardized);
+		f.hits = hits;
+		ind.evaluated = true;
+	}
+
+	/**
+	 * Stop the run if an individual evaluated by a fast evaluator does not
+	 * have the same fitness as a copy evaluated by the original problem.
+	 * @param state
+	 * @param fast individual evaluated by the fast path
+	 * @param interpreted copy of the individual evaluated by the original problem
+	 */
+	public static void checkFitness(EvolutionState state, Individual fast, Individual interpreted) {
+		KozaFitness f = (KozaFitness)fast.fitness;
+		KozaFitness g = (KozaFitness)interpreted.fitness;
+		if (f.standardizedFitness() != g.standardizedFitness() || f.hits != g.hits) {
+			state.output.fatal("Fast evaluation gave fitness " + f.standardizedFitness()
+					+ " with " + f.hits + " hits, original problem gave "
+					+ g.standardizedFitness() + " with " + g.hits + " hits");
+		}
+	}
+
+	/**
+	 * Return a copy of an individual, not yet evaluated, for checking a
+	 * fast evaluation against the original problem.
+	 * @param ind
+	 * @return
+	 */
+	public static Individual uncheckedCopy(Individual ind) {
+		Individual copy = (Individual)ind.clone();
+		copy.evaluated = false;
+		return copy;
+	}
+
+}
@@ -0,0 +1,71 @@
+package test;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event for one generation of a row, committed by
+ * GenerationStatistics.  The event's duration covers the generation's
+ * evaluation and breeding.  Record a batch with
+ * -XX:StartFlightRecording=filename=batch.jfr and look for
+ * test.Generation events in JDK Mission Control or "jfr print".
+ * The same values are written to the trace file, if there is one.
+ * @author drw
+ *
+ */
+@Name("test.Generation")
+@Label("GP Generation")
+@Category("BatchEvolve")
+@Description("Evaluation and breeding of one generation of a batch row")
+@StackTrace(false)
+public class GenerationEvent extends Event {
+
+	@Label("Row ID")
+	public long rowId;
+
+	@Label("Generation")
+	public int generation;
+
+	@Label("Evaluation Time")
+	@Timespan(Timespan.NANOSECONDS)
+	public long evaluationTime;
+
+	@Label("Breeding Time")
+	@Timespan(Timespan.NANOSECONDS)
+	public long breedingTime;
+
+	@Label("Evaluations")
+	@Description("Individuals evaluated in this generation")
+	public int evaluations;
+
+	@Label("Evaluations per Second")
+	public double evaluationsPerSecond;
+
+	@Label("Mean Tree Size")
+	public double meanSize;
+
+	@Label("Max Tree Size")
+	public int maxSize;
+
+	@Label("Mean Tree Depth")
+	public double meanDepth;
+
+	@Label("Max Tree Depth")
+	public int maxDepth;
+
+	@Label("Best Fitness")
+	@Description("Standardized fitness of the best individual after evaluation")
+	public float bestFitness;
+
+	@Label("Allocated")
+	@Description("Heap allocated by the row's thread during the generation")
+	@DataAmount
+	public long allocated;
+
+}
@@ -0,0 +1,219 @@
+package test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import com.Ostermiller.util.CSVPrinter;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.Statistics;
+import ec.gp.GPIndividual;
+import ec.gp.GPNode;
+import ec.gp.koza.KozaFitness;
+import ec.util.Parameter;
+
+/**
+ * Records how each generation of a row went: evaluation and breeding
+ * wall time, evaluations per second, mean and largest tree size and
+ * depth, best fitness and heap allocated.  BatchEvolve adds it as a child
+ * of the problem's own statistics (see setGenerationStatistics), so
+ * the parameter files are unchanged.  Each generation is committed as a
+ * GenerationEvent for Java Flight Recorder and, if asked to, kept as a
+ * line of the row's trace for BatchEvolve to write to the trace file.
+ * Allocation is measured for the row's own thread, so it misses the
+ * work of any extra ECJ evaluation or breeding threads.
+ * @author drw
+ *
+ */
+public class GenerationStatistics extends Statistics {
+
+	/** Parameter (under this statistics' base) holding the row ID **/
+	public static final String P_ROW = "row";
+
+	/** Parameter (under this statistics' base) to keep the trace **/
+	public static final String P_TRACE = "trace";
+
+	/** Header of the trace file **/
+	public static final String[] TRACE_HEADER = {
+		"ID", "Generation", "Evaluation ms", "Breeding ms", "Evaluations", "Evaluations per Second",
+		"Mean Size", "Max Size", "Mean Depth", "Max Depth", "Best Fitness", "Allocated Bytes" };
+
+	private long rowId;
+	private boolean keepTrace;
+	private final List<String[]> trace = new ArrayList<String[]>();
+
+	/** Generation being recorded, and when its stages started **/
+	private GenerationEvent event = null;
+	private long evaluationStart;
+	private long breedingStart;
+	private long allocatedStart;
+
+	public void setup(EvolutionState state, Parameter base) {
+		super.setup(state, base);
+		rowId = Long.parseLong(state.parameters.getString(base.push(P_ROW), null));
+		keepTrace = state.parameters.getBoolean(base.push(P_TRACE), null, false);
+	}
+
+	public void preEvaluationStatistics(EvolutionState state) {
+		super.preEvaluationStatistics(state);
+		event = new GenerationEvent();
+		event.begin();
+		event.rowId = rowId;
+		event.generation = state.generation;
+		Individual[] population = state.population.subpops[0].individuals;
+		for (int i=0; i<population.length; i++) {
+			if (!population[i].evaluated) {
+				event.evaluations++;
+			}
+		}
+		allocatedStart = AllocationStats.threadAllocatedBytes();
+		evaluationStart = System.nanoTime();
+	}
+
+	public void postEvaluationStatistics(EvolutionState state) {
+		super.postEvaluationStatistics(state);
+		event.evaluationTime = System.nanoTime() - evaluationStart;
+		if (event.evaluationTime > 0) {
+			event.evaluationsPerSecond = event.evaluations * 1e9 / event.evaluationTime;
+		}
+
+		// Tree shape, over all trees of each individual, and best fitness
+		Individual[] population = state.population.subpops[0].individuals;
+		Individual best = population[0];
+		long totalSize = 0;
+		long totalDepth = 0;
+		for (int i=0; i<population.length; i++) {
+			int size = 0;
+			int depth = 0;
+			GPIndividual ind = (GPIndividual)population[i];
+			for (int t=0; t<ind.trees.length; t++) {
+				size += ind.trees[t].child.numNodes(GPNode.NODESEARCH_ALL);
+				depth = Math.max(depth, ind.trees[t].child.depth());
+			}
+			totalSize += size;
+			totalDepth += depth;
+			event.maxSize = Math.max(event.maxSize, size);
+			event.maxDepth = Math.max(event.maxDepth, depth);
+			if (population[i].fitness.betterThan(best.fitness)) {
+				best = population[i];
+			}
+		}
+		event.meanSize = (double)totalSize / population.length;
+		event.meanDepth = (double)totalDepth / population.length;
+		event.bestFitness = ((KozaFitness)best.fitness).standardizedFitness();
+	}
+
+	public void preBreedingStatistics(EvolutionState state) {
+		super.preBreedingStatistics(state);
+		breedingStart = System.nanoTime();
+	}
+
+	public void postBreedingStatistics(EvolutionState state) {
+		super.postBreedingStatistics(state);
+		event.breedingTime = System.nanoTime() - breedingStart;
+		commit();
+	}
+
+	public void finalStatistics(EvolutionState state, int result) {
+		super.finalStatistics(state, result);
+		// The last generation is not bred
+		if (event != null) {
+			commit();
+		}
+	}
+
+	/**
+	 * Finish the generation being recorded: commit its event and add it
+	 * to the trace.
+	 */
+	private void commit() {
+		event.allocated = AllocationStats.threadAllocatedBytes() - allocatedStart;
+		event.end();
+		event.commit();
+		if (keepTrace) {
+			trace.add(new String[] {
+					Long.toString(event.rowId),
+					Integer.toString(event.generation),
+					Double.toString(event.evaluationTime / 1e6),
+					Double.toString(event.breedingTime / 1e6),
+					Integer.toString(event.evaluations),
+					Long.toString(Math.round(event.evaluationsPerSecond)),
+					Double.toString(event.meanSize),
+					Integer.toString(event.maxSize),
+					Double.toString(event.meanDepth),
+					Integer.toString(event.maxDepth),
+					Float.toString(event.bestFitness),
+					Long.toString(event.allocated) });
+		}
+		event = null;
+	}
+
+	/**
+	 * @return a line for each generation of the row, as in TRACE_HEADER,
+	 * 			if the trace was kept
+	 */
+	public List<String[]> getTrace() {
+		return trace;
+	}
+
+	/**
+	 * @param state a finished run
+	 * @return the run's GenerationStatistics, or null if it has none
+	 */
+	public static GenerationStatistics find(EvolutionState state) {
+		for (int i=0; i<state.statistics.children.length; i++) {
+			if (state.statistics.children[i] instanceof GenerationStatistics) {
+				return (GenerationStatistics)state.statistics.children[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Open a trace file for appending, writing the header if the file is
+	 * new.  A name ending in .gz is gzipped.
+	 * @param filename
+	 * @return
+	 */
+	public static CSVPrinter openTraceFile(String filename) throws BatchException {
+		CSVPrinter printer = null;
+		try {
+			boolean exists = new File(filename).length() > 0;
+			OutputStream out = new FileOutputStream(filename, true);
+			if (filename.endsWith(".gz")) {
+				out = new GZIPOutputStream(out);
+			}
+			printer = new CSVPrinter(out);
+			if (!exists) {
+				printer.writeln(TRACE_HEADER);
+			}
+		} catch (Exception e) {
+			throw new BatchException("Error opening trace file", e);
+		}
+		return printer;
+	}
+
+	/**
+	 * Append the trace of a finished row to a trace file.
+	 * @param result
+	 * @param printer
+	 */
+	public static void writeTrace(RowResult result, CSVPrinter printer) throws BatchException {
+		if (result.trace == null) {
+			return;
+		}
+		try {
+			for (String[] line : result.trace) {
+				printer.writeln(line);
+			}
+		} catch (Exception e) {
+			throw new BatchException("Error writing trace", e);
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+package test;
+
+import ec.EvolutionState;
+import ec.Exchanger;
+import ec.Population;
+import ec.util.Parameter;
+
+/**
+ * The exchanger of one island of an IslandModel.  ECJ calls it once a
+ * generation has been evaluated and before it is bred, which is when
+ * migrants are swapped, and when the island's run finishes.
+ * @author drw
+ *
+ */
+public class IslandExchanger extends Exchanger {
+
+	private final IslandModel model;
+
+	/** Position of this island in the ring **/
+	private final int island;
+
+	public IslandExchanger(IslandModel model, int island) {
+		this.model = model;
+		this.island = island;
+	}
+
+	public void setup(EvolutionState state, Parameter base) {
+	}
+
+	public void initializeContacts(EvolutionState state) {
+	}
+
+	public void reinitializeContacts(EvolutionState state) {
+	}
+
+	public Population preBreedingExchangePopulation(EvolutionState state) {
+		model.migrate(island, state);
+		return state.population;
+	}
+
+	public Population postBreedingExchangePopulation(EvolutionState state) {
+		return state.population;
+	}
+
+	public String runComplete(EvolutionState state) {
+		return model.isComplete() ? "Ideal individual found on another island" : null;
+	}
+
+	public void closeContacts(EvolutionState state, int result) {
+		model.leave(state, result);
+	}
+
+}
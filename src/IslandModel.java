@@ -0,0 +1,274 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+
+import ec.EvolutionState;
+import ec.Evolve;
+import ec.Individual;
+import ec.util.Parameter;
+import ec.util.ParameterDatabase;
+
+/**
+ * Runs one batch row as a ring of islands.  The row's population is
+ * shared out between the islands, and each island is a separate ECJ
+ * EvolutionState with its own seed, run on its own thread, so breeding
+ * and selection over one big subpopulation are split into independent
+ * smaller ones.  Every "migration.interval" generations each island
+ * sends copies of its best individuals to the next island round the
+ * ring, where they replace the worst, through an IslandExchanger that
+ * each island's BatchEvolutionState puts in place of its exchanger.  The islands wait for each other at
+ * each migration, so a run is repeatable for a given seed.
+ *
+ * If an island finds an ideal individual and stops, the others stop at
+ * their next generation, as a single population run would.
+ * @author drw
+ *
+ */
+public class IslandModel {
+
+	/** Batch column for the number of islands, NaN or 1 for a single population **/
+	public static final String L_ISLANDS = "islands";
+
+	/** Batch column for the generations between migrations **/
+	public static final String L_MIGRATION_INTERVAL = "migration.interval";
+
+	/** Labels of the island columns, in the order they follow the published columns **/
+	public static final String[] ISLAND_LABELS = {L_ISLANDS, L_MIGRATION_INTERVAL};
+
+	/** The islands, in ring order **/
+	private final EvolutionState[] states;
+
+	private final int interval;
+
+	private final int migrants;
+
+	/** Islands still running, which wait for each other at each migration **/
+	private final Phaser phaser;
+
+	/** Migrants sent by each island, by parity of the migration round **/
+	private final Individual[][][] sent;
+
+	/** Whether an island has found an ideal individual **/
+	private volatile boolean ideal;
+
+	/**
+	 * Set up the islands for a row.
+	 * @param parameterDatabase the row's parameters, for the whole population
+	 * @param islands
+	 * @param interval generations between migrations
+	 * @param migrants individuals sent by each island at each migration
+	 */
+	public IslandModel(ParameterDatabase parameterDatabase, int islands, int interval, int migrants) throws BatchException {
+
+		this.interval = interval;
+		this.migrants = migrants;
+		phaser = new Phaser(islands);
+		sent = new Individual[2][islands][];
+
+		int popSize = parameterDatabase.getInt(new Parameter(BatchEvolve.L_POP_SIZE), null);
+		if (migrants < 0 || migrants >= popSize / islands) {
+			throw new BatchException("Invalid number of migrants " + migrants + " for islands of "
+								+ (popSize / islands));
+		}
+
+		// Give each island its own run of seeds, one per ECJ thread
+		int seed = Integer.parseInt(parameterDatabase.getString(new Parameter(BatchEvolve.L_SEED), null));
+		int threads = Math.max(
+				parameterDatabase.getIntWithDefault(new Parameter(BatchEvolve.L_EVAL_THREADS), null, 1),
+				parameterDatabase.getIntWithDefault(new Parameter(BatchEvolve.L_BREED_THREADS), null, 1));
+
+		// Each island's exchanger is put in place when its state is set up
+		BatchEvolve.setBatchEvolutionState(parameterDatabase);
+		states = new EvolutionState[islands];
+		for (int i=0; i<islands; i++) {
+			// Islands set up at the same time, so each needs its own copy
+			// (see BatchEvolve.readParam)
+			ParameterDatabase island = (ParameterDatabase)(parameterDatabase.clone());
+			int size = popSize / islands + (i < popSize % islands ? 1 : 0);
+			island.set(new Parameter(BatchEvolve.L_POP_SIZE), Integer.toString(size));
+			for (int t=0; t<threads; t++) {
+				island.set(new Parameter("seed." + t), Integer.toString(seed + i * threads + t));
+			}
+			BatchEvolutionState state = (BatchEvolutionState)Evolve.initialize(island, 0);
+			state.islandModel = this;
+			state.island = i;
+			states[i] = state;
+		}
+	}
+
+	/**
+	 * @param row
+	 * @return number of islands asked for by the row, 1 if the batch has
+	 * 			no island columns or the row leaves them NaN
+	 */
+	public static int getIslands(BatchRow row) {
+		String islands = row.getValueByLabel(L_ISLANDS);
+		if (islands == null || islands.equals(BatchEvolve.NULL_SYMBOL)) {
+			return 1;
+		}
+		return Integer.parseInt(islands);
+	}
+
+	/**
+	 * @param row
+	 * @return generations between migrations for the row
+	 */
+	public static int getInterval(BatchRow row) {
+		return Integer.parseInt(row.getValueByLabel(L_MIGRATION_INTERVAL));
+	}
+
+	/**
+	 * @param row
+	 * @return the row's island columns, to follow its parameters in the
+	 * 			results, or an empty array if the batch has none
+	 */
+	public static String[] getIslandColumns(BatchRow row) {
+		if (row.getColumn(L_ISLANDS) < 0) {
+			return new String[0];
+		}
+		String[] columns = new String[ISLAND_LABELS.length];
+		for (int i=0; i<columns.length; i++) {
+			columns[i] = row.getValueByLabel(ISLAND_LABELS[i]);
+		}
+		return columns;
+	}
+
+	/**
+	 * @return the islands' states, to read results from after run()
+	 */
+	public EvolutionState[] getStates() {
+		return states;
+	}
+
+	/**
+	 * Evolve every island to the end of its run, one thread per island.
+	 * The islands block at each migration until the others get there, so
+	 * they cannot share fewer threads.
+	 */
+	public void run() {
+
+		ExecutorService pool = Executors.newFixedThreadPool(states.length);
+		List<Future<?>> running = new ArrayList<Future<?>>();
+		try {
+			for (final EvolutionState state : states) {
+				running.add(pool.submit(new Runnable() {
+					public void run() {
+						state.run(EvolutionState.C_STARTED_FRESH);
+					}
+				}));
+			}
+			for (Future<?> island : running) {
+				island.get();
+			}
+		} catch (Exception e) {
+			throw new RuntimeException("Island failed", e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Send copies of an island's best individuals to the next island, and
+	 * replace its worst with those sent by the previous island, if this is
+	 * a migration generation.  Called once a generation has been evaluated.
+	 * @param island
+	 * @param state
+	 */
+	void migrate(int island, EvolutionState state) {
+
+		if ((state.generation + 1) % interval != 0) {
+			return;
+		}
+		Individual[] population = state.population.subpops[0].individuals;
+		Integer[] order = rank(population);
+
+		// Rounds alternate slots, so a fast island cannot overwrite
+		// migrants before a slow one has taken them
+		int slot = phaser.getPhase() & 1;
+		Individual[] emigrants = new Individual[migrants];
+		for (int i=0; i<migrants; i++) {
+			emigrants[i] = (Individual)(population[order[i].intValue()].clone());
+		}
+		sent[slot][island] = emigrants;
+		phaser.arriveAndAwaitAdvance();
+
+		// An island that has finished sends nothing
+		int from = (island + states.length - 1) % states.length;
+		Individual[] immigrants = sent[slot][from];
+		sent[slot][from] = null;
+		if (immigrants == null) {
+			return;
+		}
+		for (int i=0; i<immigrants.length; i++) {
+			immigrants[i].species = state.population.subpops[0].species;
+			population[order[population.length - 1 - i].intValue()] = immigrants[i];
+		}
+	}
+
+	/**
+	 * @param population
+	 * @return positions of the individuals, best first
+	 */
+	private static Integer[] rank(final Individual[] population) {
+		Integer[] order = new Integer[population.length];
+		for (int i=0; i<order.length; i++) {
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (population[a.intValue()].fitness.betterThan(population[b.intValue()].fitness)) {
+					return -1;
+				}
+				if (population[b.intValue()].fitness.betterThan(population[a.intValue()].fitness)) {
+					return 1;
+				}
+				return 0;
+			}
+		});
+		return order;
+	}
+
+	/**
+	 * @return whether an island has found an ideal individual, so the
+	 * 			rest should stop
+	 */
+	boolean isComplete() {
+		return ideal;
+	}
+
+	/**
+	 * Stop waiting for an island at migrations, once it has finished.
+	 * @param state
+	 * @param result ECJ result of the island's run, which is also success
+	 * 			when a RowBudget stops it
+	 */
+	void leave(EvolutionState state, int result) {
+		if (result == EvolutionState.R_SUCCESS) {
+			Individual[] population = state.population.subpops[0].individuals;
+			for (int i=0; i<population.length; i++) {
+				if (population[i].fitness.isIdealFitness()) {
+					ideal = true;
+				}
+			}
+		}
+		phaser.arriveAndDeregister();
+	}
+
+	/**
+	 * Clean up every island, leaving any pooled nodes for the next row.
+	 */
+	public void cleanup() {
+		for (EvolutionState state : states) {
+			PoolingBreeder.finish(state);
+			Evolve.cleanup(state);
+		}
+	}
+
+}
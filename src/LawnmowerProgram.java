@@ -0,0 +1,194 @@
+package test;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.app.lawnmower.Lawnmower;
+import ec.app.lawnmower.func.Frog;
+import ec.app.lawnmower.func.LawnERC;
+import ec.app.lawnmower.func.Left;
+import ec.app.lawnmower.func.Mow;
+import ec.app.lawnmower.func.Progn2;
+import ec.app.lawnmower.func.V8a;
+import ec.gp.GPIndividual;
+import ec.gp.GPNode;
+
+/**
+ * Runs a lawnmower tree against a lawn of at most 64 squares held as the
+ * bits of a single long, with the mower's position and the (x,y) vectors
+ * passed between nodes kept in int fields.  Each tree is only run once,
+ * so it is walked directly rather than flattened first.  Mowing a square
+ * sets its bit, so the number of squares mowed is the bit count at the
+ * end, and there is no lawn to clear afterwards.  Every node does exactly
+ * what its ec.app.lawnmower.func counterpart does, in the same order:
+ * Mow and Left return (0,0), Frog returns its argument, V8a adds its
+ * arguments modulo the lawn size and Progn2 returns its second argument.
+ * @author drw
+ *
+ */
+public class LawnmowerProgram {
+
+	/** Largest lawn that fits in a long **/
+	public static final int MAX_SQUARES = 64;
+
+	/** Orientation after turning left from each orientation **/
+	private static final int[] LEFT_OF = new int[4];
+	static {
+		LEFT_OF[Lawnmower.O_UP] = Lawnmower.O_LEFT;
+		LEFT_OF[Lawnmower.O_LEFT] = Lawnmower.O_DOWN;
+		LEFT_OF[Lawnmower.O_DOWN] = Lawnmower.O_RIGHT;
+		LEFT_OF[Lawnmower.O_RIGHT] = Lawnmower.O_UP;
+	}
+
+	/** Lawn size **/
+	private final int maxx;
+	private final int maxy;
+
+	/** Mower state while running a tree **/
+	private long mowed;
+	private int posx;
+	private int posy;
+	private int orientation;
+
+	/** Vector returned by the node last run **/
+	private int x;
+	private int y;
+
+	/** Set if the tree holds a node this class does not know **/
+	private boolean unknown;
+
+	/**
+	 * @param maxx lawn width
+	 * @param maxy lawn height
+	 */
+	public LawnmowerProgram(int maxx, int maxy) {
+		this.maxx = maxx;
+		this.maxy = maxy;
+	}
+
+	/**
+	 * @param maxx lawn width
+	 * @param maxy lawn height
+	 * @return whether a lawn of this size fits in a long
+	 */
+	public static boolean fits(int maxx, int maxy) {
+		return maxx * maxy <= MAX_SQUARES;
+	}
+
+	/**
+	 * Run a tree from the mower's starting square and orientation, as set
+	 * by Lawnmower.evaluate().
+	 * @param root
+	 * @return the lawn, with a bit set (at x * maxy + y) for each square
+	 * 			mowed; not valid if isUnknown() is then true
+	 */
+	public long run(GPNode root) {
+		mowed = 0L;
+		posx = maxx / 2 + 1;
+		posy = maxy / 2 + 1;
+		orientation = Lawnmower.O_UP;
+		unknown = false;
+		eval(root);
+		return mowed;
+	}
+
+	/**
+	 * @return whether the tree last run held a node this class does not
+	 * 			know, in which case it must be interpreted instead
+	 */
+	public boolean isUnknown() {
+		return unknown;
+	}
+
+	private void eval(GPNode node) {
+		if (node instanceof Progn2) {
+			eval(node.children[0]);
+			eval(node.children[1]);
+		} else if (node instanceof Mow) {
+			switch (orientation) {
+			case Lawnmower.O_UP:
+				if (--posy < 0) {
+					posy = maxy - 1;
+				}
+				break;
+			case Lawnmower.O_LEFT:
+				if (--posx < 0) {
+					posx = maxx - 1;
+				}
+				break;
+			case Lawnmower.O_DOWN:
+				if (++posy >= maxy) {
+					posy = 0;
+				}
+				break;
+			case Lawnmower.O_RIGHT:
+				if (++posx >= maxx) {
+					posx = 0;
+				}
+				break;
+			}
+			mowed |= 1L << (posx * maxy + posy);
+			x = 0;
+			y = 0;
+		} else if (node instanceof Left) {
+			orientation = LEFT_OF[orientation];
+			x = 0;
+			y = 0;
+		} else if (node instanceof V8a) {
+			eval(node.children[0]);
+			int resultx = x;
+			int resulty = y;
+			eval(node.children[1]);
+			x = (resultx + x) % maxx;
+			y = (resulty + y) % maxy;
+		} else if (node instanceof Frog) {
+			eval(node.children[0]);
+			switch (orientation) {
+			case Lawnmower.O_UP:
+				posx -= y;
+				posy += x;
+				break;
+			case Lawnmower.O_LEFT:
+				posx -= x;
+				posy -= y;
+				break;
+			case Lawnmower.O_DOWN:
+				posx += y;
+				posy -= x;
+				break;
+			case Lawnmower.O_RIGHT:
+				posx += x;
+				posy += y;
+				break;
+			}
+			posx = ((posx % maxx) + maxx) % maxx;
+			posy = ((posy % maxy) + maxy) % maxy;
+			mowed |= 1L << (posx * maxy + posy);
+		} else if (node instanceof LawnERC) {
+			x = ((LawnERC)node).x;
+			y = ((LawnERC)node).y;
+		} else {
+			unknown = true;
+		}
+	}
+
+	/**
+	 * Evaluate an individual and set its fitness, in the same way as
+	 * Lawnmower.evaluate().
+	 * @param state
+	 * @param ind
+	 * @return false if the tree holds a node this class does not know and
+	 * 			was not evaluated
+	 */
+	public boolean evaluate(EvolutionState state, Individual ind) {
+
+		long lawn = run(((GPIndividual)ind).trees[0].child);
+		if (unknown) {
+			return false;
+		}
+
+		int hits = Long.bitCount(lawn);
+		FastEvaluation.setFitness(state, ind, (float)(maxx * maxy - hits), hits);
+		return true;
+	}
+
+}
@@ -0,0 +1,127 @@
+package test;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.gp.GPIndividual;
+import ec.gp.GPTree;
+import ec.gp.koza.CrossoverPipeline;
+import ec.gp.koza.KozaNodeSelector;
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Koza subtree crossover done on LinearGenome copies of the parents, put
+ * in place of ec.gp.koza.CrossoverPipeline when BatchEvolve is run with
+ * "-lineargenome".  It reads the same parameters, and the crossover
+ * points are picked with the KozaNodeSelector root, terminal and
+ * nonterminal probabilities from the same random numbers, with the same
+ * depth limit and number of tries, so it breeds the same children.
+ * Where that cannot be guaranteed (see LinearGenome.canBreed()) or the
+ * pipeline's likelihood is below 1, the ECJ pipeline does the work instead.
+ * @author drw
+ *
+ */
+public class LinearCrossoverPipeline extends CrossoverPipeline {
+
+	/** Opcodes of the nodes seen by this pipeline **/
+	private LinearGenome.Table table = new LinearGenome.Table();
+
+	/** The parents' genomes, and a child's, refilled for each pair **/
+	private LinearGenome genome1 = new LinearGenome(table);
+	private LinearGenome genome2 = new LinearGenome(table);
+	private LinearGenome spliced = new LinearGenome(table);
+
+	/** Whether the run can be bred from genomes, decided on first use **/
+	private Boolean linear;
+
+	public Object clone() {
+		LinearCrossoverPipeline myobj = (LinearCrossoverPipeline)(super.clone());
+		myobj.table = new LinearGenome.Table();
+		myobj.genome1 = new LinearGenome(myobj.table);
+		myobj.genome2 = new LinearGenome(myobj.table);
+		myobj.spliced = new LinearGenome(myobj.table);
+		return myobj;
+	}
+
+	public int produce(final int min, final int max, final int start, final int subpopulation,
+					final Individual[] inds, final EvolutionState state, final int thread) {
+
+		if (linear == null) {
+			linear = Boolean.valueOf(likelihood == 1.0f
+					&& nodeselect1 instanceof KozaNodeSelector
+					&& nodeselect2 instanceof KozaNodeSelector
+					&& LinearGenome.canBreed(state, subpopulation));
+		}
+		if (!linear.booleanValue()) {
+			return super.produce(min, max, start, subpopulation, inds, state, thread);
+		}
+		KozaNodeSelector select1 = (KozaNodeSelector)nodeselect1;
+		KozaNodeSelector select2 = (KozaNodeSelector)nodeselect2;
+		MersenneTwisterFast random = state.random[thread];
+		NodePool pool = NodePool.get(state, thread);
+
+		// how many individuals should we make?
+		int n = typicalIndsProduced();
+		if (n < min) n = min;
+		if (n > max) n = max;
+
+		for (int q=start; q<n+start; ) {
+			// grab two individuals from our sources
+			if (sources[0] == sources[1]) {
+				sources[0].produce(2, 2, 0, subpopulation, parents, state, thread);
+			} else {
+				sources[0].produce(1, 1, 0, subpopulation, parents, state, thread);
+				sources[1].produce(1, 1, 1, subpopulation, parents, state, thread);
+			}
+			genome1.read(parents[0].trees[0].child);
+			genome2.read(parents[1].trees[0].child);
+			boolean second = n - (q - start) >= 2 && !tossSecondParent;
+
+			boolean res1 = false;
+			boolean res2 = false;
+			int p1 = 0;
+			int p2 = 0;
+			for (int x=0; x<numTries; x++) {
+				p1 = genome1.pickNode(random, (float)select1.rootProbability,
+							(float)select1.terminalProbability, (float)select1.nonterminalProbability);
+				p2 = genome2.pickNode(random, (float)select2.rootProbability,
+							(float)select2.terminalProbability, (float)select2.nonterminalProbability);
+				// p2 must fit in p1's place, and p1 in p2's if both are kept
+				res1 = genome2.depth(p2) + genome1.atDepth(p1) <= maxDepth;
+				res2 = !second || genome1.depth(p1) + genome2.atDepth(p2) <= maxDepth;
+				if (res1 && res2) {
+					break;
+				}
+			}
+
+			inds[q++] = child(parents[0], res1 ? genome1.splice(p1, genome2, p2, spliced) : genome1, res1, pool);
+			if (q < n+start && !tossSecondParent) {
+				inds[q++] = child(parents[1], res2 ? genome2.splice(p2, genome1, p1, spliced) : genome2, res2, pool);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @param parent
+	 * @param genome the child's tree
+	 * @param changed whether the tree differs from the parent's
+	 * @param pool individuals and nodes to reuse, or null
+	 * @return a new individual like the parent, with the genome's tree
+	 */
+	private static GPIndividual child(GPIndividual parent, LinearGenome genome, boolean changed,
+										NodePool pool) {
+		GPIndividual j = pool != null ? pool.takeIndividual(parent) : null;
+		if (j == null) {
+			j = (GPIndividual)(parent.lightClone());
+			j.trees = new GPTree[1];
+			j.trees[0] = (GPTree)(parent.trees[0].lightClone());
+			j.trees[0].owner = j;
+		}
+		j.trees[0].child = genome.toTree(j.trees[0], pool);
+		if (changed) {
+			j.evaluated = false;
+		}
+		return j;
+	}
+
+}
@@ -0,0 +1,407 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.app.lawnmower.func.LawnERC;
+import ec.app.regression.func.RegERC;
+import ec.gp.ERC;
+import ec.gp.GPFunctionSet;
+import ec.gp.GPIndividual;
+import ec.gp.GPInitializer;
+import ec.gp.GPNode;
+import ec.gp.GPNodeParent;
+import ec.util.MersenneTwisterFast;
+
+/**
+ * A GP tree held as two primitive arrays in prefix order: the opcode of
+ * each node in an int array, and the ERC constant of each node in a
+ * parallel double array.  A subtree is a contiguous run of the arrays,
+ * so picking a node, measuring a subtree and swapping subtrees between
+ * trees are loops and array copies rather than walks over GPNode objects.
+ * Used by LinearCrossoverPipeline and LinearMutationPipeline, which
+ * each keep a few genomes and refill them for every parent.
+ *
+ * Nodes are numbered in the same prefix order that ECJ's nodeInPosition()
+ * uses, so pickNode() chooses the node KozaNodeSelector would choose from
+ * the same random numbers.  Opcodes are handed out by a Table as node
+ * classes are first seen, so a genome only makes sense with the table it
+ * was built with.  The only ERCs that can be held are those of the
+ * regression and lawnmower problems; canEncode() says which nodes are
+ * supported.
+ * @author drw
+ *
+ */
+public class LinearGenome {
+
+	/** Multiplier packing a LawnERC's x and y into one constant **/
+	public static final int LAWN_ERC_SCALE = 65536;
+
+	/**
+	 * Opcodes for the node classes seen so far, with a prototype of each
+	 * for building trees.  Not thread safe; each breeding pipeline keeps
+	 * its own.
+	 */
+	public static class Table {
+
+		private final Map<Class<?>,Integer> opcodes = new HashMap<Class<?>,Integer>();
+		private final List<GPNode> prototypes = new ArrayList<GPNode>();
+		private int[] arity = new int[16];
+
+		/**
+		 * @param node
+		 * @return the opcode for the node's class, added if it is new
+		 */
+		int opcode(GPNode node) {
+			Integer op = opcodes.get(node.getClass());
+			if (op != null) {
+				return op.intValue();
+			}
+			int next = prototypes.size();
+			GPNode prototype = (GPNode)(node.lightClone());
+			prototype.parent = null;
+			prototypes.add(prototype);
+			if (next == arity.length) {
+				int[] bigger = new int[next * 2];
+				System.arraycopy(arity, 0, bigger, 0, next);
+				arity = bigger;
+			}
+			arity[next] = node.children.length;
+			opcodes.put(node.getClass(), Integer.valueOf(next));
+			return next;
+		}
+
+		int arity(int op) {
+			return arity[op];
+		}
+
+		GPNode prototype(int op) {
+			return prototypes.get(op);
+		}
+	}
+
+	/** Opcode of each node, in prefix order, grown as needed **/
+	int[] code = new int[64];
+
+	/** ERC constant of each node, 0 for nodes that are not ERCs **/
+	double[] constants = new double[64];
+
+	/** Number of nodes held **/
+	int length;
+
+	private final Table table;
+
+	/** Next position to read while building a tree **/
+	private int cursor;
+
+	/** Arguments still to fill at each level, while measuring depths **/
+	private int[] open = new int[64];
+
+	/**
+	 * An empty genome, to be filled by read() or splice() and refilled
+	 * for each tree, so a pipeline need not allocate arrays per parent.
+	 * @param table
+	 */
+	public LinearGenome(Table table) {
+		this.table = table;
+	}
+
+	/**
+	 * @param node
+	 * @return whether nodes of this kind can be held in a genome
+	 */
+	public static boolean canEncode(GPNode node) {
+		return !(node instanceof ERC) || node instanceof RegERC || node instanceof LawnERC;
+	}
+
+	/**
+	 * Whether a subpopulation can be bred from genomes with the same
+	 * results as from trees: individuals have a single tree, there is only
+	 * one GP type, so any subtree may replace any other, and every node in
+	 * the function set can be encoded.
+	 * @param state
+	 * @param subpopulation
+	 * @return
+	 */
+	public static boolean canBreed(EvolutionState state, int subpopulation) {
+		if (!(state.initializer instanceof GPInitializer)) {
+			return false;
+		}
+		GPInitializer initializer = (GPInitializer)state.initializer;
+		if (initializer.numAtomicTypes + initializer.numSetTypes != 1) {
+			return false;
+		}
+		Individual prototype = state.population.subpops[subpopulation].species.i_prototype;
+		if (!(prototype instanceof GPIndividual) || ((GPIndividual)prototype).trees.length != 1) {
+			return false;
+		}
+		GPFunctionSet set = ((GPIndividual)prototype).trees[0].constraints(initializer).functionset;
+		for (int t=0; t<set.nodes.length; t++) {
+			for (int i=0; i<set.nodes[t].length; i++) {
+				if (!canEncode(set.nodes[t][i])) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Flatten a tree into this genome, replacing what it held.
+	 * @param root
+	 * @return this genome, or null if the tree holds a node that cannot be
+	 * 			encoded
+	 */
+	public LinearGenome read(GPNode root) {
+		reserve(root.numNodes(GPNode.NODESEARCH_ALL));
+		cursor = 0;
+		return append(root) ? this : null;
+	}
+
+	/**
+	 * Make room for a number of nodes, and hold that many.  The nodes held
+	 * before are lost.
+	 * @param size
+	 */
+	private void reserve(int size) {
+		if (size > code.length) {
+			int capacity = Math.max(size, code.length * 2);
+			code = new int[capacity];
+			constants = new double[capacity];
+		}
+		length = size;
+	}
+
+	/**
+	 * @param size
+	 * @return scratch space for at least size levels
+	 */
+	private int[] open(int size) {
+		if (size > open.length) {
+			open = new int[Math.max(size, open.length * 2)];
+		}
+		return open;
+	}
+
+	private boolean append(GPNode node) {
+		int i = cursor++;
+		if (node instanceof RegERC) {
+			constants[i] = ((RegERC)node).value;
+		} else if (node instanceof LawnERC) {
+			constants[i] = ((LawnERC)node).x * LAWN_ERC_SCALE + ((LawnERC)node).y;
+		} else if (node instanceof ERC) {
+			return false;
+		} else {
+			constants[i] = 0;
+		}
+		code[i] = table.opcode(node);
+		for (int c=0; c<node.children.length; c++) {
+			if (!append(node.children[c])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Build the tree held by this genome from fresh nodes, or from nodes
+	 * taken from a pool.
+	 * @param parent parent of the root, normally the GPTree
+	 * @param pool nodes to reuse, or null to clone fresh ones
+	 * @return root of the tree, with argposition 0
+	 */
+	public GPNode toTree(GPNodeParent parent, NodePool pool) {
+		cursor = 0;
+		return build(parent, 0, pool);
+	}
+
+	private GPNode build(GPNodeParent parent, int argposition, NodePool pool) {
+		int i = cursor++;
+		GPNode prototype = table.prototype(code[i]);
+		GPNode node = pool != null ? pool.take(prototype) : (GPNode)(prototype.lightClone());
+		node.parent = parent;
+		node.argposition = (byte)argposition;
+		if (node instanceof RegERC) {
+			((RegERC)node).value = constants[i];
+		} else if (node instanceof LawnERC) {
+			int packed = (int)constants[i];
+			((LawnERC)node).x = Math.floorDiv(packed, LAWN_ERC_SCALE);
+			((LawnERC)node).y = Math.floorMod(packed, LAWN_ERC_SCALE);
+		}
+		for (int c=0; c<node.children.length; c++) {
+			node.children[c] = build(node, c, pool);
+		}
+		return node;
+	}
+
+	/**
+	 * @return number of nodes
+	 */
+	public int size() {
+		return length;
+	}
+
+	/**
+	 * @param i position of a node
+	 * @return position just after the node's subtree
+	 */
+	public int end(int i) {
+		int open = 1;
+		while (open > 0) {
+			open += table.arity(code[i++]) - 1;
+		}
+		return i;
+	}
+
+	/**
+	 * @param i position of a node
+	 * @return depth of the node's subtree, 1 for a terminal, as GPNode.depth()
+	 */
+	public int depth(int i) {
+		int end = end(i);
+		int[] open = open(end - i + 1);
+		int level = 0;
+		int deepest = 0;
+		open[0] = 1;
+		for (int j=i; j<end; j++) {
+			// Fill the next argument of the innermost node still open
+			while (open[level] == 0) {
+				level--;
+			}
+			open[level]--;
+			level++;
+			deepest = Math.max(deepest, level);
+			open[level] = table.arity(code[j]);
+		}
+		return deepest;
+	}
+
+	/**
+	 * @param i position of a node
+	 * @return number of ancestors of the node, 0 for the root, as
+	 * 			GPNode.atDepth()
+	 */
+	public int atDepth(int i) {
+		int[] open = open(i + 2);
+		int level = 0;
+		open[0] = 1;
+		for (int j=0; j<i; j++) {
+			while (open[level] == 0) {
+				level--;
+			}
+			open[level]--;
+			level++;
+			open[level] = table.arity(code[j]);
+		}
+		while (open[level] == 0) {
+			level--;
+		}
+		return level;
+	}
+
+	/**
+	 * @return number of terminals
+	 */
+	public int terminals() {
+		int count = 0;
+		for (int i=0; i<length; i++) {
+			if (table.arity(code[i]) == 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param k
+	 * @param terminal whether to count terminals or nonterminals
+	 * @return position of the k'th terminal or nonterminal, from 0
+	 */
+	private int nth(int k, boolean terminal) {
+		for (int i=0; i<length; i++) {
+			if ((table.arity(code[i]) == 0) == terminal && k-- == 0) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("No node " + k + " in genome");
+	}
+
+	/**
+	 * Pick a node as KozaNodeSelector does, drawing the same random numbers
+	 * in the same order.  The probabilities are floats, as in ECJ, so that
+	 * they add up to exactly the same thresholds.
+	 * @param random
+	 * @param root probability of picking the root
+	 * @param terminal probability of picking a terminal
+	 * @param nonterminal probability of picking a nonterminal, or the
+	 * 			root if there are none
+	 * @return position of the node picked
+	 */
+	public int pickNode(MersenneTwisterFast random, float root, float terminal, float nonterminal) {
+		float rnd = random.nextFloat();
+		if (rnd > nonterminal + terminal + root) {
+			return random.nextInt(length);
+		} else if (rnd > nonterminal + terminal) {
+			return 0;
+		} else if (rnd > nonterminal) {
+			return nth(random.nextInt(terminals()), true);
+		} else {
+			int nonterminals = length - terminals();
+			if (nonterminals > 0) {
+				return nth(random.nextInt(nonterminals), false);
+			}
+			// A lone terminal, which is the root
+			return 0;
+		}
+	}
+
+	/**
+	 * @param at position of a node in this genome
+	 * @param donor
+	 * @param from position of a node in the donor
+	 * @param into genome to hold the result, neither this one nor the donor
+	 * @return into, now a copy of this genome with the subtree at "at"
+	 * 			replaced by the donor's subtree at "from"
+	 */
+	public LinearGenome splice(int at, LinearGenome donor, int from, LinearGenome into) {
+		int end = end(at);
+		int donorEnd = donor.end(from);
+		into.reserve(at + (donorEnd - from) + (length - end));
+		System.arraycopy(code, 0, into.code, 0, at);
+		System.arraycopy(constants, 0, into.constants, 0, at);
+		System.arraycopy(donor.code, from, into.code, at, donorEnd - from);
+		System.arraycopy(donor.constants, from, into.constants, at, donorEnd - from);
+		System.arraycopy(code, end, into.code, at + donorEnd - from, length - end);
+		System.arraycopy(constants, end, into.constants, at + donorEnd - from, length - end);
+		return into;
+	}
+
+	/**
+	 * @param root the tree this genome was built from
+	 * @param position
+	 * @return the node of the tree at a prefix position, as
+	 * 			nodeInPosition(position, GPNode.NODESEARCH_ALL)
+	 */
+	public GPNode nodeAt(GPNode root, int position) {
+		GPNode node = root;
+		int i = 0;
+		while (i != position) {
+			int child = i + 1;
+			int c = 0;
+			int next = end(child);
+			while (next <= position) {
+				child = next;
+				next = end(child);
+				c++;
+			}
+			node = node.children[c];
+			i = child;
+		}
+		return node;
+	}
+
+}
@@ -0,0 +1,123 @@
+package test;
+
+import ec.BreedingPipeline;
+import ec.EvolutionState;
+import ec.Individual;
+import ec.gp.GPIndividual;
+import ec.gp.GPInitializer;
+import ec.gp.GPNode;
+import ec.gp.GPNodeBuilder;
+import ec.gp.GPTree;
+import ec.gp.koza.KozaNodeSelector;
+import ec.gp.koza.MutationPipeline;
+import ec.util.MersenneTwisterFast;
+
+/**
+ * Koza subtree mutation done on a LinearGenome copy of the parent, put in
+ * place of ec.gp.koza.MutationPipeline when BatchEvolve is run with
+ * "-lineargenome".  The mutation point is picked with the
+ * KozaNodeSelector probabilities from the same random numbers as ECJ, and
+ * the new subtree is grown by the pipeline's own builder with the same
+ * arguments, so it breeds the same children.  The grown subtree is
+ * spliced into the genome and the child's tree built from that.  Where
+ * that cannot be guaranteed (see LinearGenome.canBreed()) or the
+ * pipeline's likelihood is below 1, the ECJ pipeline does the work instead.
+ * @author drw
+ *
+ */
+public class LinearMutationPipeline extends MutationPipeline {
+
+	/** Opcodes of the nodes seen by this pipeline **/
+	private LinearGenome.Table table = new LinearGenome.Table();
+
+	/** The parent's genome, the subtree grown and the child's, refilled for each parent **/
+	private LinearGenome genome = new LinearGenome(table);
+	private LinearGenome grown = new LinearGenome(table);
+	private LinearGenome spliced = new LinearGenome(table);
+
+	/** Whether the run can be bred from genomes, decided on first use **/
+	private Boolean linear;
+
+	public Object clone() {
+		LinearMutationPipeline myobj = (LinearMutationPipeline)(super.clone());
+		myobj.table = new LinearGenome.Table();
+		myobj.genome = new LinearGenome(myobj.table);
+		myobj.grown = new LinearGenome(myobj.table);
+		myobj.spliced = new LinearGenome(myobj.table);
+		return myobj;
+	}
+
+	public int produce(final int min, final int max, final int start, final int subpopulation,
+					final Individual[] inds, final EvolutionState state, final int thread) {
+
+		if (linear == null) {
+			linear = Boolean.valueOf(likelihood == 1.0f
+					&& nodeselect instanceof KozaNodeSelector
+					&& LinearGenome.canBreed(state, subpopulation));
+		}
+		if (!linear.booleanValue()) {
+			return super.produce(min, max, start, subpopulation, inds, state, thread);
+		}
+		KozaNodeSelector select = (KozaNodeSelector)nodeselect;
+		MersenneTwisterFast random = state.random[thread];
+		GPInitializer initializer = (GPInitializer)state.initializer;
+		NodePool pool = NodePool.get(state, thread);
+
+		// grab individuals from our source and stick 'em right into inds
+		int n = sources[0].produce(min, max, start, subpopulation, inds, state, thread);
+
+		for (int q=start; q<n+start; q++) {
+			GPIndividual i = (GPIndividual)inds[q];
+			GPNode root = i.trees[0].child;
+			genome.read(root);
+
+			boolean res = false;
+			int p1 = 0;
+			for (int x=0; x<numTries; x++) {
+				p1 = genome.pickNode(random, (float)select.rootProbability,
+							(float)select.terminalProbability, (float)select.nonterminalProbability);
+
+				// grow a subtree for p1's place, exactly as ECJ asks for one
+				GPNode point = genome.nodeAt(root, p1);
+				int size = equalSize ? genome.end(p1) - p1 : GPNodeBuilder.NOSIZEGIVEN;
+				GPNode subtree = builder.newRootedTree(state, point.parentType(initializer), thread,
+								point.parent, i.trees[0].constraints(initializer).functionset,
+								point.argposition, size);
+				grown.read(subtree);
+				if (pool != null) {
+					pool.release(subtree);
+				}
+
+				res = grown.depth(0) + genome.atDepth(p1) <= maxDepth;
+				if (res) {
+					break;
+				}
+			}
+
+			// a child of another pipeline is already a copy, so reuse it
+			GPIndividual j = i;
+			if (!(sources[0] instanceof BreedingPipeline)) {
+				j = pool != null ? pool.takeIndividual(i) : null;
+				if (j == null) {
+					j = (GPIndividual)(i.lightClone());
+					j.trees = new GPTree[1];
+					j.trees[0] = (GPTree)(i.trees[0].lightClone());
+					j.trees[0].owner = j;
+				}
+				j.trees[0].child = (res ? genome.splice(p1, grown, 0, spliced) : genome).toTree(j.trees[0], pool);
+			} else if (res) {
+				// the copy's old tree is used by nothing else
+				if (pool != null) {
+					pool.release(root);
+				}
+				j.trees[0].child = genome.splice(p1, grown, 0, spliced).toTree(j.trees[0], pool);
+			}
+			if (res) {
+				j.evaluated = false;
+			}
+			inds[q] = j;
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,250 @@
+package test;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.app.multiplexerslow.func.A0;
+import ec.app.multiplexerslow.func.A1;
+import ec.app.multiplexerslow.func.A2;
+import ec.app.multiplexerslow.func.And;
+import ec.app.multiplexerslow.func.D0;
+import ec.app.multiplexerslow.func.D1;
+import ec.app.multiplexerslow.func.D2;
+import ec.app.multiplexerslow.func.D3;
+import ec.app.multiplexerslow.func.D4;
+import ec.app.multiplexerslow.func.D5;
+import ec.app.multiplexerslow.func.D6;
+import ec.app.multiplexerslow.func.D7;
+import ec.app.multiplexerslow.func.If;
+import ec.app.multiplexerslow.func.Not;
+import ec.app.multiplexerslow.func.Or;
+import ec.gp.GPIndividual;
+import ec.gp.GPNode;
+
+/**
+ * A multiplexer tree flattened into a postfix program that evaluates 64
+ * fitness cases per machine word.  Fitness case c is bit (c % 64) of word
+ * (c / 64), and every stack entry holds one word per group of 64 cases,
+ * so each node is dispatched once and then applied to all the cases with
+ * plain bitwise operations.  The terminals and the correct outputs are
+ * packed the same way when the program is created.  The multiplexer nodes
+ * only ever produce 0 or 1, so And, Or, Not and If compute exactly what
+ * the ec.app.multiplexerslow.func nodes do, and the hits are counted with
+ * Long.bitCount().
+ * @author drw
+ *
+ */
+public class MultiplexerProgram {
+
+	/** Opcodes: the terminals A0-A2 and D0-D7 are 0 to 10 **/
+	public static final int OP_A0 = 0;
+	public static final int OP_D0 = 3;
+	public static final int NUM_TERMINALS = 11;
+	public static final int OP_AND = 11;
+	public static final int OP_OR = 12;
+	public static final int OP_NOT = 13;
+	public static final int OP_IF = 14;
+
+	/** Largest number of address bits the terminals can express **/
+	public static final int MAX_BITS = 3;
+
+	/** Number of fitness cases **/
+	private final int cases;
+
+	/** Number of 64-case words **/
+	private final int words;
+
+	/** Bits of the last word that hold real fitness cases **/
+	private final long lastMask;
+
+	/** Value of each terminal for every fitness case **/
+	private final long[][] terminals;
+
+	/** Correct output for every fitness case **/
+	private final long[] target;
+
+	/** Opcodes in postfix order **/
+	private int[] code = new int[64];
+
+	/** Number of opcodes in the current program **/
+	private int length;
+
+	/** Value stack, one row of words per entry **/
+	private long[][] stack = new long[0][];
+
+	/**
+	 * Pack the terminals and correct outputs for a multiplexer.
+	 * @param bits number of address bits
+	 */
+	public MultiplexerProgram(int bits) {
+
+		int amax = 1 << bits;
+		int dmax = 1 << amax;
+		cases = amax * dmax;
+		words = (cases + 63) / 64;
+		lastMask = (cases % 64 == 0) ? -1L : (1L << (cases % 64)) - 1;
+		terminals = new long[NUM_TERMINALS][words];
+		target = new long[words];
+
+		int c = 0;
+		for (int address = 0; address < amax; address++) {
+			for (int data = 0; data < dmax; data++) {
+				long bit = 1L << (c % 64);
+				int word = c / 64;
+				for (int i = 0; i < MAX_BITS; i++) {
+					if (((address >>> i) & 1) != 0) {
+						terminals[OP_A0 + i][word] |= bit;
+					}
+				}
+				for (int i = 0; i < NUM_TERMINALS - OP_D0; i++) {
+					if (((data >>> i) & 1) != 0) {
+						terminals[OP_D0 + i][word] |= bit;
+					}
+				}
+				if (((data >>> address) & 1) != 0) {
+					target[word] |= bit;
+				}
+				c++;
+			}
+		}
+	}
+
+	/**
+	 * Flatten a tree into this program.
+	 * @param root
+	 * @return false if the tree holds a node this class does not know,
+	 * 			in which case the tree must be interpreted instead
+	 */
+	public boolean compile(GPNode root) {
+		length = 0;
+		return append(root);
+	}
+
+	private boolean append(GPNode node) {
+		for (int i=0; i<node.children.length; i++) {
+			if (!append(node.children[i])) {
+				return false;
+			}
+		}
+		int op;
+		if (node instanceof And) {
+			op = OP_AND;
+		} else if (node instanceof Or) {
+			op = OP_OR;
+		} else if (node instanceof Not) {
+			op = OP_NOT;
+		} else if (node instanceof If) {
+			op = OP_IF;
+		} else if (node instanceof A0) {
+			op = OP_A0;
+		} else if (node instanceof A1) {
+			op = OP_A0 + 1;
+		} else if (node instanceof A2) {
+			op = OP_A0 + 2;
+		} else if (node instanceof D0) {
+			op = OP_D0;
+		} else if (node instanceof D1) {
+			op = OP_D0 + 1;
+		} else if (node instanceof D2) {
+			op = OP_D0 + 2;
+		} else if (node instanceof D3) {
+			op = OP_D0 + 3;
+		} else if (node instanceof D4) {
+			op = OP_D0 + 4;
+		} else if (node instanceof D5) {
+			op = OP_D0 + 5;
+		} else if (node instanceof D6) {
+			op = OP_D0 + 6;
+		} else if (node instanceof D7) {
+			op = OP_D0 + 7;
+		} else {
+			return false;
+		}
+		if (length == code.length) {
+			int[] biggerCode = new int[length * 2];
+			System.arraycopy(code, 0, biggerCode, 0, length);
+			code = biggerCode;
+		}
+		code[length++] = op;
+		return true;
+	}
+
+	/**
+	 * Run the program over every fitness case.
+	 * @return the output for every fitness case, packed as for the terminals
+	 */
+	public long[] run() {
+		if (stack.length < length) {
+			stack = new long[code.length][words];
+		}
+		final int[] code = this.code;
+		final long[][] stack = this.stack;
+		final int words = this.words;
+		int top = -1;
+		for (int pc=0; pc<length; pc++) {
+			int op = code[pc];
+			if (op < NUM_TERMINALS) {
+				System.arraycopy(terminals[op], 0, stack[++top], 0, words);
+				continue;
+			}
+			switch (op) {
+			case OP_AND: {
+				top--;
+				long[] a = stack[top], b = stack[top+1];
+				for (int w=0; w<words; w++) {
+					a[w] &= b[w];
+				}
+				break;
+			}
+			case OP_OR: {
+				top--;
+				long[] a = stack[top], b = stack[top+1];
+				for (int w=0; w<words; w++) {
+					a[w] |= b[w];
+				}
+				break;
+			}
+			case OP_NOT: {
+				long[] a = stack[top];
+				for (int w=0; w<words; w++) {
+					a[w] = ~a[w];
+				}
+				break;
+			}
+			case OP_IF: {
+				top -= 2;
+				long[] c = stack[top], t = stack[top+1], e = stack[top+2];
+				for (int w=0; w<words; w++) {
+					c[w] = (c[w] & t[w]) | (~c[w] & e[w]);
+				}
+				break;
+			}
+			}
+		}
+		return stack[0];
+	}
+
+	/**
+	 * Evaluate an individual over all the fitness cases and set its
+	 * fitness, in the same way as Multiplexer.evaluate().
+	 * @param state
+	 * @param ind
+	 * @return false if the tree could not be compiled and was not evaluated
+	 */
+	public boolean evaluate(EvolutionState state, Individual ind) {
+
+		if (!compile(((GPIndividual)ind).trees[0].child)) {
+			return false;
+		}
+
+		long[] output = run();
+		int hits = 0;
+		for (int w=0; w<words - 1; w++) {
+			hits += Long.bitCount(~(output[w] ^ target[w]));
+		}
+		hits += Long.bitCount(~(output[words-1] ^ target[words-1]) & lastMask);
+
+		FastEvaluation.setFitness(state, ind, (float)(cases - hits), hits);
+		return true;
+	}
+
+}
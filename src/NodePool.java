@@ -0,0 +1,158 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import ec.EvolutionState;
+import ec.Fitness;
+import ec.Individual;
+import ec.gp.GPIndividual;
+import ec.gp.GPNode;
+import ec.gp.GPTree;
+
+/**
+ * Tree nodes and individuals of populations that have been bred from and
+ * thrown away, kept for the LinearGenome pipelines to build children from
+ * instead of cloning new ones.  Each ECJ breeding thread has its own pool,
+ * filled by a PoolingBreeder, so taking from it needs no locking.  When a
+ * row finishes its pools are handed on, holding its last population, to
+ * the next row started in the same JVM.
+ * @author drw
+ *
+ */
+public class NodePool {
+
+	/** Pools of finished rows, waiting for the next row to take them **/
+	private static final ConcurrentLinkedQueue<NodePool> idle = new ConcurrentLinkedQueue<NodePool>();
+
+	/** Spare nodes by class **/
+	private final Map<Class<?>, ArrayList<GPNode>> nodes = new HashMap<Class<?>, ArrayList<GPNode>>();
+
+	/** Spare individuals, each with its one tree **/
+	private final ArrayList<GPIndividual> individuals = new ArrayList<GPIndividual>();
+
+	/**
+	 * @return a pool left by a finished row, or a new one
+	 */
+	static NodePool acquire() {
+		NodePool pool = idle.poll();
+		return pool != null ? pool : new NodePool();
+	}
+
+	/**
+	 * Hand a pool on to the next row.
+	 * @param pool
+	 */
+	static void recycle(NodePool pool) {
+		idle.add(pool);
+	}
+
+	/**
+	 * @param state
+	 * @param thread ECJ breeding thread
+	 * @return the thread's pool, or null if the state's breeder does not
+	 * 			keep any
+	 */
+	public static NodePool get(EvolutionState state, int thread) {
+		if (!(state.breeder instanceof PoolingBreeder)) {
+			return null;
+		}
+		return ((PoolingBreeder)state.breeder).getPool(thread);
+	}
+
+	/**
+	 * @param prototype
+	 * @return a spare node of the prototype's class, or a light clone of
+	 * 			the prototype if there is none.  Its parent, argposition,
+	 * 			children and any ERC value are left for the caller to set.
+	 */
+	public GPNode take(GPNode prototype) {
+		ArrayList<GPNode> spare = nodes.get(prototype.getClass());
+		if (spare == null || spare.isEmpty()) {
+			return (GPNode)(prototype.lightClone());
+		}
+		GPNode node = spare.remove(spare.size() - 1);
+		node.constraints = prototype.constraints;
+		return node;
+	}
+
+	/**
+	 * @param parent
+	 * @return a spare individual of the parent's species, set up as
+	 * 			parent.lightClone() would be apart from its tree's root, or
+	 * 			null if there is none
+	 */
+	public GPIndividual takeIndividual(GPIndividual parent) {
+		if (individuals.isEmpty()) {
+			return null;
+		}
+		GPIndividual j = individuals.get(individuals.size() - 1);
+		if (j.species != parent.species || parent.getClass() != GPIndividual.class
+				|| parent.trees.length != 1 || parent.trees[0].getClass() != GPTree.class) {
+			return null;
+		}
+		individuals.remove(individuals.size() - 1);
+		j.fitness = (Fitness)(parent.fitness.clone());
+		j.evaluated = parent.evaluated;
+		j.trees[0].owner = j;
+		return j;
+	}
+
+	/**
+	 * Keep an individual that is no longer used by anything, and the nodes
+	 * of its trees.  Individuals of subclasses, or with more than one tree,
+	 * only give up their nodes.
+	 * @param individual
+	 */
+	public void release(Individual individual) {
+		if (!(individual instanceof GPIndividual)) {
+			return;
+		}
+		GPIndividual ind = (GPIndividual)individual;
+		if (ind.trees.length == 0 || ind.trees[0].child == null) {
+			// already released
+			return;
+		}
+		for (int t=0; t<ind.trees.length; t++) {
+			release(ind.trees[t].child);
+			ind.trees[t].child = null;
+		}
+		if (ind.getClass() == GPIndividual.class && ind.trees.length == 1
+				&& ind.trees[0].getClass() == GPTree.class) {
+			ind.fitness = null;
+			individuals.add(ind);
+		}
+	}
+
+	/**
+	 * Keep the nodes of a subtree that is no longer used by anything.
+	 * @param node root of the subtree
+	 */
+	public void release(GPNode node) {
+		for (int c=0; c<node.children.length; c++) {
+			release(node.children[c]);
+			node.children[c] = null;
+		}
+		node.parent = null;
+		ArrayList<GPNode> spare = nodes.get(node.getClass());
+		if (spare == null) {
+			spare = new ArrayList<GPNode>();
+			nodes.put(node.getClass(), spare);
+		}
+		spare.add(node);
+	}
+
+	/**
+	 * Drop everything kept, so the pool holds no more than the population
+	 * released next.
+	 */
+	public void clear() {
+		for (ArrayList<GPNode> spare : nodes.values()) {
+			spare.clear();
+		}
+		individuals.clear();
+	}
+
+}
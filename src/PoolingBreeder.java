@@ -0,0 +1,92 @@
+package test;
+
+import ec.EvolutionState;
+import ec.Population;
+import ec.simple.SimpleBreeder;
+
+/**
+ * SimpleBreeder that keeps the nodes and individuals of each population it
+ * has bred from, once the run has moved on from it, in a NodePool per
+ * breeding thread.  The LinearGenome pipelines build children from the
+ * pool, so a generation reuses the objects of the one before last rather
+ * than cloning new ones.  ECJ's pipelines copy every individual they take
+ * from the old population, so once a population has been replaced nothing
+ * refers to it.  BatchEvolve names it as the "breed" class in place of
+ * SimpleBreeder when run with "-nodepool"; otherwise it breeds exactly as
+ * SimpleBreeder does.
+ * @author drw
+ *
+ */
+public class PoolingBreeder extends SimpleBreeder {
+
+	/** Pool of each breeding thread, taken on the first generation bred **/
+	private NodePool[] pools;
+
+	/** Population last bred from **/
+	private Population parents;
+
+	public Population breedPopulation(EvolutionState state) {
+		if (pools == null) {
+			pools = new NodePool[state.breedthreads];
+			for (int t=0; t<pools.length; t++) {
+				pools[t] = NodePool.acquire();
+			}
+		}
+		// The last parents are free once their children have taken their
+		// place; a caller breeding again from the same parents frees nothing
+		if (parents != null && parents != state.population) {
+			release(parents);
+		}
+		parents = state.population;
+		return super.breedPopulation(state);
+	}
+
+	/**
+	 * @param thread
+	 * @return the pool of a breeding thread, or null before the first
+	 * 			generation is bred
+	 */
+	NodePool getPool(int thread) {
+		return pools == null ? null : pools[thread];
+	}
+
+	/**
+	 * Empty the pools and fill them from a population, sharing its
+	 * individuals out between the breeding threads.
+	 * @param population
+	 */
+	private void release(Population population) {
+		for (int t=0; t<pools.length; t++) {
+			pools[t].clear();
+		}
+		int next = 0;
+		for (int s=0; s<population.subpops.length; s++) {
+			for (int i=0; i<population.subpops[s].individuals.length; i++) {
+				pools[next].release(population.subpops[s].individuals[i]);
+				next = (next + 1) % pools.length;
+			}
+		}
+	}
+
+	/**
+	 * Hand a finished run's pools, holding its final population, on to the
+	 * next run in the JVM.  Call once the run's results have been read.
+	 * @param state
+	 */
+	public static void finish(EvolutionState state) {
+		if (!(state.breeder instanceof PoolingBreeder)) {
+			return;
+		}
+		PoolingBreeder breeder = (PoolingBreeder)state.breeder;
+		if (breeder.pools == null) {
+			return;
+		}
+		breeder.release(state.population);
+		for (int t=0; t<breeder.pools.length; t++) {
+			NodePool.recycle(breeder.pools[t]);
+		}
+		breeder.pools = null;
+		breeder.parents = null;
+	}
+
+}
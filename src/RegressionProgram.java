@@ -0,0 +1,325 @@
+package test;
+
+import java.util.Arrays;
+
+import ec.EvolutionState;
+import ec.Individual;
+import ec.app.regression.Regression;
+import ec.app.regression.func.Add;
+import ec.app.regression.func.Cos;
+import ec.app.regression.func.Div;
+import ec.app.regression.func.Exp;
+import ec.app.regression.func.Log;
+import ec.app.regression.func.Mul;
+import ec.app.regression.func.RegERC;
+import ec.app.regression.func.Sin;
+import ec.app.regression.func.Sub;
+import ec.app.regression.func.X;
+import ec.gp.GPIndividual;
+import ec.gp.GPNode;
+
+/**
+ * A regression tree flattened into a postfix program over a value stack,
+ * so that each fitness case is evaluated by a tight loop over an int
+ * array instead of a walk over GPNode objects.  Every operation computes
+ * exactly what the ec.app.regression.func node does (including the
+ * protected division and logarithm), in the same order, so fitness is
+ * identical to the interpreted tree.
+ *
+ * One program is kept per problem instance and recompiled for each
+ * individual, so ECJ's per-thread problem clones each need their own.
+ *
+ * In vector mode the program is instead run once over all the fitness
+ * cases, each operation working through a whole column of case values
+ * before the next starts.  The inner loops are plain counted loops over
+ * double arrays, which HotSpot compiles to SIMD instructions where the
+ * operation allows; the per-case results are the same as in scalar mode.
+ * @author drw
+ *
+ */
+public class RegressionProgram {
+
+	/** Opcodes **/
+	public static final int OP_X = 0;
+	public static final int OP_CONST = 1;
+	public static final int OP_ADD = 2;
+	public static final int OP_SUB = 3;
+	public static final int OP_MUL = 4;
+	public static final int OP_DIV = 5;
+	public static final int OP_SIN = 6;
+	public static final int OP_COS = 7;
+	public static final int OP_EXP = 8;
+	public static final int OP_LOG = 9;
+
+	/** Fitness constants used by ec.app.regression.Regression **/
+	public static final double HIT_LEVEL = 0.01;
+	public static final double PROBABLY_ZERO = 1.11E-15;
+	public static final double BIG_NUMBER = 1.0e15;
+
+	/** Opcodes in postfix order **/
+	int[] code = new int[64];
+
+	/** ERC value for each OP_CONST, indexed by position in code **/
+	double[] constants = new double[64];
+
+	/** Number of opcodes in the current program **/
+	int length;
+
+	/** Value stack used while running the program **/
+	private double[] stack = new double[64];
+
+	/** Whether to run over all fitness cases at once with runVector() **/
+	private boolean vectorised;
+
+	/** Value stack used by runVector(), one column of case values per entry **/
+	private double[][] columns = new double[0][];
+
+	/**
+	 * Flatten a tree into this program.
+	 * @param root
+	 * @return false if the tree holds a node this class does not know,
+	 * 			in which case the tree must be interpreted instead
+	 */
+	public boolean compile(GPNode root) {
+		length = 0;
+		return append(root);
+	}
+
+	private boolean append(GPNode node) {
+		for (int i=0; i<node.children.length; i++) {
+			if (!append(node.children[i])) {
+				return false;
+			}
+		}
+		int op;
+		if (node instanceof X) {
+			op = OP_X;
+		} else if (node instanceof RegERC) {
+			op = OP_CONST;
+		} else if (node instanceof Add) {
+			op = OP_ADD;
+		} else if (node instanceof Sub) {
+			op = OP_SUB;
+		} else if (node instanceof Mul) {
+			op = OP_MUL;
+		} else if (node instanceof Div) {
+			op = OP_DIV;
+		} else if (node instanceof Sin) {
+			op = OP_SIN;
+		} else if (node instanceof Cos) {
+			op = OP_COS;
+		} else if (node instanceof Exp) {
+			op = OP_EXP;
+		} else if (node instanceof Log) {
+			op = OP_LOG;
+		} else {
+			return false;
+		}
+		if (length == code.length) {
+			int[] biggerCode = new int[length * 2];
+			double[] biggerConstants = new double[length * 2];
+			System.arraycopy(code, 0, biggerCode, 0, length);
+			System.arraycopy(constants, 0, biggerConstants, 0, length);
+			code = biggerCode;
+			constants = biggerConstants;
+			stack = new double[length * 2];
+		}
+		if (op == OP_CONST) {
+			constants[length] = ((RegERC)node).value;
+		}
+		code[length++] = op;
+		return true;
+	}
+
+	/**
+	 * Run the program for one fitness case.
+	 * @param x value of the X terminal
+	 * @return
+	 */
+	public double run(double x) {
+		final int[] code = this.code;
+		final double[] stack = this.stack;
+		int top = -1;
+		for (int pc=0; pc<length; pc++) {
+			switch (code[pc]) {
+			case OP_X:
+				stack[++top] = x;
+				break;
+			case OP_CONST:
+				stack[++top] = constants[pc];
+				break;
+			case OP_ADD:
+				top--;
+				stack[top] = stack[top] + stack[top+1];
+				break;
+			case OP_SUB:
+				top--;
+				stack[top] = stack[top] - stack[top+1];
+				break;
+			case OP_MUL:
+				top--;
+				stack[top] = stack[top] * stack[top+1];
+				break;
+			case OP_DIV:
+				top--;
+				if (stack[top+1] == 0.0) {
+					stack[top] = 1.0;
+				} else {
+					stack[top] = stack[top] / stack[top+1];
+				}
+				break;
+			case OP_SIN:
+				stack[top] = Math.sin(stack[top]);
+				break;
+			case OP_COS:
+				stack[top] = Math.cos(stack[top]);
+				break;
+			case OP_EXP:
+				stack[top] = Math.exp(stack[top]);
+				break;
+			case OP_LOG:
+				if (stack[top] != 0.0) {
+					stack[top] = Math.log(Math.abs(stack[top]));
+				}
+				break;
+			}
+		}
+		return stack[0];
+	}
+
+	/**
+	 * @param vectorised whether evaluate() should use runVector()
+	 */
+	public void setVectorised(boolean vectorised) {
+		this.vectorised = vectorised;
+	}
+
+	/**
+	 * Run the program for the first n fitness cases at once.
+	 * @param xs value of the X terminal for each fitness case
+	 * @param n number of fitness cases
+	 * @return the output for each fitness case, valid up to n
+	 */
+	public double[] runVector(double[] xs, int n) {
+		if (columns.length < length || (length > 0 && columns[0].length < n)) {
+			columns = new double[code.length][n];
+		}
+		final int[] code = this.code;
+		final double[][] columns = this.columns;
+		int top = -1;
+		for (int pc=0; pc<length; pc++) {
+			switch (code[pc]) {
+			case OP_X:
+				System.arraycopy(xs, 0, columns[++top], 0, n);
+				break;
+			case OP_CONST:
+				Arrays.fill(columns[++top], 0, n, constants[pc]);
+				break;
+			case OP_ADD: {
+				top--;
+				double[] a = columns[top], b = columns[top+1];
+				for (int i=0; i<n; i++) {
+					a[i] = a[i] + b[i];
+				}
+				break;
+			}
+			case OP_SUB: {
+				top--;
+				double[] a = columns[top], b = columns[top+1];
+				for (int i=0; i<n; i++) {
+					a[i] = a[i] - b[i];
+				}
+				break;
+			}
+			case OP_MUL: {
+				top--;
+				double[] a = columns[top], b = columns[top+1];
+				for (int i=0; i<n; i++) {
+					a[i] = a[i] * b[i];
+				}
+				break;
+			}
+			case OP_DIV: {
+				top--;
+				double[] a = columns[top], b = columns[top+1];
+				for (int i=0; i<n; i++) {
+					a[i] = (b[i] == 0.0) ? 1.0 : a[i] / b[i];
+				}
+				break;
+			}
+			case OP_SIN: {
+				double[] a = columns[top];
+				for (int i=0; i<n; i++) {
+					a[i] = Math.sin(a[i]);
+				}
+				break;
+			}
+			case OP_COS: {
+				double[] a = columns[top];
+				for (int i=0; i<n; i++) {
+					a[i] = Math.cos(a[i]);
+				}
+				break;
+			}
+			case OP_EXP: {
+				double[] a = columns[top];
+				for (int i=0; i<n; i++) {
+					a[i] = Math.exp(a[i]);
+				}
+				break;
+			}
+			case OP_LOG: {
+				double[] a = columns[top];
+				for (int i=0; i<n; i++) {
+					if (a[i] != 0.0) {
+						a[i] = Math.log(Math.abs(a[i]));
+					}
+				}
+				break;
+			}
+			}
+		}
+		return columns[0];
+	}
+
+	/**
+	 * Evaluate an individual over all of the problem's fitness cases and
+	 * set its fitness, in the same way as Regression.evaluate().
+	 * @param problem
+	 * @param state
+	 * @param ind
+	 * @return false if the tree could not be compiled and was not evaluated
+	 */
+	public boolean evaluate(Regression problem, EvolutionState state, Individual ind) {
+
+		if (!compile(((GPIndividual)ind).trees[0].child)) {
+			return false;
+		}
+
+		double[] vectorOutputs = null;
+		if (vectorised) {
+			vectorOutputs = runVector(problem.inputs, problem.trainingSetSize);
+		}
+
+		int hits = 0;
+		double sum = 0.0;
+		double result;
+		for (int y=0; y<problem.trainingSetSize; y++) {
+			double output = vectorised ? vectorOutputs[y] : run(problem.inputs[y]);
+			result = Math.abs(problem.outputs[y] - output);
+			if (!(result < BIG_NUMBER)) {
+				result = BIG_NUMBER;
+			} else if (result < PROBABLY_ZERO) {
+				result = 0.0;
+			}
+			if (result <= HIT_LEVEL) {
+				hits++;
+			}
+			sum += result;
+		}
+
+		FastEvaluation.setFitness(state, ind, (float)sum, hits);
+		return true;
+	}
+
+}
@@ -0,0 +1,224 @@
+package test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.Ostermiller.util.CSVParser;
+import com.Ostermiller.util.CSVPrinter;
+import com.Ostermiller.util.LabeledCSVParser;
+
+/**
+ * Append-only result file.  Each result is flushed and forced to disk
+ * as it is written (or every syncInterval results), so a job that is
+ * killed loses at most the rows that were still running.  When resuming,
+ * the rows already in the file are read back so that the batch can skip
+ * them, and any partly written last line is cut off before appending.
+ * @author drw
+ *
+ */
+public class ResultJournal {
+
+	/** Stream the results are appended to **/
+	private final FileOutputStream outStream;
+
+	/** CSV printer over outStream **/
+	private final CSVPrinter printer;
+
+	/** Appended columns of each row already present in the file, by ID **/
+	private final Map<String,String[]> completed = new HashMap<String,String[]>();
+
+	/** Number of results written between each sync to disk **/
+	private final int syncInterval;
+
+	/** Results written since the last sync **/
+	private int unsynced = 0;
+
+	/**
+	 * Open a result file.  Without resume the file is truncated and the
+	 * header written, as before.  With resume, an existing file is checked
+	 * against the header and its completed rows recorded.
+	 * @param filename result file
+	 * @param header header of the batch file
+	 * @param resultsHeaderPart labels of the columns appended to each row
+	 * @param resume keep and append to an existing result file
+	 * @param syncInterval results to write between each sync to disk
+	 */
+	public ResultJournal(String filename, String[] header, String[] resultsHeaderPart,
+								boolean resume, int syncInterval) throws BatchException {
+
+		this.syncInterval = syncInterval;
+
+		String[] resultHeader = new String[header.length + resultsHeaderPart.length];
+		System.arraycopy(header, 0, resultHeader, 0, header.length);
+		System.arraycopy(resultsHeaderPart, 0, resultHeader, header.length,
+									resultsHeaderPart.length);
+
+		File file = new File(filename);
+		boolean writeHeader = true;
+		if (resume && file.exists()) {
+			writeHeader = !readCompleted(file, resultHeader, resultsHeaderPart.length);
+		}
+
+		FileOutputStream stream = null;
+		CSVPrinter csvPrinter = null;
+		try {
+			stream = new FileOutputStream(file, !writeHeader);
+			csvPrinter = new CSVPrinter(stream);
+			if (writeHeader) {
+				csvPrinter.write(header);
+				csvPrinter.writeln(resultsHeaderPart);
+				stream.getFD().sync();
+			}
+		} catch (Exception e) {
+			throw new BatchException("Error opening output file", e);
+		}
+		outStream = stream;
+		printer = csvPrinter;
+
+		if (resume) {
+			System.err.println("Resuming with " + completed.size()
+									+ " rows already in " + filename);
+		}
+	}
+
+	/**
+	 * @param id value of the ID column of a batch row
+	 * @return whether a result for this row is already in the file
+	 */
+	public boolean isComplete(String id) {
+		return completed.containsKey(normaliseId(id));
+	}
+
+	/**
+	 * @param id value of the ID column of a batch row
+	 * @return the columns appended to the row when it was written (its
+	 * 			response), or null if it is not in the file
+	 */
+	public String[] getResponse(String id) {
+		return completed.get(normaliseId(id));
+	}
+
+	/**
+	 * Append a result, forcing it to disk if syncInterval results have
+	 * been written since the last sync.
+	 * @param result
+	 */
+	public void write(RowResult result) throws BatchException {
+		BatchEvolve.writeResult(result, printer);
+		unsynced++;
+		if (unsynced >= syncInterval) {
+			sync();
+		}
+	}
+
+	/**
+	 * Force everything written so far to disk.
+	 */
+	public void sync() throws BatchException {
+		try {
+			printer.flush();
+			outStream.getFD().sync();
+			unsynced = 0;
+		} catch (Exception e) {
+			throw new BatchException("Error syncing result file", e);
+		}
+	}
+
+	/**
+	 * Sync and close the file.
+	 */
+	public void close() throws BatchException {
+		sync();
+		try {
+			printer.close();
+		} catch (Exception e) {
+			throw new BatchException("Error closing result file", e);
+		}
+	}
+
+	/**
+	 * Read the IDs and responses of the rows already in an existing
+	 * result file.  Any
+	 * trailing partial line left by a killed job is removed first.
+	 * @param file existing result file
+	 * @param resultHeader expected header line
+	 * @param appended number of columns appended to each batch row
+	 * @return whether the file already holds a complete header
+	 */
+	private boolean readCompleted(File file, String[] resultHeader, int appended) throws BatchException {
+
+		try {
+			truncateToLastLine(file);
+			if (file.length() == 0) {
+				return false;
+			}
+
+			FileInputStream inStream = new FileInputStream(file);
+			LabeledCSVParser parser = new LabeledCSVParser(new CSVParser(inStream));
+			String[] labels = parser.getLabels();
+			if (!Arrays.equals(labels, resultHeader)) {
+				throw new BatchException("Existing result file header does not match batch file");
+			}
+
+			String[] line;
+			while ((line = parser.getLine()) != null) {
+				if (line.length != resultHeader.length) {
+					throw new BatchException("Malformed row in existing result file at line "
+										+ parser.getLastLineNumber());
+				}
+				String[] response = new String[appended];
+				System.arraycopy(line, line.length - appended, response, 0, appended);
+				completed.put(normaliseId(line[0]), response);
+			}
+			parser.close();
+
+		} catch (BatchException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new BatchException("Error reading existing result file", e);
+		}
+		return true;
+	}
+
+	/**
+	 * Cut the file back to the end of its last complete line.
+	 * @param file
+	 * @throws Exception
+	 */
+	private static void truncateToLastLine(File file) throws Exception {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long end = raf.length();
+			while (end > 0) {
+				raf.seek(end - 1);
+				if (raf.read() == '\n') {
+					break;
+				}
+				end--;
+			}
+			if (end < raf.length()) {
+				System.err.println("Discarding partial line at end of result file");
+				raf.setLength(end);
+				raf.getFD().sync();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * IDs are written back as integers, so compare them in that form.
+	 * @param id
+	 * @return
+	 */
+	private static String normaliseId(String id) {
+		return Integer.toString(Integer.parseInt(id.trim()));
+	}
+
+}
@@ -0,0 +1,228 @@
+package test;
+
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.Ostermiller.util.CSVPrinter;
+
+/**
+ * Reruns rows of an existing result file, such as one of the archives in
+ * exp/, and checks that each gives the same response (raw fitness,
+ * adjusted fitness and hits) as was recorded.  This checks that a new
+ * JVM, ECJ build or host still reproduces published results without
+ * rerunning everything: a fraction of the rows can be chosen at random,
+ * either from the whole file or separately from each problem, and the
+ * rows are run in parallel.
+ * @author drw
+ *
+ */
+public class ResultVerifier {
+
+	/** Header of the report file, after the ID and line number **/
+	public static final String[] REPORT_HEADER = {
+		"ID", "Line", "Recorded Raw Fitness", "Recorded Adjusted Fitness", "Recorded Hits",
+		"Raw Fitness", "Adjusted Fitness", "Hits", "Match" };
+
+	/** A row to rerun and its recorded response **/
+	private final List<BatchRow> rows = new ArrayList<BatchRow>();
+	private final List<String[]> recorded = new ArrayList<String[]>();
+
+	/**
+	 * Read the rows of a result file and choose which to rerun.
+	 * @param resultFile result file, possibly gzipped or a tar.gz archive
+	 * @param fraction fraction of rows to rerun, from 0 to 1
+	 * @param stratified take the fraction from each problem separately
+	 * @param seed seed for choosing rows
+	 */
+	public ResultVerifier(String resultFile, double fraction, boolean stratified, long seed) {
+
+		List<BatchRow> allRows = new ArrayList<BatchRow>();
+		List<String[]> allRecorded = new ArrayList<String[]>();
+		int skipped = 0;
+		int lineNumber = 0;
+		try {
+			BatchInput in = new BatchInput(resultFile);
+			if (in.getResponseColumns() < BatchEvolve.RESULTS_HEADER_PART.length) {
+				System.err.println(resultFile + " has no response columns to verify against");
+				System.exit(-1);
+			}
+			Map<String,Integer> labelIndex = BatchRow.indexLabels(in.getLabels());
+			String[] line;
+			while ((line = in.getLine()) != null) {
+				lineNumber++;
+				if (in.getLastResponses() == null) {
+					System.err.println("Missing response values at line " + in.getLastLineNumber()
+										+ " of " + resultFile);
+					System.exit(-1);
+				}
+				// Rows skipped by adaptive replication have nothing to check
+				if (in.getLastResponses()[0].trim().equals(BatchEvolve.NULL_SYMBOL)) {
+					skipped++;
+					continue;
+				}
+				allRows.add(new BatchRow(labelIndex, line, lineNumber));
+				allRecorded.add(in.getLastResponses());
+			}
+			in.close();
+		} catch (Exception e) {
+			System.err.println("Error reading result file " + resultFile);
+			System.err.println(e);
+			System.exit(-1);
+		}
+
+		// Group the rows, by problem if stratified, and sample each group
+		Map<String,List<Integer>> groups = new LinkedHashMap<String,List<Integer>>();
+		for (int i=0; i<allRows.size(); i++) {
+			String group = stratified ? allRows.get(i).getValueByLabel(BatchEvolve.L_PROBLEM) : "";
+			if (!groups.containsKey(group)) {
+				groups.put(group, new ArrayList<Integer>());
+			}
+			groups.get(group).add(Integer.valueOf(i));
+		}
+		Random random = new Random(seed);
+		List<Integer> chosen = new ArrayList<Integer>();
+		for (List<Integer> group : groups.values()) {
+			int count = (int)Math.round(fraction * group.size());
+			if (fraction > 0 && count == 0) {
+				count = 1;
+			}
+			if (count < group.size()) {
+				Collections.shuffle(group, random);
+			}
+			chosen.addAll(group.subList(0, count));
+		}
+		Collections.sort(chosen);
+		for (Integer i : chosen) {
+			rows.add(allRows.get(i.intValue()));
+			recorded.add(allRecorded.get(i.intValue()));
+		}
+
+		System.out.println("Verifying " + rows.size() + " of " + allRows.size() + " rows"
+							+ (stratified ? " (" + groups.size() + " problems)" : "")
+							+ (skipped > 0 ? ", ignoring " + skipped + " skipped rows" : ""));
+	}
+
+	/**
+	 * Rerun the chosen rows and compare their responses with the recorded
+	 * ones, reporting each mismatch and the overall throughput.
+	 * @param threads rows to run at once
+	 * @param reportFile CSV file for the result of every row, or null
+	 * @param args commandline arguments, passed through to runRow()
+	 * @return number of rows whose response did not match
+	 */
+	public int verify(int threads, String reportFile, final String[] args) throws BatchException {
+
+		CSVPrinter report = null;
+		if (reportFile != null) {
+			try {
+				report = new CSVPrinter(new FileOutputStream(reportFile));
+				report.writeln(REPORT_HEADER);
+			} catch (Exception e) {
+				System.err.println("Error opening report file: " + e);
+				System.exit(-1);
+			}
+		}
+
+		long startTime = System.currentTimeMillis();
+		long rowMillis = 0;
+		int mismatches = 0;
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		LinkedList<Future<RowResult>> pending = new LinkedList<Future<RowResult>>();
+		for (final BatchRow row : rows) {
+			pending.addLast(pool.submit(new Callable<RowResult>() {
+				public RowResult call() throws BatchException {
+					return BatchEvolve.runRow(row, args);
+				}
+			}));
+		}
+
+		for (int i=0; i<rows.size(); i++) {
+			RowResult result = BatchEvolve.nextResult(pending);
+			rowMillis += result.elapsedMillis;
+			String[] expected = recorded.get(i);
+			boolean match = matches(expected, result.response);
+			if (!match) {
+				mismatches++;
+				System.err.println("Mismatch at line " + result.lineNumber + " with ID "
+						+ rows.get(i).getValueByLabel(BatchEvolve.L_ID) + ": recorded "
+						+ describe(expected) + ", got " + describe(result.response));
+			}
+			if (report != null) {
+				String[] line = new String[REPORT_HEADER.length];
+				line[0] = rows.get(i).getValueByLabel(BatchEvolve.L_ID);
+				line[1] = Integer.toString(result.lineNumber);
+				for (int j=0; j<BatchEvolve.RESULTS_HEADER_PART.length; j++) {
+					line[2 + j] = expected[j];
+					line[5 + j] = result.response[j];
+				}
+				line[8] = Boolean.toString(match);
+				try {
+					report.writeln(line);
+				} catch (Exception e) {
+					System.err.println("Error writing report file " + e);
+					System.exit(-1);
+				}
+			}
+		}
+		pool.shutdown();
+		if (report != null) {
+			try {
+				report.close();
+			} catch (Exception e) {
+				System.err.println("Error closing report file " + e);
+			}
+		}
+
+		double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+		if (seconds > 0) {
+			System.out.println(String.format("Verified %d rows in %.1fs (%.2f rows/s, %.1f rows running on average)",
+					rows.size(), seconds, rows.size() / seconds, rowMillis / 1000.0 / seconds));
+		}
+		System.out.println(mismatches == 0 ? "All responses match"
+				: mismatches + " of " + rows.size() + " responses do not match");
+		return mismatches;
+	}
+
+	/**
+	 * Compare responses as floats, so that formatting differences in the
+	 * recorded text do not count as mismatches.
+	 * @param expected
+	 * @param actual
+	 * @return
+	 */
+	private static boolean matches(String[] expected, String[] actual) {
+		for (int j=0; j<BatchEvolve.RESULTS_HEADER_PART.length; j++) {
+			try {
+				if (Float.floatToIntBits(Float.parseFloat(expected[j].trim()))
+						!= Float.floatToIntBits(Float.parseFloat(actual[j].trim()))) {
+					return false;
+				}
+			} catch (NumberFormatException e) {
+				if (!expected[j].trim().equals(actual[j].trim())) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static String describe(String[] response) {
+		StringBuffer buffer = new StringBuffer();
+		for (int j=0; j<BatchEvolve.RESULTS_HEADER_PART.length; j++) {
+			buffer.append(j == 0 ? "" : ",").append(response[j]);
+		}
+		return buffer.toString();
+	}
+
+}
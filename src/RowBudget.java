@@ -0,0 +1,103 @@
+package test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limits on how much one batch row may do: wall time, node evaluations,
+ * and tree nodes held in the population.  BudgetExchanger checks them
+ * once each generation has been evaluated, and stops the run at that
+ * point, so the final population is evaluated and the row's response is
+ * the best of it as usual.  The row's status says whether it ran to the
+ * end or which budget cut it short.
+ *
+ * A node evaluation is one node of an individual evaluated in one
+ * generation, so the count is the size of every tree ECJ evaluates,
+ * whatever the number of fitness cases.  When a row runs as islands,
+ * the budgets are for all of the islands together.
+ * @author drw
+ *
+ */
+public class RowBudget {
+
+	/** Status of a row that ran to the end of its run **/
+	public static final String STATUS_COMPLETE = "complete";
+
+	/** Status of rows cut short by each budget **/
+	public static final String STATUS_TIME = "time budget";
+	public static final String STATUS_EVALUATIONS = "evaluation budget";
+	public static final String STATUS_NODES = "node budget";
+
+	/** Results column giving the status **/
+	public static final String[] RESULTS_STATUS_PART = {"Status"};
+
+	/** Time the row must stop by, or Long.MAX_VALUE **/
+	private final long deadline;
+
+	/** Node evaluations allowed, or 0 for no limit **/
+	private final long maxEvaluations;
+
+	/** Tree nodes allowed in the population, or 0 for no limit **/
+	private final long maxNodes;
+
+	/** Node evaluations so far, by all islands **/
+	private final AtomicLong evaluations = new AtomicLong();
+
+	/** Tree nodes in the latest population of each island **/
+	private final AtomicLongArray nodes;
+
+	/** Budget that stopped the row, or null **/
+	private volatile String stopped;
+
+	/**
+	 * @param startTime time the row started, from System.currentTimeMillis()
+	 * @param maxSeconds wall time allowed, or 0 for no limit
+	 * @param maxEvaluations node evaluations allowed, or 0 for no limit
+	 * @param maxNodes tree nodes allowed in the population, or 0 for no limit
+	 * @param islands number of islands the row runs as
+	 */
+	public RowBudget(long startTime, double maxSeconds, long maxEvaluations, long maxNodes, int islands) {
+		this.deadline = maxSeconds > 0 ? startTime + (long)(maxSeconds * 1000) : Long.MAX_VALUE;
+		this.maxEvaluations = maxEvaluations;
+		this.maxNodes = maxNodes;
+		this.nodes = new AtomicLongArray(islands);
+	}
+
+	/**
+	 * Count a generation of an island, and check the budgets.
+	 * @param island
+	 * @param evaluated tree nodes evaluated in the generation
+	 * @param populationNodes tree nodes in the island's population
+	 * @return the budget that has run out, or null if none has
+	 */
+	public String spend(int island, long evaluated, long populationNodes) {
+
+		long evaluatedSoFar = evaluations.addAndGet(evaluated);
+		nodes.set(island, populationNodes);
+		long total = 0;
+		for (int i=0; i<nodes.length(); i++) {
+			total += nodes.get(i);
+		}
+
+		String exceeded = null;
+		if (System.currentTimeMillis() >= deadline) {
+			exceeded = STATUS_TIME;
+		} else if (maxEvaluations > 0 && evaluatedSoFar >= maxEvaluations) {
+			exceeded = STATUS_EVALUATIONS;
+		} else if (maxNodes > 0 && total >= maxNodes) {
+			exceeded = STATUS_NODES;
+		}
+		if (exceeded != null && stopped == null) {
+			stopped = exceeded;
+		}
+		return stopped;
+	}
+
+	/**
+	 * @return status of the row once it has run
+	 */
+	public String getStatus() {
+		return stopped == null ? STATUS_COMPLETE : stopped;
+	}
+
+}
@@ -0,0 +1,39 @@
+package test;
+
+import java.util.List;
+
+/**
+ * The outcome of running one row of the batch file: the parameters read
+ * back from ECJ and the response measure of the best individual.
+ * Rows may finish out of order when several are run at once, so the line
+ * number is kept to let the writer put them back in input order.
+ * @author drw
+ *
+ */
+public class RowResult {
+
+	/** Line number of the row within the batch file **/
+	public final int lineNumber;
+
+	/** Parameters as read back from the parameter database **/
+	public final String[] params;
+
+	/** Response measure, as returned by BatchEvolve.getResponse() **/
+	public final String[] response;
+
+	/** Wall clock time taken to set up and run the row **/
+	public long elapsedMillis;
+
+	/** Heap allocated by the thread that ran the row **/
+	public long allocatedBytes;
+
+	/** Per-generation trace (see GenerationStatistics), or null **/
+	public List<String[]> trace;
+
+	public RowResult(int lineNumber, String[] params, String[] response) {
+		this.lineNumber = lineNumber;
+		this.params = params;
+		this.response = response;
+	}
+
+}
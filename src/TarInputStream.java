@@ -0,0 +1,183 @@
+package test;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the first regular file out of a tar stream, such as the single
+ * CSV file in each of the exp/*.csv.tar.gz archives, without extracting
+ * anything to disk.  Directory, link and extended header entries before
+ * it are skipped.  Reading stops at the end of the file's data.
+ * @author drw
+ *
+ */
+public class TarInputStream extends FilterInputStream {
+
+	/** Size of a tar header and of the blocks data is padded to **/
+	public static final int BLOCK_SIZE = 512;
+
+	/** Offsets and lengths of the header fields used **/
+	private static final int NAME_OFFSET = 0;
+	private static final int NAME_LENGTH = 100;
+	private static final int SIZE_OFFSET = 124;
+	private static final int SIZE_LENGTH = 12;
+	private static final int TYPE_OFFSET = 156;
+
+	/** Name of the file being read **/
+	private final String name;
+
+	/** Bytes of the file not yet read **/
+	private long remaining;
+
+	/**
+	 * Skip to the first regular file in a tar stream.
+	 * @param in uncompressed tar stream
+	 * @throws IOException if the stream holds no regular file
+	 */
+	public TarInputStream(InputStream in) throws IOException {
+		super(in);
+
+		byte[] header = new byte[BLOCK_SIZE];
+		while (true) {
+			if (!readBlock(in, header)) {
+				throw new EOFException("No file found in tar archive");
+			}
+			long size = parseSize(header);
+			byte type = header[TYPE_OFFSET];
+			if (type == '0' || type == 0) {
+				name = parseName(header);
+				remaining = size;
+				return;
+			}
+			skipFully(in, padded(size));
+		}
+	}
+
+	/**
+	 * @return name of the file being read, as stored in the archive
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public int read() throws IOException {
+		if (remaining <= 0) {
+			return -1;
+		}
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Tar archive ends inside " + name);
+		}
+		remaining--;
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining <= 0) {
+			return -1;
+		}
+		int n = in.read(b, off, (int)Math.min(len, remaining));
+		if (n < 0) {
+			throw new EOFException("Tar archive ends inside " + name);
+		}
+		remaining -= n;
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(Math.min(n, remaining));
+		remaining -= skipped;
+		return skipped;
+	}
+
+	public int available() throws IOException {
+		return (int)Math.min(in.available(), remaining);
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Read one header block.
+	 * @param in
+	 * @param block
+	 * @return false at the end of the archive (end of stream or a zero block)
+	 * @throws IOException
+	 */
+	private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+		int read = 0;
+		while (read < block.length) {
+			int n = in.read(block, read, block.length - read);
+			if (n < 0) {
+				if (read == 0) {
+					return false;
+				}
+				throw new EOFException("Truncated tar header");
+			}
+			read += n;
+		}
+		for (int i=0; i<block.length; i++) {
+			if (block[i] != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param header
+	 * @return size of the entry's data, in octal or (for large files)
+	 * 			GNU base-256 form
+	 */
+	private static long parseSize(byte[] header) {
+		long size = 0;
+		if ((header[SIZE_OFFSET] & 0x80) != 0) {
+			for (int i=SIZE_OFFSET+1; i<SIZE_OFFSET+SIZE_LENGTH; i++) {
+				size = (size << 8) | (header[i] & 0xff);
+			}
+			return size;
+		}
+		for (int i=SIZE_OFFSET; i<SIZE_OFFSET+SIZE_LENGTH; i++) {
+			byte b = header[i];
+			if (b >= '0' && b <= '7') {
+				size = (size << 3) + (b - '0');
+			} else if (b == 0 || (b == ' ' && size > 0)) {
+				break;
+			}
+		}
+		return size;
+	}
+
+	private static String parseName(byte[] header) {
+		int end = NAME_OFFSET;
+		while (end < NAME_OFFSET + NAME_LENGTH && header[end] != 0) {
+			end++;
+		}
+		return new String(header, NAME_OFFSET, end - NAME_OFFSET);
+	}
+
+	/**
+	 * @param size
+	 * @return size rounded up to a whole number of blocks
+	 */
+	private static long padded(long size) {
+		return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException("Truncated tar archive");
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package test;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Shares a fixed number of cores between the rows of a batch, deciding
+ * how many ECJ evaluation and breeding threads each row gets as it starts.
+ * While plenty of rows are still waiting every row gets a single thread,
+ * as in the parameter files; as the batch drains, the free cores are
+ * divided between the rows that are left, up to one thread per
+ * MIN_INDIVIDUALS_PER_THREAD individuals so small populations are not
+ * split more finely than is worthwhile.  A row run as an IslandModel
+ * runs every island at once, each with the row's ECJ threads, so it holds
+ * that many cores for each island, up to all of them.
+ * @author drw
+ *
+ */
+public class ThreadAllocator {
+
+	/** Smallest share of the population worth giving its own thread **/
+	public static final int MIN_INDIVIDUALS_PER_THREAD = 100;
+
+	/** Cores not currently held by a running row **/
+	private final Semaphore cores;
+
+	/** Total number of cores being shared **/
+	private final int totalCores;
+
+	/** Rows in the batch that have not yet started **/
+	private int unstarted;
+
+	/**
+	 * @param totalCores number of cores to share between rows
+	 * @param rows number of rows in the batch
+	 */
+	public ThreadAllocator(int totalCores, int rows) {
+		this.cores = new Semaphore(totalCores, true);
+		this.totalCores = totalCores;
+		this.unstarted = rows;
+	}
+
+	/**
+	 * Record that a row will not be run at all.
+	 */
+	public synchronized void skip() {
+		unstarted--;
+	}
+
+	/**
+	 * Decide how many threads a row that is about to start should use,
+	 * and wait until that many cores are free.
+	 * @param popSize population size of the row
+	 * @param islands number of islands the row runs as, 1 for a single
+	 * 			population
+	 * @return the number of cores allocated, to be given back to release();
+	 * 			each island gets an equal share of them, and at least one
+	 */
+	public int acquire(int popSize, int islands) {
+		int threads;
+		synchronized (this) {
+			int share = cores.availablePermits() / Math.max(1, unstarted) / islands;
+			int useful = Math.max(1, popSize / islands / MIN_INDIVIDUALS_PER_THREAD);
+			threads = Math.max(1, Math.min(share, Math.min(useful, totalCores / islands)));
+			unstarted--;
+		}
+		int held = Math.min(threads * islands, totalCores);
+		cores.acquireUninterruptibly(held);
+		return held;
+	}
+
+	/**
+	 * Give back the cores used by a row that has finished.
+	 * @param held value returned by acquire()
+	 */
+	public void release(int held) {
+		cores.release(held);
+	}
+
+}